@@ -0,0 +1,90 @@
+package jack.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import jack.valuations.ContractSolver;
+import jack.valuations.ContractValuation;
+
+/**
+ * Compares ContractSolver with the enumeration of every combination of
+ * contracts that ContractValuation.getScore used before it. The enumeration
+ * doubles in cost with each contract, so at 20 contracts each of its calls
+ * takes several seconds and its iterations run long.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ContractValuationBenchmark {
+
+    /** The types of good named by the contracts */
+    private static final String[] TYPES = { "QB", "RB", "WR", "TE" };
+
+    /** The number of contracts in the scoring function */
+    @Param({ "5", "10", "15", "20" })
+    private int contracts;
+
+    /** A scoring function and the goods it is scored against */
+    private String scoreFunct;
+    private List<String> goods;
+
+    /** The scoring function compiled ahead of time */
+    private ContractSolver solver;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(contracts);
+        StringBuilder function = new StringBuilder();
+        for (int i = 0; i < contracts; ++i) {
+            if (i > 0) {
+                function.append(' ');
+            }
+            double value = 0;
+            for (String type : TYPES) {
+                int need = random.nextInt(3);
+                function.append(type).append(':').append(need).append(',');
+                value += need * (1 + 4 * random.nextDouble());
+            }
+            function.append(value);
+        }
+        scoreFunct = function.toString();
+
+        goods = new ArrayList<String>();
+        for (int i = 0; i < 24; ++i) {
+            goods.add(TYPES[i % TYPES.length]);
+        }
+        solver = ContractSolver.compile(scoreFunct);
+    }
+
+    @Benchmark
+    public double enumerate() {
+        return ContractValuation.enumerateScore(scoreFunct, goods);
+    }
+
+    @Benchmark
+    public double compileAndSolve() {
+        return ContractSolver.compile(scoreFunct).solve(goods);
+    }
+
+    @Benchmark
+    public double solve() {
+        return solver.solve(goods);
+    }
+}
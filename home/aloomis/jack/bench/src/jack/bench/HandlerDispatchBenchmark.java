@@ -0,0 +1,95 @@
+package jack.bench;
+
+import java.util.Vector;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import jack.auctions.AuctionBase;
+import jack.auctions.Message;
+import jack.server.ClientHandler;
+
+/**
+ * Measures the round trip of a bid through AuctionBase.run: queueing the
+ * message, waking the auction thread, decoding the message and dispatching it
+ * to its handler. The handler hands the bid back to the benchmark thread, so
+ * each operation includes two thread hand offs.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HandlerDispatchBenchmark {
+
+    /** A typical bid as sent by a client */
+    private static final String BID =
+        "bid sessionId=0 auctionId=1 bidderId=alice bid=42";
+
+    /** The auction receiving the bids and the thread running it */
+    private EchoAuction auction;
+    private Thread thread;
+
+    @Setup
+    public void setup() {
+        auction = new EchoAuction(1);
+        thread = new Thread(auction);
+        thread.start();
+    }
+
+    @TearDown
+    public void tearDown() throws InterruptedException {
+        auction.tryEnd();
+        thread.join();
+    }
+
+    @Benchmark
+    public int dispatch() throws InterruptedException {
+        auction.queueMessage(BID);
+        return auction.bids.take();
+    }
+
+    /**
+     * An auction without bidders that passes the value of each bid it receives
+     * back to the benchmark. It may be ended as soon as it starts.
+     */
+    private static class EchoAuction extends AuctionBase {
+
+        /** The value of each bid, taken by the benchmark thread */
+        private final SynchronousQueue<Integer> bids =
+            new SynchronousQueue<Integer>();
+
+        public EchoAuction(int auctionId) {
+            super(auctionId);
+            setClients(new Vector<ClientHandler>());
+            putHandler("bid", new BidHandler());
+        }
+
+        @Override
+        protected void initialize() {
+            tryEndable();
+        }
+
+        private class BidHandler implements MessageHandler {
+            public void handle(Message args) {
+                try {
+                    bids.put(args.getInt("bid"));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package jack.bench;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import jack.auctions.Message;
+
+/**
+ * Compares the message codec used by AuctionBase with the split and
+ * concatenation based codec it replaced. Run with the gc profiler (make run
+ * does this) and compare gc.alloc.rate.norm, which is the number of bytes
+ * allocated per message.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageCodecBenchmark {
+
+    /** A typical bid as sent by a client */
+    private final String bid = "bid sessionId=1 auctionId=12 bidderId=alice bid=42";
+
+    /** A typical status as sent by an auction */
+    private final Map<String, String> status = new LinkedHashMap<String, String>();
+
+    /** The reused decoder and encoder */
+    private final Message message = new Message();
+    private final StringBuilder encodeBuffer = new StringBuilder(256);
+
+    public MessageCodecBenchmark() {
+        status.put("timer", "10");
+        status.put("bidderId", "alice");
+        status.put("bid", "42");
+        status.put("sessionId", "1");
+        status.put("auctionId", "12");
+    }
+
+    @Benchmark
+    public void decodeLegacy(Blackhole bh) {
+        String[] keyVals = bid.split("\\s+");
+        Map<String, String> args =
+            legacyToMap(Arrays.copyOfRange(keyVals, 1, keyVals.length));
+        bh.consume(keyVals[0]);
+        bh.consume(args.containsKey("bidderId"));
+        bh.consume(Integer.parseInt(args.get("bid")));
+    }
+
+    @Benchmark
+    public void decode(Blackhole bh) {
+        message.parse(bid);
+        bh.consume(message.isType("bid"));
+        bh.consume(message.containsKey("bidderId"));
+        bh.consume(message.getInt("bid"));
+    }
+
+    @Benchmark
+    public String encodeLegacy() {
+        return "status" + legacyToString(status);
+    }
+
+    @Benchmark
+    public String encode() {
+        encodeBuffer.setLength(0);
+        return Message.encode(encodeBuffer, "status", status).toString();
+    }
+
+    /** The decoder that AuctionBase used before the Message view */
+    private static Map<String, String> legacyToMap(String[] keyVals) {
+        Map<String, String> m = new HashMap<String, String>();
+        for (String keyVal : keyVals) {
+            String[] pair = keyVal.split("=");
+            if (pair.length == 2) {
+                m.put(pair[0].trim(), pair[1].trim());
+            }
+        }
+        return m;
+    }
+
+    /** The encoder that AuctionBase used before Message.encode */
+    private static String legacyToString(Map<String, String> keyVals) {
+        String s = new String();
+        for (Map.Entry<String, String> entry : keyVals.entrySet()) {
+            s += " " + entry.getKey() + "=" + entry.getValue().replace(' ', '_');
+        }
+        return s;
+    }
+}
@@ -0,0 +1,124 @@
+package jack.bench;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Vector;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import jack.auctions.AuctionBase;
+import jack.scheduler.Scheduler;
+import jack.server.ClientHandler;
+
+/**
+ * Measures sorting and executing generated schedules. The auctions are laid
+ * out in chains of CHAIN_LENGTH, each auction starting once the one before it
+ * in its chain has ended, and the head of each chain cannot end before the
+ * head of the chain before it. Every auction becomes endable as soon as it
+ * starts, so execute measures the scheduler and not the auctions.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SchedulerBenchmark {
+
+    /** The number of auctions in each chain of the schedule */
+    private static final int CHAIN_LENGTH = 10;
+
+    /** The number of auctions in the schedule */
+    @Param({ "10", "100", "1000", "10000" })
+    private int tasks;
+
+    /** The schedule that is sorted */
+    private Scheduler scheduler;
+
+    @Setup
+    public void setup() {
+        scheduler = newSchedule(tasks);
+    }
+
+    @Benchmark
+    public List<Integer> getTopoSort() {
+        return scheduler.getTopoSort();
+    }
+
+    @Benchmark
+    public Map<Integer, AuctionBase> execute(Execution execution) {
+        execution.scheduler.execute(execution.auctions);
+        return execution.auctions;
+    }
+
+    /**
+     * A schedule and its auctions, which are rebuilt for each execution as
+     * auctions can only be run once. This is kept apart from the sorted
+     * schedule so that sorting is not held up by building the auctions.
+     */
+    @State(Scope.Thread)
+    public static class Execution {
+
+        /** The schedule that is executed */
+        private Scheduler scheduler;
+
+        /** The auctions of the schedule */
+        private Map<Integer, AuctionBase> auctions;
+
+        @Setup(Level.Invocation)
+        public void setup(SchedulerBenchmark benchmark) {
+            scheduler = newSchedule(benchmark.tasks);
+            auctions = new HashMap<Integer, AuctionBase>();
+            for (int i = 0; i < benchmark.tasks; ++i) {
+                auctions.put(i, new EndableAuction(i));
+            }
+        }
+    }
+
+    /**
+     * Builds a schedule of the given number of auctions. Draft snapshots are
+     * turned off, so that executing the schedule does not measure the disk.
+     */
+    private static Scheduler newSchedule(int tasks) {
+        Scheduler scheduler = new Scheduler();
+        scheduler.setSnapshotsEnabled(false);
+        for (int i = 0; i < tasks; ++i) {
+            scheduler.addAuction(i);
+        }
+        for (int i = 0; i < tasks; ++i) {
+            if (i % CHAIN_LENGTH != 0) {
+                scheduler.addStartDepend(i, i - 1);
+            } else if (i > 0) {
+                scheduler.addEndDepend(i, i - CHAIN_LENGTH);
+            }
+        }
+        return scheduler;
+    }
+
+    /** An auction without bidders that may be ended as soon as it starts */
+    private static class EndableAuction extends AuctionBase {
+
+        public EndableAuction(int auctionId) {
+            super(auctionId);
+            setClients(new Vector<ClientHandler>());
+        }
+
+        @Override
+        protected void initialize() {
+            tryEndable();
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package jack.bench;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import jack.valuations.AdditiveValuation;
+import jack.valuations.ContractValuation;
+import jack.valuations.ScheduleValuation;
+
+/**
+ * Measures getScore for each kind of valuation, scoring a fixed roster with a
+ * fixed scoring function as the server does at the end of a session. The
+ * valuations read their config files only to generate scoring functions, so
+ * the missing config files reported when they are created do no harm here.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ValuationBenchmark {
+
+    /** Scoring functions in the format generated by each valuation */
+    private static final String ADDITIVE =
+        "QB,3.37,0.79 RB,2.13,1.05 WR,1.80,1.20 TE,2.50,0.90";
+    private static final String SCHEDULE =
+        "Number_Of_Goods:8 Need:3 Deadline: 5 "
+        + "Valuations:18.8,16.2,15.5,11.0,8.2,0.0,0.0,0.0";
+    private static final String CONTRACT =
+        "QB:0,RB:1,WR:0,3.25 QB:0,RB:1,WR:3,8.10 QB:1,RB:1,WR:1,9.32 "
+        + "QB:0,RB:2,WR:2,11.29 QB:2,RB:2,WR:3,20.44";
+
+    /** Rosters of each kind of good */
+    private final List<String> players = Arrays.asList(
+        "QB", "RB", "RB", "WR", "WR", "WR", "TE", "QB", "RB", "WR");
+    private final List<String> timeSlots = Arrays.asList(
+        "6", "2", "7", "4", "1", "8", "3", "5");
+
+    private AdditiveValuation additive;
+    private ScheduleValuation schedule;
+    private ContractValuation contract;
+
+    @Setup
+    public void setup() {
+        additive = new AdditiveValuation("additive.txt");
+        schedule = new ScheduleValuation("schedule.txt");
+        contract = new ContractValuation("contract.txt");
+    }
+
+    @Benchmark
+    public double additive() {
+        return additive.getScore(ADDITIVE, players);
+    }
+
+    @Benchmark
+    public double schedule() {
+        return schedule.getScore(SCHEDULE, timeSlots);
+    }
+
+    @Benchmark
+    public double contract() {
+        return contract.getScore(CONTRACT, players);
+    }
+}
@@ -1,17 +1,22 @@
 package jack.auctions;
 
-import java.util.Arrays;
-import java.util.LinkedList;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Vector;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import jack.journal.Journal;
+import jack.logging.EventLog;
+import jack.metrics.MetricSource;
 import jack.server.ComThread;
 import jack.server.ClientHandler;
+import jack.server.OutboundMessage;
 import jack.scheduler.Scheduler;
 
 public abstract class AuctionBase implements Runnable
@@ -43,25 +48,66 @@ public abstract class AuctionBase implements Runnable
     /** A collection of sockets for client communication */
     protected Vector<ClientHandler> clients;
 
+    /** The clients taking part, fixed when the auction starts, or null */
+    private volatile ClientHandler[] participants = null;
 
-    /** The minium time to wait before idle function calls in ms */
-    private static final long IDLE_TIMEOUT = 50;
+    /** The budget and roster of every bidder */
+    protected Ledger ledger = new Ledger();
 
-    /** The current state of the auction */
-    private int state;
 
-    /** The lock that the state is synchronized on */
-    private Object stateLock = new Object();
+    /** The deadline value used when no deadline has been set */
+    private static final long NO_DEADLINE = Long.MAX_VALUE;
+
+    /**
+     * A message that only wakes the run loop so that it can observe a state
+     * change made by another thread. It is compared by identity, so it can
+     * never be confused with a message sent by a client.
+     */
+    private static final String WAKEUP = new String("wakeup");
+
+    /** The time at which deadlineExpired is next called, in ms */
+    private long deadline = NO_DEADLINE;
+
+    /** The name of each state, used for logging */
+    private static final String[] STATE_NAMES
+        = { null, "new", "running", "endable", "ending", "ended" };
+
+    /** The current state of the auction, only changed by compare and set */
+    private final AtomicInteger state = new AtomicInteger(STATE_NEW);
+
+    /** Released once the auction moves into STATE_ENDED */
+    private final CountDownLatch ended = new CountDownLatch(1);
+
+    /** Told about every state transition, or null */
+    private volatile StateListener stateListener = null;
+
+    /** Records every accepted message and state transition, or null */
+    private volatile Journal journal = null;
 
     /** A queue of messages to handle */
     private final BlockingQueue<String> messages;
 
     /** A map of message handlers */
-    private final Map<String, MessageHandler> handlers;
+    private final Map<String, RegisteredHandler> handlers;
+
+    /** The metrics of this auction */
+    private final AuctionMetrics metrics;
+
+    /** True if the message being handled has been rejected by its handler */
+    private boolean rejected = false;
+
+    /** The view that each incoming message is parsed into, reused */
+    private final Message message = new Message();
+
+    /** The buffer that each outgoing message is encoded into, reused */
+    private final StringBuilder encodeBuffer = new StringBuilder(256);
 
     /** Logger for writing log messages */
     private final Logger LOGGER = Logger.getLogger(AuctionBase.class.getName());
 
+    /** The log of state transitions, which must not hold up the transitions */
+    private static final EventLog EVENTS = EventLog.getLog(AuctionBase.class.getName());
+
     /**
      * Constructs an auction with the specified identification.
      * @param auctionId The unique identified of this auction
@@ -69,9 +115,18 @@ public abstract class AuctionBase implements Runnable
     public AuctionBase(int auctionId) {
         this.auctionId = auctionId;
 
-        state = STATE_NEW;
         messages = new LinkedBlockingQueue<String>();
-        handlers = new HashMap<String, MessageHandler>();
+        handlers = new HashMap<String, RegisteredHandler>();
+        metrics = new AuctionMetrics(messages, state, STATE_NAMES);
+    }
+
+    /**
+     * Returns the name of one of the auction states, for logging.
+     * @param state One of the STATE constants
+     * @return The name of the state, e.g. "endable"
+     */
+    public static String getStateName(int state) {
+        return STATE_NAMES[state];
     }
 
     /**
@@ -82,6 +137,39 @@ public abstract class AuctionBase implements Runnable
         sessionId = newSessionId;
     }
 
+    /**
+     * @return The session that this auction is a part of
+     */
+    public final int getSessionId() {
+        return sessionId;
+    }
+
+    /**
+     * Sets the journal that every message accepted by this auction and every
+     * state transition of this auction is appended to. By default nothing is
+     * journaled.
+     * @param newJournal The new journal, or null for none
+     */
+    public final void setJournal(Journal newJournal) {
+        journal = newJournal;
+    }
+
+    /**
+     * This function moves an auction that has not started straight into
+     * STATE_ENDED without running it. It is used when resuming a schedule
+     * from a journal, for auctions that ended before the schedule stopped.
+     * The transition is not journaled or reported to the state listener.
+     * @return True on success and false if the auction has already started
+     */
+    public final boolean restoreEnded() {
+        if (!state.compareAndSet(STATE_NEW, STATE_ENDED)) {
+            return false;
+        }
+        metrics.stateChanged(STATE_NEW);
+        ended.countDown();
+        return true;
+    }
+
     /**
      * This function returns the unique identifier of this auction. Each auction
      * is assigned an integer identifier suring constructor. This value can be
@@ -96,6 +184,8 @@ public abstract class AuctionBase implements Runnable
      * Sets the client handlers to use for all auction communication. When the
      * auction is started, it will register itself with these clients, and when
      * the auction is ended, it will unregister itself with these clients.
+     * Clients may be added to the set until the auction starts, but clients
+     * added after that do not take part in this auction.
      * @param newClients The new set of client handlers
      */
     public final void setClients(Vector<ClientHandler> newClients) {
@@ -103,28 +193,27 @@ public abstract class AuctionBase implements Runnable
     }
 
     /**
-     * This function sets the lock object used to protect the current state of
-     * the auction. Each auction is initially constructed with its own lock,
-     * which allows the state to be queried and set in a multithreaded
-     * environment. This function is useful when multiple auctions need to be
-     * synchronized on a single lock object, such as when they are managed by a
-     * schedule.
-     * @param newStateLock The new lock to synchronize the auction state on
+     * This function sets the listener that is told about every state
+     * transition of this auction. The listener is called by whichever thread
+     * made the transition, after it has happened, so it must be thread safe,
+     * quick, and must never block. Transitions of one auction made by
+     * different threads may be reported out of order, so a listener that
+     * cares about the exact state should call getState. This lets a scheduler
+     * react to each transition instead of rescanning every auction.
+     * @param newStateListener The new listener, or null for none
      */
-    public final void setStateLock(Object newStateLock) {
-        stateLock = newStateLock;
+    public final void setStateListener(StateListener newStateListener) {
+        stateListener = newStateListener;
     }
 
     /**
      * This function returns the current state of this auction. The state is one
      * of STATE_NEW, STATE_RUNNING, STATE_ENDABLE, STATE_ENDING, or STATE_ENDED.
-     * This function is thread safe.
+     * This function is thread safe and never blocks.
      * @return The current state of this auction
      */
     public final int getState() {
-        synchronized (stateLock) {
-            return state;
-        }
+        return state.get();
     }
 
     /**
@@ -137,7 +226,15 @@ public abstract class AuctionBase implements Runnable
      * @return True on success and false otherwise
      */
     public final boolean tryEnd() {
-        return setState(STATE_ENDING);
+        if (!setState(STATE_ENDING)) {
+            return false;
+        }
+
+        // The auction thread may be blocked waiting for a message that will
+        // never come, so wake it up to notice that it is ending.
+
+        messages.offer(WAKEUP);
+        return true;
     }
 
     /**
@@ -160,14 +257,10 @@ public abstract class AuctionBase implements Runnable
      * This function is thread safe.
      */
     public final void waitForEnd() {
-        synchronized (stateLock) {
-            try {
-                while (state != STATE_ENDED) {
-                    stateLock.wait();
-                }
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
-            }
+        try {
+            ended.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
     }
 
@@ -209,32 +302,39 @@ public abstract class AuctionBase implements Runnable
         sendMessage("auction", params);
     }
 
+    /**
+     * This function sends the auction specification to a single client, such
+     * as a client that joins after the specification was sent to the others.
+     * @param client The client to send the specification to
+     */
+    public void sendSpec(ClientHandler client) {
+        sendMessage("auction", params, new ClientHandler[] { client });
+    }
+
     /**
      * This function runs the auction. All auctions at their most basic level
      * can be represented as a series of messages passed between the auctions
      * and thir bidders. This function tries to take care of most of the leg
      * work of receiving messages. It drains the message queue and passes each
-     * message to its registered handler. When their are no messages to drain it
-     * calls the idle function in which a subclass can do whatever they would
-     * like.
+     * message to its registered handler. Between messages the auction thread
+     * blocks until either a new message arrives or the deadline registered by
+     * the subclass expires, in which case it calls deadlineExpired. An auction
+     * without a deadline does not wake up at all until it receives a message
+     * or is ended.
      */
     @Override
     public void run() {
 
-        // If this auction has already been run then it cannot be run again.
-        // This restriction could be relaxed in the future, but for the moment
-        // it seems like the safest behavior.
-
-        if (getState() != STATE_NEW) {
-            return;
-        }
-
         // Initialize the auction. This involes setting the state to be
         // STATE_RUNNING, registering the auction with the ComThreads so that
         // they can receive messages from the bidders, and calling the auction
-        // specific initialization routine.
+        // specific initialization routine. If this auction has already been
+        // run then it cannot be run again. The check and the transition are
+        // a single step so that two threads cannot both start the auction.
 
-        setState(STATE_RUNNING);
+        if (!setState(STATE_RUNNING)) {
+            return;
+        }
         register();
         initialize();
 
@@ -247,45 +347,60 @@ public abstract class AuctionBase implements Runnable
 
             while (getState() < STATE_ENDING) {
 
-                // Get the message off the top of the queue. If there is no
-                // message then idle and try again.
+                // Get the message off the top of the queue, waiting no longer
+                // than the current deadline. If the deadline has passed then
+                // clear it, let the subclass handle it and try again.
 
-                String message = messages.poll(IDLE_TIMEOUT,
-                                               TimeUnit.MILLISECONDS);
-                if (message == null) {
-                    idle();
+                String line = nextMessage();
+                if (line == null) {
+                    deadline = NO_DEADLINE;
+                    deadlineExpired();
+                    continue;
+                }
+                if (line == WAKEUP) {
                     continue;
                 }
 
-                // Split the message by whitespace. Here we expect an auction
+                // Parse the message in place. Here we expect an auction
                 // message starts with the type and is followed by an
                 // unspecified number of key=value pairs:
                 // "messageType key1=value1 ... keyN=valueN"
                 // Messages that do not fit this format will either not be
                 // processed or processed incorrectly.
 
-                String[] keyVals = message.split("\\s+");
-                if (keyVals.length > 0) {
-
-                    // Parse the message type and the arguments
-
-                    String messageType = keyVals[0];
-                    Map<String, String> args =
-                        toMap(Arrays.copyOfRange(keyVals, 1, keyVals.length));
-
-                    // Pass the message to the appropriate handler and
-                    // ignore any unknown messages.
-
-                    MessageHandler handler = handlers.get(messageType);
-                    if (handler != null) {
-                        try {
-                            handler.handle(args);
-                        } catch (IllegalArgumentException e) {
-                            LOGGER.warning(e.toString());
+                message.parse(line);
+
+                // Pass the message to the appropriate handler and ignore any
+                // unknown messages.
+
+                RegisteredHandler handler = findHandler(message);
+                if (handler != null) {
+                    rejected = false;
+                    long start = System.nanoTime();
+                    try {
+                        handler.handler.handle(message);
+                        handler.metrics.latency.record(System.nanoTime() - start);
+                        if (rejected) {
+                            handler.metrics.rejected.increment();
+                        } else {
+                            handler.metrics.accepted.increment();
+
+                            // Only accepted messages are journaled, as the
+                            // others have no effect on the auction.
+
+                            Journal current = journal;
+                            if (current != null) {
+                                current.appendMessage(sessionId, auctionId, line);
+                            }
                         }
-                    } else {
-                        LOGGER.warning("Unknown message type: " + messageType);
+                    } catch (IllegalArgumentException e) {
+                        handler.metrics.latency.record(System.nanoTime() - start);
+                        handler.metrics.rejected.increment();
+                        LOGGER.warning(e.toString());
                     }
+                } else {
+                    metrics.unknownMessage();
+                    LOGGER.warning("Unknown message type: " + message.getType());
                 }
             }
         } catch (InterruptedException e) {
@@ -308,11 +423,54 @@ public abstract class AuctionBase implements Runnable
     protected void initialize() {}
 
     /**
-     * Called whenever there are no messages to process. Subclasses should
-     * override this method if they want to perform actions that are not
-     * triggered by client messages, such as timed events.
+     * Called when the deadline registered with setDeadline expires. The
+     * deadline is cleared before this is called, so it is called once per
+     * deadline. Subclasses should override this method if they want to perform
+     * actions that are not triggered by client messages, such as timed events,
+     * and may register a new deadline from here.
+     */
+    protected void deadlineExpired() throws InterruptedException {}
+
+    /**
+     * Sets the time at which deadlineExpired should be called, replacing any
+     * previous deadline. A deadline in the past expires as soon as the current
+     * message has been handled. This should only be called from the auction
+     * thread, i.e. from initialize, a message handler or deadlineExpired.
+     * @param time The deadline in milliseconds since the epoch
+     */
+    protected final void setDeadline(long time) {
+        deadline = time;
+    }
+
+    /**
+     * Clears the current deadline, if any, so that deadlineExpired is not
+     * called until a new deadline is set.
+     */
+    protected final void clearDeadline() {
+        deadline = NO_DEADLINE;
+    }
+
+    /**
+     * Returns the next message on the queue, blocking until one arrives or the
+     * deadline expires. Returns null once the deadline has expired.
      */
-    protected void idle() throws InterruptedException {}
+    private String nextMessage() throws InterruptedException {
+        if (deadline == NO_DEADLINE) {
+            return messages.take();
+        }
+
+        // The queue measures its timeout on a different clock than the
+        // deadline, so only report expiry once the deadline has really passed.
+
+        long remaining;
+        while ((remaining = deadline - System.currentTimeMillis()) > 0) {
+            String message = messages.poll(remaining, TimeUnit.MILLISECONDS);
+            if (message != null) {
+                return message;
+            }
+        }
+        return messages.poll();
+    }
 
     /**
      * Called immediately after the auction ends. Subclasses should override
@@ -329,7 +487,32 @@ public abstract class AuctionBase implements Runnable
      * @param handler The handler responsible for handling this message type.
      */
     protected final void putHandler(String type, MessageHandler handler) {
-        handlers.put(type, handler);
+        handlers.put(type, new RegisteredHandler(handler, metrics.getHandler(type)));
+    }
+
+    /**
+     * Marks the message being handled as rejected, for the metrics of its
+     * handler. Handlers should call this for messages that are well formed
+     * but have no effect, such as a bid that does not beat the high bid.
+     * Malformed messages should throw an IllegalArgumentException instead.
+     * This should only be called from a message handler.
+     */
+    protected final void rejectMessage() {
+        rejected = true;
+    }
+
+    /**
+     * Returns the handler for the type of the message, or null if there is
+     * none. There are only ever a handful of handlers, so comparing the type
+     * in place is cheaper than copying it out of the message for a lookup.
+     */
+    private final RegisteredHandler findHandler(Message message) {
+        for (Map.Entry<String, RegisteredHandler> entry : handlers.entrySet()) {
+            if (message.isType(entry.getKey())) {
+                return entry.getValue();
+            }
+        }
+        return null;
     }
 
     /**
@@ -340,12 +523,34 @@ public abstract class AuctionBase implements Runnable
      * @param args A key value map of arguments to pass with that message
      */
     protected final void sendMessage(String type, Map<String, String> args) {
+        ClientHandler[] targets = participants;
+        if (targets == null) {
+            targets = clients.toArray(new ClientHandler[0]);
+        }
+        sendMessage(type, args, targets);
+    }
+
+    /**
+     * Sends a message of the specified type with the specified parameters to
+     * the given clients, with the sessionId and auctionId appended.
+     */
+    private void sendMessage(String type, Map<String, String> args, ClientHandler[] targets) {
         args.put("sessionId", Integer.toString(sessionId));
         args.put("auctionId", Integer.toString(auctionId));
 
-        String message = type + toString(args);
-        for (ClientHandler client : clients) {
-            client.sendMessage(message);
+        // The buffer is shared by every thread that sends for this auction
+
+        String message;
+        synchronized (encodeBuffer) {
+            encodeBuffer.setLength(0);
+            message = Message.encode(encodeBuffer, type, args).toString();
+        }
+
+        // Encode the message to bytes once and share them between clients
+
+        OutboundMessage outbound = new OutboundMessage(message);
+        for (ClientHandler client : targets) {
+            client.sendMessage(outbound);
         }
     }
 
@@ -361,87 +566,97 @@ public abstract class AuctionBase implements Runnable
 
     /**
      * This function attempts to transition the auction to the specified state.
-     * This function represents the core auction state machine. If the auction
-     * can transition to the specified state this function will return true
-     * otherwise it will return false. This function is thread safe.
+     * If the auction can transition to the specified state this function will
+     * return true otherwise it will return false. The transition is a single
+     * compare and set, so when two threads race to move the auction out of
+     * the same state exactly one of them succeeds. This function is thread
+     * safe and never blocks.
      * @param newState The state to try and transitions into
      * @return True on success and false on failure
      */
     private final boolean setState(int newState) {
-        synchronized (stateLock) {
-            switch (state) {
+        while (true) {
+            int oldState = state.get();
+            if (!isTransition(oldState, newState)) {
+                return false;
+            }
+            if (!state.compareAndSet(oldState, newState)) {
+                continue;
+            }
+            metrics.stateChanged(oldState);
 
-                // Auctions in STATE_NEW can only transition to STATE_RUNNING.
-                // This happens the first time that the auctions run method is
-                // called. Auctions in STATE_RUNNING can send and receive
-                // message from their clients.
+            if (EVENTS.isLoggable(Level.FINE)) {
+                EVENTS.log(Level.FINE, "Auction {} {}", auctionId, STATE_NAMES[newState]);
+            }
 
-                case STATE_NEW:
-                    if (newState != STATE_RUNNING) {
-                        return false;
-                    }
-                    LOGGER.fine(String.format("Auction %d running\n", auctionId));
-                    state = STATE_RUNNING;
-                    stateLock.notify();
-                    return true;
-
-                // Auctions in STATE_RUNNING can only transition to
-                // STATE_ENDABLE. This happens when an auction subclass
-                // determines that it can be ended. Auction in STATE_ENDABLE can
-                // still send and receive message from their clients.
-
-                case STATE_RUNNING:
-                    if (newState != STATE_ENDABLE) {
-                        return false;
-                    }
-                    LOGGER.fine(String.format("Auction %d endable\n", auctionId));
-                    state = STATE_ENDABLE;
-                    stateLock.notify();
-                    return true;
-
-                // Auctions in STATE_ENDABLE can transition either to
-                // STATE_RUNNING or STATE_ENDING. Transitioning back to
-                // STATE_RUNNING can be done by a subclass by calling tryResume,
-                // and transitioning to STATE_ENDING can be done by a schedular
-                // by calling tryEnd.
-
-                case STATE_ENDABLE:
-                    if (newState == STATE_RUNNING) {
-                        LOGGER.fine(String.format("Auction %d running\n", auctionId));
-                        state = STATE_RUNNING;
-                        stateLock.notify();
-                        return true;
-                    }
-                    if (newState == STATE_ENDING) {
-                        LOGGER.fine(String.format("Auction %d ending\n", auctionId));
-                        state = STATE_ENDING;
-                        stateLock.notify();
-                        return true;
-                    }
-                    return false;
+            // Journal the transition before anyone waiting on it is released,
+            // so that the journal is never behind what they go on to do.
 
-                // Auctions in STATE_ENDING can no longer send and receive
-                // messages from their clients, but they have no been officially
-                // resolved. From here the only state that can be transitioned
-                // to is STATE_ENDED.
+            Journal transitions = journal;
+            if (transitions != null) {
+                transitions.appendState(sessionId, auctionId, oldState, newState);
+            }
+            if (newState == STATE_ENDED) {
+                ended.countDown();
+            }
 
-                case STATE_ENDING:
-                    if (newState != STATE_ENDED) {
-                        return false;
-                    }
-                    LOGGER.fine(String.format("Auction %d ended\n", auctionId));
-                    state = STATE_ENDED;
-                    stateLock.notify();
-                    return true;
-
-                // STATE_ENDED is a terminal state, and once here an auction is
-                // essentially useless, except to query for information about
-                // the bids placed while it was running.
-
-                default:
-                case STATE_ENDED:
-                    return false;
+            StateListener listener = stateListener;
+            if (listener != null) {
+                listener.stateChanged(this, oldState, newState);
             }
+            return true;
+        }
+    }
+
+    /**
+     * This function represents the core auction state machine. It returns true
+     * if an auction may move from the old state into the new state.
+     * @param oldState The state the auction is in
+     * @param newState The state to try and transition into
+     * @return True if the transition is allowed
+     */
+    private static boolean isTransition(int oldState, int newState) {
+        switch (oldState) {
+
+            // Auctions in STATE_NEW can only transition to STATE_RUNNING.
+            // This happens the first time that the auctions run method is
+            // called. Auctions in STATE_RUNNING can send and receive message
+            // from their clients.
+
+            case STATE_NEW:
+                return newState == STATE_RUNNING;
+
+            // Auctions in STATE_RUNNING can only transition to STATE_ENDABLE.
+            // This happens when an auction subclass determines that it can be
+            // ended. Auction in STATE_ENDABLE can still send and receive
+            // message from their clients.
+
+            case STATE_RUNNING:
+                return newState == STATE_ENDABLE;
+
+            // Auctions in STATE_ENDABLE can transition either to STATE_RUNNING
+            // or STATE_ENDING. Transitioning back to STATE_RUNNING can be done
+            // by a subclass by calling tryResume, and transitioning to
+            // STATE_ENDING can be done by a schedular by calling tryEnd.
+
+            case STATE_ENDABLE:
+                return newState == STATE_RUNNING || newState == STATE_ENDING;
+
+            // Auctions in STATE_ENDING can no longer send and receive messages
+            // from their clients, but they have no been officially resolved.
+            // From here the only state that can be transitioned to is
+            // STATE_ENDED.
+
+            case STATE_ENDING:
+                return newState == STATE_ENDED;
+
+            // STATE_ENDED is a terminal state, and once here an auction is
+            // essentially useless, except to query for information about the
+            // bids placed while it was running.
+
+            default:
+            case STATE_ENDED:
+                return false;
         }
     }
 
@@ -449,10 +664,13 @@ public abstract class AuctionBase implements Runnable
      * This function registers this auction with all of its clients. Once
      * registered this auction will receive message from these clients, which
      * will be palced in the message queue and passed to their corresponding
-     * handlers.
+     * handlers. The clients are fixed from here on, so that clients that join
+     * later are neither sent messages nor unregistered by this auction.
      */
     private final void register() {
-        for (ClientHandler client : clients) {
+        ClientHandler[] current = clients.toArray(new ClientHandler[0]);
+        participants = current;
+        for (ClientHandler client : current) {
             client.register(this);
         }
     }
@@ -463,30 +681,11 @@ public abstract class AuctionBase implements Runnable
      * its clients.
      */
     private final void unregister() {
-        for (ClientHandler client : clients) {
+        for (ClientHandler client : participants) {
             client.unregister(this);
         }
     }
 
-    /**
-     * Constructs a map from an array of key value strings. Each string in the
-     * array should be of the form "key=value". Extra whitespace on either end
-     * of the key or value will be trimmed. Any non conformant strings will be
-     * silently ignored.
-     * @param keyVals An array of strings of the form "key=value"
-     * @return A map of values indexed by their corresponding keys
-     */
-    private static final Map<String, String> toMap(String[] keyVals) {
-        Map<String, String> m = new HashMap<String, String>();
-        for (String keyVal : keyVals) {
-            String[] pair = keyVal.split("=");
-            if (pair.length == 2) {
-                m.put(pair[0].trim(), pair[1].trim());
-            }
-        }
-        return m;
-    }
-
     /**
      * Constructs a key value string from a map of strings. Each key value pair
      * in the result will be of the form "key=value" seperated from ech other by
@@ -495,55 +694,71 @@ public abstract class AuctionBase implements Runnable
      * @return A string of key value pairs
      */
     public static final String toString(Map<String, String> keyVals) {
-        String s = new String();
-        for (Map.Entry<String, String> entry : keyVals.entrySet()) {
-            s += " " + entry.getKey() + "=" + entry.getValue().replace(' ', '_');
-        }
-        return s;
+        return Message.encode(new StringBuilder(), "", keyVals).toString();
     }
 
     /**
-     * New method to exchange the budget
-     * @return HashMap with budgets
+     * Sets the ledger holding the budget and roster of every bidder. The
+     * scheduler hands the same ledger to each auction it starts, so that the
+     * auctions of a draft see each other's results.
+     * @param newLedger The new ledger
      */
-    public Map<String, Integer> getBudgets(){
-	return null;
+    public void setLedger(Ledger newLedger) {
+        ledger = newLedger;
     }
 
     /**
-     * New method  to set the budgets
+     * @return The ledger holding the budget and roster of every bidder
      */
-    public void setBudgets(Map<String, Integer> newBudgets){
+    public Ledger getLedger() {
+        return ledger;
     }
 
-
     /**
-     * New method to update budgets
+     * Returns the metrics of this auction, which cover its message queue, its
+     * message handlers and the time it spends in each state. They are kept
+     * from the moment the auction is constructed.
+     * @return The metrics of this auction
      */
-    public void updateBudgets(){
-    }    
-
-    protected interface MessageHandler {
-        public void handle(Map<String, String> args) throws IllegalArgumentException;
+    public final MetricSource getMetrics() {
+        return metrics;
     }
 
     /**
-     * New method to track roster
+     * Records the result of this auction in the ledger. This is called once by
+     * the scheduler, after the auction has been told to end, so it is never
+     * called for an auction that resumes instead. By default it does nothing.
      */
-    public void updateRosters(){
-    }  
+    public void updateLedger() {
+    }
 
     /**
-     * New method  to set the rosters
+     * Handles a single message type. The arguments passed to handle are a view
+     * of the message that is reused for the next message, so handlers that
+     * need to keep them must make a copy. Numeric fields can be read with
+     * Message.getInt, which does not copy them out of the line.
      */
-    public void setRosters(Map<String, LinkedList<String>> newRoster){
+    protected interface MessageHandler {
+        public void handle(Message args) throws IllegalArgumentException;
+    }
+
+    /** A message handler along with its metrics */
+    private static final class RegisteredHandler {
+        final MessageHandler handler;
+        final AuctionMetrics.HandlerMetrics metrics;
+
+        RegisteredHandler(MessageHandler handler, AuctionMetrics.HandlerMetrics metrics) {
+            this.handler = handler;
+            this.metrics = metrics;
+        }
     }
 
     /**
-     * New method to exchange the roster
-     * @return HashMap with budgets
+     * The StateListener is told about each transition of the auction state
+     * machine, as described in setStateListener. It is called without any
+     * lock held.
      */
-    public Map<String, LinkedList<String>> getRosters(){
-	return null;
+    public interface StateListener {
+        public void stateChanged(AuctionBase auction, int oldState, int newState);
     }
 }
@@ -0,0 +1,126 @@
+package jack.auctions;
+
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import jack.metrics.LatencyHistogram;
+import jack.metrics.MetricSource;
+
+/**
+ * The metrics of a single auction: the number of messages waiting to be
+ * handled, the messages accepted and rejected by each handler along with how
+ * long it took to handle them, and the time spent in each state. Everything is
+ * recorded with uncontended counters by the threads that drive the auction,
+ * and only added up when the metrics are sampled.
+ */
+class AuctionMetrics implements MetricSource {
+
+    /** The messages waiting to be handled */
+    private final BlockingQueue<String> messages;
+
+    /** The current state of the auction */
+    private final AtomicInteger state;
+
+    /** The name of each state, by state */
+    private final String[] stateNames;
+
+    /** The metrics of each handler, by message type */
+    private final Map<String, HandlerMetrics> handlers
+        = new ConcurrentSkipListMap<String, HandlerMetrics>();
+
+    /** Messages of a type that no handler handles */
+    private final LongAdder unknownMessages = new LongAdder();
+
+    /** The time spent in each state before the current one, in ns, by state */
+    private final LongAdder[] stateTimes;
+
+    /** The time at which the auction entered its current state, in ns */
+    private final AtomicLong stateSince = new AtomicLong(System.nanoTime());
+
+    /**
+     * @param messages The messages waiting to be handled
+     * @param state The current state of the auction
+     * @param stateNames The name of each state, by state
+     */
+    AuctionMetrics(BlockingQueue<String> messages, AtomicInteger state, String[] stateNames) {
+        this.messages = messages;
+        this.state = state;
+        this.stateNames = stateNames;
+        stateTimes = new LongAdder[stateNames.length];
+        for (int i = 0; i < stateTimes.length; ++i) {
+            stateTimes[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Returns the metrics of the handler for the given type of message,
+     * creating them if this is the first handler of that type.
+     * @param type The message type
+     * @return The metrics of the handler
+     */
+    HandlerMetrics getHandler(String type) {
+        HandlerMetrics handler = handlers.get(type);
+        if (handler == null) {
+            handler = new HandlerMetrics();
+            handlers.put(type, handler);
+        }
+        return handler;
+    }
+
+    /** Records a message of a type that no handler handles. */
+    void unknownMessage() {
+        unknownMessages.increment();
+    }
+
+    /**
+     * Records that the auction has left the given state. This is called once
+     * for every transition, by the thread that made it.
+     * @param oldState The state the auction left
+     */
+    void stateChanged(int oldState) {
+        long now = System.nanoTime();
+        stateTimes[oldState].add(now - stateSince.getAndSet(now));
+    }
+
+    @Override
+    public void sample(Map<String, Number> values) {
+        values.put("queueDepth", messages.size());
+        values.put("unknownMessages", unknownMessages.sum());
+        for (Map.Entry<String, HandlerMetrics> entry : handlers.entrySet()) {
+            String prefix = "handler." + entry.getKey();
+            HandlerMetrics handler = entry.getValue();
+            values.put(prefix + ".accepted", handler.accepted.sum());
+            values.put(prefix + ".rejected", handler.rejected.sum());
+            handler.latency.sample(prefix + ".latencyNs", values);
+        }
+
+        // The time in the current state has not been added to its total yet
+
+        int current = state.get();
+        long inCurrent = System.nanoTime() - stateSince.get();
+        for (int i = 1; i < stateNames.length; ++i) {
+            long time = stateTimes[i].sum() + (i == current ? inCurrent : 0);
+            values.put("state." + stateNames[i] + ".ms", time / 1000000);
+        }
+    }
+
+    /**
+     * The metrics of a single message handler. A message is accepted unless
+     * the handler throws an IllegalArgumentException or marks it as rejected.
+     */
+    static final class HandlerMetrics {
+
+        /** Messages that the handler accepted */
+        final LongAdder accepted = new LongAdder();
+
+        /** Messages that the handler rejected */
+        final LongAdder rejected = new LongAdder();
+
+        /** How long the handler took with each message, in ns */
+        final LatencyHistogram latency = new LatencyHistogram();
+    }
+}
@@ -4,7 +4,9 @@ import java.util.Map;
 import java.util.HashMap;
 import java.util.Vector;
 import java.util.LinkedList;
+import java.util.logging.Level;
 
+import jack.logging.EventLog;
 import jack.server.*;
 
 /**
@@ -35,12 +37,10 @@ public class DPA extends AuctionBase
 
     /** The time to wait before going from endable to ended*/
     private long endDelay = 5000;
-    
-    /** Complilation of known bidder's budgets */
-    private Map<String, Integer> budgets = new HashMap<String, Integer>();
 
-    /** Roster for each bidder */
-    private Map<String, LinkedList<String>> rosters = new HashMap<String, LinkedList<String>>();
+    /** The log of bidding events */
+    private static final EventLog EVENTS = EventLog.getLog(DPA.class.getName());
+    
 
     /**
      * Constructs a single ascending auction as part of a draft
@@ -62,59 +62,19 @@ public class DPA extends AuctionBase
     }
     
     /**
-     * New class to exchange the budget
-     * @return HashMap with budgets
-     */
-    public Map<String, Integer> getBudgets(){
-    	return budgets;
-    }
-    
-    /**
-     * New class to set the budgets
-     */
-    public void setBudgets(Map<String, Integer> newBudgets){
-    	budgets = newBudgets;
-    }
-
-    /**
-     * New class to update the budget
+     * Records the sale in the ledger. The high bidder pays the high bid out of
+     * its budget and this auction is added to its roster.
      */
-    public void updateBudgets(){
-        budgets.put(highBidder, (highBudget-highBid));
-    }
-   
-     /**
-     * New method to exchange the roster
-     * @return HashMap with roster
-     */
-    public Map<String, LinkedList<String>> getRosters(){
-    	return rosters;
-    }
-    
-    /**
-     * New method to set the rosters
-     */
-    public void setRosters(Map<String, LinkedList<String>> newRosters){
-    	rosters = newRosters;
-    }
-
-    /**
-     * New method to update the rosters
-     */
-    public void updateRosters(){
-        if(rosters.containsKey(highBidder)){
-		LinkedList<String> templl = rosters.get(highBidder);
-		templl.add(Integer.toString(auctionId));
-		rosters.put(highBidder, templl);
-	}else{
-		LinkedList<String> ll = new LinkedList<String>();
-		ll.add(Integer.toString(auctionId));
-		rosters.put(highBidder, ll);
-	}
+    @Override
+    public void updateLedger() {
+        if (highBidder == null) {
+            return;
+        }
+        int bidder = ledger.indexOfBidder(highBidder);
+        ledger.setBudget(bidder, highBudget - highBid);
+        ledger.addToRoster(bidder, Integer.toString(auctionId));
     }
 
-
-
     @Override
     protected void resolve() {
         sendStop();
@@ -128,14 +88,13 @@ public class DPA extends AuctionBase
     }
 
     @Override
-    protected void idle() {
-        if (System.currentTimeMillis() > endTime) {
-            tryEndable();
-        }
+    protected void deadlineExpired() {
+        tryEndable();
     }
 
     private void sendStart() {
         endTime = System.currentTimeMillis() + MAX_TIMEOUT;
+        setDeadline(endTime);
         long seconds = MAX_TIMEOUT / 1000;
         Map<String, String> args = new HashMap<String, String>();
         args.put("timer", Long.toString(seconds));
@@ -163,9 +122,7 @@ public class DPA extends AuctionBase
     }
 
     private class BidHandler2 implements MessageHandler {
-        public void handle(Map<String, String> args) throws IllegalArgumentException {
-            System.out.println("BidHandler::handle()");
-
+        public void handle(Message args) throws IllegalArgumentException {
             // Verify this message contains the correct keys
             if (!args.containsKey("sessionId") || !args.containsKey("auctionId") ||
                 !args.containsKey("bidderId") || !args.containsKey("bid")) {
@@ -173,27 +130,26 @@ public class DPA extends AuctionBase
             }
 
             // Get the required values
-            int msgSessionId = Integer.parseInt(args.get("sessionId"));
-            int msgAuctionId = Integer.parseInt(args.get("auctionId"));
+            int msgSessionId = args.getInt("sessionId");
+            int msgAuctionId = args.getInt("auctionId");
             String msgBidderId = args.get("bidderId");
-            int msgBid = Integer.parseInt(args.get("bid"));
+            int msgBid = args.getInt("bid");
 
-            // Silently ignore this message as it was not meant for us.
+            // Reject this message as it was not meant for us.
             if (msgSessionId != sessionId || msgAuctionId != auctionId) {
+                rejectMessage();
                 return;
             }
             
             //Finds this Bidder's budget or assumes max budget
             /** Budgets start at 200 */
-            int currentBudget = 0;
-            if(!budgets.containsKey(msgBidderId)){
-            	budgets.put(msgBidderId, 200);
+            int bidder = ledger.indexOfBidder(msgBidderId);
+            int currentBudget = ledger.getBudget(bidder);
+            if(currentBudget == Ledger.NO_BUDGET){
+            	ledger.setBudget(bidder, 200);
             	currentBudget = 200;
-		System.out.println("New bidder");
-            }else{
-		currentBudget = budgets.get(msgBidderId);
-		System.out.println("Old soul");
-	    }           
+            	EVENTS.log(Level.FINE, "Auction {} budgeted new bidder {}", auctionId, msgBidderId);
+            }
 	   
             int seconds = ((int) (endTime - System.currentTimeMillis())) / 1000;
             // Check for high bid
@@ -202,7 +158,10 @@ public class DPA extends AuctionBase
                 highBid = seconds;
 		highBudget = currentBudget;
 		endTime = 0;
+		setDeadline(endTime);
 		sendStatus();
+            } else {
+                rejectMessage();
             }
         }
     }
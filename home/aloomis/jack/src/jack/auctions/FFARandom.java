@@ -36,11 +36,6 @@ public class FFARandom extends AuctionBase
     /** The time to wait before going from endable to ended*/
     private long endDelay = 5000;
     
-    /** Complilation of known bidder's budgets */
-    private Map<String, Integer> budgets = new HashMap<String, Integer>();
-
-    /** Roster for each bidder */
-    private Map<String, LinkedList<String>> rosters = new HashMap<String, LinkedList<String>>();
 
     /**
      * Constructs a single ascending auction as part of a draft
@@ -67,59 +62,19 @@ public class FFARandom extends AuctionBase
     }
     
     /**
-     * New class to exchange the budget
-     * @return HashMap with budgets
-     */
-    public Map<String, Integer> getBudgets(){
-    	return budgets;
-    }
-    
-    /**
-     * New class to set the budgets
-     */
-    public void setBudgets(Map<String, Integer> newBudgets){
-    	budgets = newBudgets;
-    }
-
-    /**
-     * New class to update the budget
-     */
-    public void updateBudgets(){
-        budgets.put(highBidder, (highBudget-highBid));
-    }
-   
-     /**
-     * New method to exchange the roster
-     * @return HashMap with roster
-     */
-    public Map<String, LinkedList<String>> getRosters(){
-    	return rosters;
-    }
-    
-    /**
-     * New method to set the rosters
-     */
-    public void setRosters(Map<String, LinkedList<String>> newRosters){
-    	rosters = newRosters;
-    }
-
-    /**
-     * New method to update the rosters
+     * Records the sale in the ledger. The high bidder pays the high bid out of
+     * its budget and this auction is added to its roster.
      */
-    public void updateRosters(){
-        if(rosters.containsKey(highBidder)){
-		LinkedList<String> templl = rosters.get(highBidder);
-		templl.add(Integer.toString(auctionId));
-		rosters.put(highBidder, templl);
-	}else{
-		LinkedList<String> ll = new LinkedList<String>();
-		ll.add(Integer.toString(auctionId));
-		rosters.put(highBidder, ll);
-	}
+    @Override
+    public void updateLedger() {
+        if (highBidder == null) {
+            return;
+        }
+        int bidder = ledger.indexOfBidder(highBidder);
+        ledger.setBudget(bidder, highBudget - highBid);
+        ledger.addToRoster(bidder, Integer.toString(auctionId));
     }
 
-
-
     @Override
     protected void resolve() {
         sendStop();
@@ -133,14 +88,13 @@ public class FFARandom extends AuctionBase
     }
 
     @Override
-    protected void idle() {
-        if (System.currentTimeMillis() > endTime) {
-            tryEndable();
-        }
+    protected void deadlineExpired() {
+        tryEndable();
     }
 
     private void sendStart() {
         endTime = System.currentTimeMillis() + MAX_TIMEOUT;
+        setDeadline(endTime);
         long seconds = MAX_TIMEOUT / 1000;
         Map<String, String> args = new HashMap<String, String>();
         args.put("timer", Long.toString(seconds));
@@ -168,9 +122,7 @@ public class FFARandom extends AuctionBase
     }
 
     private class BidHandler2 implements MessageHandler {
-        public void handle(Map<String, String> args) throws IllegalArgumentException {
-            System.out.println("BidHandler::handle()");
-              
+        public void handle(Message args) throws IllegalArgumentException {
         }
     }
 }
@@ -68,14 +68,13 @@ public class FantasyFootballAuction extends AuctionBase
     }
 
     @Override
-    protected void idle() {
-        if (System.currentTimeMillis() > endTime) {
-            tryEndable();
-        }
+    protected void deadlineExpired() {
+        tryEndable();
     }
 
     private void sendStart() {
         endTime = System.currentTimeMillis() + MAX_TIMEOUT;
+        setDeadline(endTime);
         long seconds = MAX_TIMEOUT / 1000;
         Map<String, String> args = new HashMap<String, String>();
         args.put("timer", Long.toString(seconds));
@@ -103,9 +102,7 @@ public class FantasyFootballAuction extends AuctionBase
     }
 
     private class BidHandler implements MessageHandler {
-        public void handle(Map<String, String> args) throws IllegalArgumentException {
-            System.out.println("BidHandler::handle()");
-
+        public void handle(Message args) throws IllegalArgumentException {
             // Verify this message contains the correct keys
 
             if (!args.containsKey("sessionId") || !args.containsKey("auctionId") ||
@@ -115,14 +112,15 @@ public class FantasyFootballAuction extends AuctionBase
 
             // Get the required values
 
-            int msgSessionId = Integer.parseInt(args.get("sessionId"));
-            int msgAuctionId = Integer.parseInt(args.get("auctionId"));
+            int msgSessionId = args.getInt("sessionId");
+            int msgAuctionId = args.getInt("auctionId");
             String msgBidderId = args.get("bidderId");
-            int msgBid = Integer.parseInt(args.get("bid"));
+            int msgBid = args.getInt("bid");
 
-            // Silently ignore this message as it was not meant for us.
+            // Reject this message as it was not meant for us.
 
             if (msgSessionId != sessionId || msgAuctionId != auctionId) {
+                rejectMessage();
                 return;
             }
 
@@ -136,6 +134,7 @@ public class FantasyFootballAuction extends AuctionBase
                 long currTime = System.currentTimeMillis();
                 if (endTime - currTime < MIN_TIMEOUT) {
                     endTime = currTime + MIN_TIMEOUT;
+                    setDeadline(endTime);
                 }
 
                 sendStatus();
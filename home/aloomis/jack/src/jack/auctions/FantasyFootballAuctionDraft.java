@@ -104,7 +104,7 @@ public class FantasyFootballAuctionDraft implements Auction {
         public void setParams(Map<String, String> params) {}
 
         private class BidderHandler implements MessageHandler {
-            public void handle(Map<String, String> args)  throws IllegalArgumentException {
+            public void handle(Message args)  throws IllegalArgumentException {
 
                 // Verify this message contains the correct keys
 
@@ -114,12 +114,13 @@ public class FantasyFootballAuctionDraft implements Auction {
 
                 // Get the required values
 
-                int msgSessionId = Integer.parseInt(args.get("sessionId"));
+                int msgSessionId = args.getInt("sessionId");
                 String bidderId = args.get("bidderId");
 
-                // Silently ignore this message as it was not meant for us.
+                // Reject this message as it was not meant for us.
 
                 if (msgSessionId != sessionId) {
+                    rejectMessage();
                     return;
                 }
 
@@ -0,0 +1,454 @@
+package jack.auctions;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The Ledger holds the budget and roster of every bidder in a session. It is
+ * shared by the auctions of a draft, each of which records its result in the
+ * ledger as it ends, and it is handed from one auction to the next by the
+ * scheduler.
+ *
+ * Bidders and players are each given a dense index the first time they are
+ * seen, and the indices are shared by every snapshot of the ledger. Budgets
+ * are kept in an int array indexed by bidder, and each roster is an int array
+ * of player indices. A snapshot shares its arrays with the ledger it was taken
+ * from, so taking one costs O(1); whichever of the two is changed first copies
+ * the arrays it changes. Roster arrays are never changed in place, so they
+ * can always be shared.
+ *
+ * Players may also be registered with an estimated value, which lets the
+ * ledger answer which player is the best one still available. Each ledger
+ * keeps a heap of the registered players ordered by estimated value. A player
+ * is only removed from the heap when it reaches the top and is found to be
+ * taken, so marking a player as taken stays O(1) and finding the best
+ * available player takes O(log n) amortized. This class is thread safe.
+ */
+public final class Ledger {
+
+    /** The budget of a bidder whose budget is not known */
+    public static final int NO_BUDGET = Integer.MIN_VALUE;
+
+    private static final int[] EMPTY_ROSTER = new int[0];
+
+    /** The names of bidders and players, shared by every snapshot */
+    private final Names names;
+
+    /** The budget of each bidder, or NO_BUDGET */
+    private int[] budgets;
+
+    /** The players drafted by each bidder, in the order they were drafted */
+    private int[][] rosters;
+
+    /** The players on any roster */
+    private BitSet taken;
+
+    /** The number of bidders with a budget or a roster */
+    private int size;
+
+    /** True if the arrays are shared with a snapshot and must be copied */
+    private boolean shared = false;
+
+    /** Heap of registered player indices, best first, or null until needed */
+    private int[] heap = null;
+
+    /** The number of players in the heap */
+    private int heapSize = 0;
+
+    /** The number of registered players that have been added to the heap */
+    private int heapSeen = 0;
+
+    /** Constructs an empty ledger. */
+    public Ledger() {
+        this(new Names(), new int[8], new int[8][], new BitSet(), 0);
+        Arrays.fill(budgets, NO_BUDGET);
+    }
+
+    private Ledger(Names names, int[] budgets, int[][] rosters, BitSet taken, int size) {
+        this.names = names;
+        this.budgets = budgets;
+        this.rosters = rosters;
+        this.taken = taken;
+        this.size = size;
+    }
+
+    /**
+     * Returns the index of the bidder, giving it the next index if it has not
+     * been seen before.
+     * @param bidder The id of the bidder
+     * @return The index of the bidder
+     */
+    public int indexOfBidder(String bidder) {
+        if (bidder == null) {
+            throw new IllegalArgumentException("bidder must not be null");
+        }
+        return names.bidders.indexOf(bidder);
+    }
+
+    /**
+     * @param index The index of a bidder
+     * @return The id of the bidder
+     */
+    public String getBidder(int index) {
+        return names.bidders.get(index);
+    }
+
+    /**
+     * Returns the budget of the bidder.
+     * @param bidder The index of the bidder
+     * @return The budget, or NO_BUDGET if it is not known
+     */
+    public synchronized int getBudget(int bidder) {
+        return bidder < size ? budgets[bidder] : NO_BUDGET;
+    }
+
+    /**
+     * Sets the budget of the bidder.
+     * @param bidder The index of the bidder
+     * @param budget The new budget
+     */
+    public synchronized void setBudget(int bidder, int budget) {
+        prepareWrite(bidder);
+        budgets[bidder] = budget;
+    }
+
+    /**
+     * Adds a player to the end of the bidder's roster.
+     * @param bidder The index of the bidder
+     * @param player The id of the player
+     */
+    public synchronized void addToRoster(int bidder, String player) {
+        int index = names.players.indexOf(player);
+        prepareWrite(bidder);
+        int[] roster = rosters[bidder] == null ? EMPTY_ROSTER : rosters[bidder];
+        int[] grown = Arrays.copyOf(roster, roster.length + 1);
+        grown[roster.length] = index;
+        rosters[bidder] = grown;
+        taken.set(index);
+    }
+
+    /**
+     * @param player The id of a player
+     * @return True if the player is on any roster
+     */
+    public synchronized boolean isTaken(String player) {
+        int index = names.players.find(player);
+        return index >= 0 && taken.get(index);
+    }
+
+    /**
+     * Returns the players on the bidder's roster.
+     * @param bidder The index of the bidder
+     * @return The ids of the players, in the order they were drafted
+     */
+    public List<String> getRoster(int bidder) {
+        int[] roster;
+        synchronized (this) {
+            roster = bidder < size && rosters[bidder] != null ? rosters[bidder] : EMPTY_ROSTER;
+        }
+        List<String> players = new ArrayList<String>(roster.length);
+        for (int player : roster) {
+            players.add(names.players.get(player));
+        }
+        return players;
+    }
+
+    /**
+     * Registers a player with its estimated value, so that it is considered
+     * by bestAvailable. The registration is shared by every snapshot.
+     * @param player The id of the player
+     * @param estValue The estimated value of the player
+     * @throws IllegalArgumentException If the player is already registered
+     */
+    public void addPlayer(String player, int estValue) {
+        if (player == null) {
+            throw new IllegalArgumentException("player must not be null");
+        }
+        names.register(names.players.indexOf(player), estValue);
+    }
+
+    /**
+     * Returns the registered player with the highest estimated value that is
+     * not on any roster. Ties go to the player registered first.
+     * @return The id of the player, or null if every registered player is
+     *         taken
+     */
+    public synchronized String bestAvailable() {
+        if (heap == null) {
+            heap = new int[Math.max(16, names.poolSize())];
+        }
+        while (heapSeen < names.poolSize()) {
+            push(names.poolPlayer(heapSeen++));
+        }
+        while (heapSize > 0 && taken.get(heap[0])) {
+            pop();
+        }
+        return heapSize == 0 ? null : names.players.get(heap[0]);
+    }
+
+    /** @return The number of bidders that may have a budget or roster */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Returns a snapshot of the ledger that does not change when the ledger
+     * does, and vice versa. This takes constant time.
+     * @return The snapshot
+     */
+    public synchronized Ledger snapshot() {
+        shared = true;
+        Ledger snapshot = new Ledger(names, budgets, rosters, taken, size);
+        snapshot.shared = true;
+        return snapshot;
+    }
+
+    /**
+     * Returns a copy of the budgets, for code that still works with maps.
+     * @return Map of budgets indexed by bidder id, without unknown budgets
+     */
+    public synchronized Map<String, Integer> toBudgetMap() {
+        Map<String, Integer> map = new HashMap<String, Integer>();
+        for (int i = 0; i < size; ++i) {
+            if (budgets[i] != NO_BUDGET) {
+                map.put(names.bidders.get(i), budgets[i]);
+            }
+        }
+        return map;
+    }
+
+    /**
+     * Returns a copy of the rosters, for code that still works with maps.
+     * Bidders that have a budget but no players have an empty roster.
+     * @return Map of rosters indexed by bidder id, in bidder index order
+     */
+    public Map<String, LinkedList<String>> toRosterMap() {
+        Map<String, LinkedList<String>> map = new LinkedHashMap<String, LinkedList<String>>();
+        int count = size();
+        for (int i = 0; i < count; ++i) {
+            List<String> roster = getRoster(i);
+            if (getBudget(i) != NO_BUDGET || !roster.isEmpty()) {
+                map.put(names.bidders.get(i), new LinkedList<String>(roster));
+            }
+        }
+        return map;
+    }
+
+    /**
+     * Formats the ledger with one line per bidder, holding the id of the
+     * bidder, its budget, and each player it has drafted, all followed by
+     * commas. An unknown budget is left empty.
+     */
+    @Override
+    public String toString() {
+        StringBuilder out = new StringBuilder();
+        int count = size();
+        for (int i = 0; i < count; ++i) {
+            int budget = getBudget(i);
+            List<String> roster = getRoster(i);
+            if (budget == NO_BUDGET && roster.isEmpty()) {
+                continue;
+            }
+            out.append(names.bidders.get(i)).append(',');
+            if (budget != NO_BUDGET) {
+                out.append(budget);
+            }
+            out.append(',');
+            for (String player : roster) {
+                out.append(player).append(',');
+            }
+            out.append('\n');
+        }
+        return out.toString();
+    }
+
+    /**
+     * Parses a ledger written by toString.
+     * @param text The formatted ledger
+     * @return A new ledger
+     * @throws IllegalArgumentException If a budget is not a number
+     */
+    public static Ledger parse(String text) {
+        Ledger ledger = new Ledger();
+        for (String line : text.split("\n")) {
+            if (line.isEmpty()) {
+                continue;
+            }
+            String[] fields = line.split(",", -1);
+            int bidder = ledger.indexOfBidder(fields[0]);
+            if (fields.length > 1 && !fields[1].isEmpty()) {
+                try {
+                    ledger.setBudget(bidder, Integer.parseInt(fields[1]));
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("bad budget: " + fields[1]);
+                }
+            } else {
+                ledger.prepareWrite(bidder);
+            }
+            for (int i = 2; i < fields.length; ++i) {
+                if (!fields[i].isEmpty()) {
+                    ledger.addToRoster(bidder, fields[i]);
+                }
+            }
+        }
+        return ledger;
+    }
+
+    /** Adds a player index to the heap. */
+    private void push(int player) {
+        if (heapSize == heap.length) {
+            heap = Arrays.copyOf(heap, heap.length * 2);
+        }
+        int child = heapSize++;
+        while (child > 0) {
+            int parent = (child - 1) / 2;
+            if (!isBetter(player, heap[parent])) {
+                break;
+            }
+            heap[child] = heap[parent];
+            child = parent;
+        }
+        heap[child] = player;
+    }
+
+    /** Removes the best player index from the heap. */
+    private void pop() {
+        int last = heap[--heapSize];
+        int parent = 0;
+        while (true) {
+            int child = 2 * parent + 1;
+            if (child >= heapSize) {
+                break;
+            }
+            if (child + 1 < heapSize && isBetter(heap[child + 1], heap[child])) {
+                ++child;
+            }
+            if (!isBetter(heap[child], last)) {
+                break;
+            }
+            heap[parent] = heap[child];
+            parent = child;
+        }
+        heap[parent] = last;
+    }
+
+    /** @return True if player a belongs above player b in the heap */
+    private boolean isBetter(int a, int b) {
+        int valueA = names.estValue(a);
+        int valueB = names.estValue(b);
+        if (valueA != valueB) {
+            return valueA > valueB;
+        }
+        return names.poolOrder(a) < names.poolOrder(b);
+    }
+
+    /**
+     * Makes the arrays safe to change at the given bidder index, copying them
+     * if they are shared and growing them if they are too small.
+     */
+    private void prepareWrite(int bidder) {
+        if (bidder < 0 || bidder >= names.bidders.size()) {
+            throw new IllegalArgumentException("no such bidder: " + bidder);
+        }
+        int capacity = budgets.length;
+        while (capacity <= bidder) {
+            capacity *= 2;
+        }
+        if (shared || capacity != budgets.length) {
+            int oldLength = budgets.length;
+            budgets = Arrays.copyOf(budgets, capacity);
+            Arrays.fill(budgets, oldLength, capacity, NO_BUDGET);
+            rosters = Arrays.copyOf(rosters, capacity);
+            taken = (BitSet)taken.clone();
+            shared = false;
+        }
+        size = Math.max(size, bidder + 1);
+    }
+
+    /**
+     * The Names gives each bidder and each player a dense index, and holds
+     * the registered players with their estimated values. These only ever
+     * grow, so they are shared by every snapshot of a ledger.
+     */
+    private static final class Names {
+        final Index bidders = new Index();
+        final Index players = new Index();
+
+        /** The registered player indices, in the order they were registered */
+        private int[] pool = new int[16];
+        private int poolSize = 0;
+
+        /** The estimated value and pool position of each player index */
+        private int[] estValues = new int[16];
+        private int[] poolOrders = new int[16];
+
+        synchronized void register(int player, int estValue) {
+            if (player < poolOrders.length && poolOrders[player] != 0) {
+                throw new IllegalArgumentException("player already registered: "
+                                                   + players.get(player));
+            }
+            if (player >= estValues.length) {
+                int capacity = Math.max(estValues.length * 2, player + 1);
+                estValues = Arrays.copyOf(estValues, capacity);
+                poolOrders = Arrays.copyOf(poolOrders, capacity);
+            }
+            if (poolSize == pool.length) {
+                pool = Arrays.copyOf(pool, pool.length * 2);
+            }
+            estValues[player] = estValue;
+            pool[poolSize++] = player;
+            poolOrders[player] = poolSize;
+        }
+
+        synchronized int poolSize() {
+            return poolSize;
+        }
+
+        synchronized int poolPlayer(int position) {
+            return pool[position];
+        }
+
+        synchronized int estValue(int player) {
+            return estValues[player];
+        }
+
+        synchronized int poolOrder(int player) {
+            return poolOrders[player];
+        }
+    }
+
+    /** A thread safe, append only mapping between ids and indices. */
+    private static final class Index {
+        private final Map<String, Integer> indices = new HashMap<String, Integer>();
+        private final List<String> ids = new ArrayList<String>();
+
+        synchronized int indexOf(String id) {
+            Integer index = indices.get(id);
+            if (index == null) {
+                index = ids.size();
+                indices.put(id, index);
+                ids.add(id);
+            }
+            return index;
+        }
+
+        synchronized int find(String id) {
+            Integer index = indices.get(id);
+            return index == null ? -1 : index;
+        }
+
+        synchronized String get(int index) {
+            return ids.get(index);
+        }
+
+        synchronized int size() {
+            return ids.size();
+        }
+    }
+}
@@ -0,0 +1,277 @@
+package jack.auctions;
+
+import java.util.AbstractMap;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The Message class is a reusable, read only view of a single auction message
+ * of the form "messageType key1=value1 ... keyN=valueN". Parsing a line only
+ * records where each key and value starts and ends within the line, so it
+ * does not split the line, use regular expressions, or allocate anything per
+ * field. Values are only copied out of the line when they are asked for.
+ *
+ * A Message is meant to be reused for every message handled by an auction, so
+ * the view is only valid until the next call to parse. Handlers that need to
+ * keep the arguments beyond the call should copy them, e.g. with
+ * new HashMap<String, String>(args).
+ *
+ * This class also encodes outgoing messages into a caller supplied
+ * StringBuilder so that the builder can be reused across messages.
+ */
+public final class Message extends AbstractMap<String, String> {
+
+    /** The initial number of fields that a message has room for */
+    private static final int INITIAL_FIELDS = 8;
+
+    /** The line currently being viewed */
+    private String line = "";
+
+    /** The bounds of the message type within the line */
+    private int typeStart = 0;
+    private int typeEnd = 0;
+
+    /** The number of key value pairs in the line */
+    private int numFields = 0;
+
+    /** The bounds of each key and value within the line */
+    private int[] keyStart = new int[INITIAL_FIELDS];
+    private int[] keyEnd = new int[INITIAL_FIELDS];
+    private int[] valueStart = new int[INITIAL_FIELDS];
+    private int[] valueEnd = new int[INITIAL_FIELDS];
+
+    /**
+     * Points this view at a new line. Any tokens that are not of the form
+     * "key=value" with a non-empty value are silently ignored, as are tokens
+     * with more than one "=". If a key appears more than once the last value
+     * wins.
+     * @param newLine The line to view
+     * @return This message
+     */
+    public Message parse(String newLine) {
+        line = newLine;
+        numFields = 0;
+
+        int length = line.length();
+        int i = skipWhitespace(0);
+        typeStart = i;
+        i = skipToken(i);
+        typeEnd = i;
+
+        while ((i = skipWhitespace(i)) < length) {
+            int start = i;
+            int equals = -1;
+            boolean valid = true;
+            for (; i < length && line.charAt(i) > ' '; ++i) {
+                if (line.charAt(i) == '=') {
+                    valid = equals < 0;
+                    equals = i;
+                }
+            }
+            if (valid && equals >= 0 && equals + 1 < i) {
+                addField(start, equals, equals + 1, i);
+            }
+        }
+        return this;
+    }
+
+    /** @return The line that this message is a view of */
+    public String getLine() {
+        return line;
+    }
+
+    /** @return The type of the message, which is its first token */
+    public String getType() {
+        return line.substring(typeStart, typeEnd);
+    }
+
+    /**
+     * Compares the message type without copying it out of the line.
+     * @param type The type to compare with
+     * @return True if this message has the given type
+     */
+    public boolean isType(String type) {
+        return type.length() == typeEnd - typeStart
+            && line.regionMatches(typeStart, type, 0, type.length());
+    }
+
+    /**
+     * Returns the value of the given key parsed as an integer, without
+     * copying the value out of the line.
+     * @param key The key to look up
+     * @return The integer value of the key
+     * @throws IllegalArgumentException If the key is missing or its value is
+     *         not an integer
+     */
+    public int getInt(String key) throws IllegalArgumentException {
+        int field = find(key);
+        if (field < 0) {
+            throw new IllegalArgumentException("Missing key: " + key);
+        }
+
+        int i = valueStart[field];
+        int end = valueEnd[field];
+        boolean negative = line.charAt(i) == '-';
+        if (negative || line.charAt(i) == '+') {
+            ++i;
+        }
+        if (i == end) {
+            throw new NumberFormatException("For input string: " + get(key));
+        }
+
+        // Accumulate negatively so that Integer.MIN_VALUE can be represented
+
+        int value = 0;
+        for (; i < end; ++i) {
+            int digit = line.charAt(i) - '0';
+            if (digit < 0 || digit > 9 || value < (Integer.MIN_VALUE + digit) / 10) {
+                throw new NumberFormatException("For input string: " + get(key));
+            }
+            value = value * 10 - digit;
+        }
+        if (!negative && value == Integer.MIN_VALUE) {
+            throw new NumberFormatException("For input string: " + get(key));
+        }
+        return negative ? value : -value;
+    }
+
+    /**
+     * @return The number of key value pairs in the line, including any keys
+     *         that appear more than once
+     */
+    public int getFieldCount() {
+        return numFields;
+    }
+
+    /**
+     * @param field The index of a field, in the order they appear in the line
+     * @return The key of the field
+     */
+    public String getKey(int field) {
+        checkField(field);
+        return line.substring(keyStart[field], keyEnd[field]);
+    }
+
+    /**
+     * @param field The index of a field, in the order they appear in the line
+     * @return The value of the field
+     */
+    public String getValue(int field) {
+        checkField(field);
+        return line.substring(valueStart[field], valueEnd[field]);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return key instanceof String && find((String)key) >= 0;
+    }
+
+    @Override
+    public String get(Object key) {
+        if (!(key instanceof String)) {
+            return null;
+        }
+        int field = find((String)key);
+        if (field < 0) {
+            return null;
+        }
+        return line.substring(valueStart[field], valueEnd[field]);
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return numFields == 0;
+    }
+
+    /**
+     * Returns a copy of the key value pairs. This allocates a new map, so it
+     * should be avoided on hot paths in favour of get and containsKey.
+     */
+    @Override
+    public Set<Map.Entry<String, String>> entrySet() {
+        Map<String, String> copy = new HashMap<String, String>();
+        for (int i = 0; i < numFields; ++i) {
+            copy.put(line.substring(keyStart[i], keyEnd[i]),
+                     line.substring(valueStart[i], valueEnd[i]));
+        }
+        return copy.entrySet();
+    }
+
+    /**
+     * Appends an encoded message of the form "type key1=value1 ... keyN=valueN"
+     * to the builder. Spaces in values are replaced by underscores so that the
+     * message can be parsed again.
+     * @param out The builder to append to
+     * @param type The message type
+     * @param args A key value map of arguments
+     * @return The builder
+     */
+    public static StringBuilder encode(StringBuilder out, String type,
+                                       Map<String, String> args) {
+        out.append(type);
+        for (Map.Entry<String, String> entry : args.entrySet()) {
+            out.append(' ').append(entry.getKey()).append('=');
+            String value = entry.getValue();
+            for (int i = 0; i < value.length(); ++i) {
+                char c = value.charAt(i);
+                out.append(c == ' ' ? '_' : c);
+            }
+        }
+        return out;
+    }
+
+    /**
+     * Returns the index of the last field with the given key, or -1 if there
+     * is no such field.
+     */
+    private int find(String key) {
+        int length = key.length();
+        for (int i = numFields - 1; i >= 0; --i) {
+            if (keyEnd[i] - keyStart[i] == length
+                    && line.regionMatches(keyStart[i], key, 0, length)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void checkField(int field) {
+        if (field < 0 || field >= numFields) {
+            throw new IndexOutOfBoundsException("No field " + field);
+        }
+    }
+
+    /** Records the bounds of a key value pair, growing the arrays if needed. */
+    private void addField(int kStart, int kEnd, int vStart, int vEnd) {
+        if (numFields == keyStart.length) {
+            int capacity = numFields * 2;
+            keyStart = Arrays.copyOf(keyStart, capacity);
+            keyEnd = Arrays.copyOf(keyEnd, capacity);
+            valueStart = Arrays.copyOf(valueStart, capacity);
+            valueEnd = Arrays.copyOf(valueEnd, capacity);
+        }
+        keyStart[numFields] = kStart;
+        keyEnd[numFields] = kEnd;
+        valueStart[numFields] = vStart;
+        valueEnd[numFields] = vEnd;
+        ++numFields;
+    }
+
+    /** @return The index of the first non-whitespace character at or after i */
+    private int skipWhitespace(int i) {
+        while (i < line.length() && line.charAt(i) <= ' ') {
+            ++i;
+        }
+        return i;
+    }
+
+    /** @return The index of the first whitespace character at or after i */
+    private int skipToken(int i) {
+        while (i < line.length() && line.charAt(i) > ' ') {
+            ++i;
+        }
+        return i;
+    }
+}
@@ -20,21 +20,24 @@ public class RandomAuction extends AuctionBase
     @Override
     protected void initialize() {
         endTime = System.currentTimeMillis() + random.nextInt(10000);
+        setDeadline(endTime);
         sendMessage("start");
     }
 
     @Override
-    protected void idle() {
-        if (endTime != 0 && System.currentTimeMillis() > endTime) {
+    protected void deadlineExpired() {
+        if (endTime != 0) {
             if (tryEndable()) {
                 endTime = 0;
                 //restartTime = System.currentTimeMillis() + random.nextInt(10000);
+                //setDeadline(restartTime);
             }
 
-        } else if (restartTime != 0 && System.currentTimeMillis() > restartTime) {
+        } else if (restartTime != 0) {
             if (tryResume()) {
                 endTime = System.currentTimeMillis() + random.nextInt(10000);
                 restartTime = 0;
+                setDeadline(endTime);
             }
         }
     }
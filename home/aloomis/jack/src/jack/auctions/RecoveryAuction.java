@@ -36,11 +36,6 @@ public class RecoveryAuction extends AuctionBase
     /** The time to wait before going from endable to ended*/
     private long endDelay = 5000;
     
-    /** Complilation of known bidder's budgets */
-    private Map<String, Integer> budgets = new HashMap<String, Integer>();
-
-    /** Roster for each bidder */
-    private Map<String, LinkedList<String>> rosters = new HashMap<String, LinkedList<String>>();
 
     /**
      * Constructs a single ascending auction as part of a draft
@@ -54,12 +49,6 @@ public class RecoveryAuction extends AuctionBase
     @Override
     public void setParams(Map<String, String> params) {
         highBidder = params.get("winner");
-	if(!budgets.containsKey(highBidder)){
-	  highBudget = 200;
-	  budgets.put(highBidder,200);
-	}else{
-	  highBudget = budgets.get(highBidder);
-	}
         highBid = Integer.parseInt(params.get("cost"));
         super.setParams(params);
     }
@@ -70,59 +59,24 @@ public class RecoveryAuction extends AuctionBase
     }
     
     /**
-     * New class to exchange the budget
-     * @return HashMap with budgets
-     */
-    public Map<String, Integer> getBudgets(){
-    	return budgets;
-    }
-    
-    /**
-     * New class to set the budgets
-     */
-    public void setBudgets(Map<String, Integer> newBudgets){
-    	budgets = newBudgets;
-    }
-
-    /**
-     * New class to update the budget
-     */
-    public void updateBudgets(){
-        budgets.put(highBidder, (highBudget-highBid));
-    }
-   
-     /**
-     * New method to exchange the roster
-     * @return HashMap with roster
-     */
-    public Map<String, LinkedList<String>> getRosters(){
-    	return rosters;
-    }
-    
-    /**
-     * New method to set the rosters
+     * Records the recovered sale in the ledger. The winner pays the cost out
+     * of its budget, which starts at 200 if it is not known, and this auction
+     * is added to its roster.
      */
-    public void setRosters(Map<String, LinkedList<String>> newRosters){
-    	rosters = newRosters;
-    }
-
-    /**
-     * New method to update the rosters
-     */
-    public void updateRosters(){
-        if(rosters.containsKey(highBidder)){
-		LinkedList<String> templl = rosters.get(highBidder);
-		templl.add(Integer.toString(auctionId));
-		rosters.put(highBidder, templl);
-	}else{
-		LinkedList<String> ll = new LinkedList<String>();
-		ll.add(Integer.toString(auctionId));
-		rosters.put(highBidder, ll);
-	}
+    @Override
+    public void updateLedger() {
+        if (highBidder == null) {
+            return;
+        }
+        int bidder = ledger.indexOfBidder(highBidder);
+        int budget = ledger.getBudget(bidder);
+        if (budget == Ledger.NO_BUDGET) {
+            budget = 200;
+        }
+        ledger.setBudget(bidder, budget - highBid);
+        ledger.addToRoster(bidder, Integer.toString(auctionId));
     }
 
-
-
     @Override
     protected void resolve() {
         sendStop();
@@ -136,14 +90,13 @@ public class RecoveryAuction extends AuctionBase
     }
 
     @Override
-    protected void idle() {
-        if (System.currentTimeMillis() > endTime) {
-            tryEndable();
-        }
+    protected void deadlineExpired() {
+        tryEndable();
     }
 
     private void sendStart() {
         endTime = System.currentTimeMillis() + MAX_TIMEOUT;
+        setDeadline(endTime);
         long seconds = MAX_TIMEOUT / 1000;
         Map<String, String> args = new HashMap<String, String>();
         args.put("timer", Long.toString(seconds));
@@ -171,9 +124,7 @@ public class RecoveryAuction extends AuctionBase
     }
 
     private class BidHandler2 implements MessageHandler {
-        public void handle(Map<String, String> args) throws IllegalArgumentException {
-            System.out.println("BidHandler::handle()");
-
+        public void handle(Message args) throws IllegalArgumentException {
             // Verify this message contains the correct keys
             if (!args.containsKey("sessionId") || !args.containsKey("auctionId") ||
                 !args.containsKey("bidderId") || !args.containsKey("bid")) {
@@ -181,13 +132,14 @@ public class RecoveryAuction extends AuctionBase
             }
 
             // Get the required values
-            int msgSessionId = Integer.parseInt(args.get("sessionId"));
-            int msgAuctionId = Integer.parseInt(args.get("auctionId"));
+            int msgSessionId = args.getInt("sessionId");
+            int msgAuctionId = args.getInt("auctionId");
             String msgBidderId = args.get("bidderId");
-            int msgBid = Integer.parseInt(args.get("bid"));
+            int msgBid = args.getInt("bid");
 
-            // Silently ignore this message as it was not meant for us.
+            // Reject this message as it was not meant for us.
             if (msgSessionId != sessionId || msgAuctionId != auctionId) {
+                rejectMessage();
                 return;
             }
             
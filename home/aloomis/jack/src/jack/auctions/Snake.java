@@ -37,14 +37,6 @@ public class Snake extends AuctionBase
     /** The time to wait before going from endable to ended*/
     private long endDelay = 5000;
     
-    /** Complilation of known bidder's budgets */
-    private Map<String, Integer> budgets = new HashMap<String, Integer>();
-
-    /** Roster for each bidder */
-    private Map<String, LinkedList<String>> rosters = new HashMap<String, LinkedList<String>>();
-
-    /** List of taken players */
-    private LinkedList<String> taken = new LinkedList<String>();
 
     /**
      * Constructs a single ascending auction as part of a draft
@@ -67,66 +59,19 @@ public class Snake extends AuctionBase
     }
     
     /**
-     * New class to exchange the budget
-     * @return HashMap with budgets
-     */
-    public Map<String, Integer> getBudgets(){
-    	return budgets;
-    }
-    
-    /**
-     * New class to set the budgets
-     */
-    public void setBudgets(Map<String, Integer> newBudgets){
-    	budgets = newBudgets;
-    }
-
-    /**
-     * New class to update the budget
-     */
-    public void updateBudgets(){
-        budgets.put(highBidder, 0);
-    }
-   
-     /**
-     * New method to exchange the roster
-     * @return HashMap with roster
-     */
-    public Map<String, LinkedList<String>> getRosters(){
-    	return rosters;
-    }
-    
-    /**
-     * New method to set the rosters
+     * Records the pick in the ledger. The picking bidder's budget is spent and
+     * the chosen player is added to its roster.
      */
-    public void setRosters(Map<String, LinkedList<String>> newRosters){
-    	rosters = newRosters;
-	for(Map.Entry<String, LinkedList<String>> kv : rosters.entrySet()){
-	   if(kv.getKey() != null){
-	      for(String player : kv.getValue()){
-		taken.add(player);
-		}
-	   }
-	}
-    }
-
-    /**
-     * New method to update the rosters
-     */
-    public void updateRosters(){
-        if(rosters.containsKey(highBidder)){
-		LinkedList<String> templl = rosters.get(highBidder);
-		templl.add(Integer.toString(highBid));
-		rosters.put(highBidder, templl);
-	}else{
-		LinkedList<String> ll = new LinkedList<String>();
-		ll.add(Integer.toString(highBid));
-		rosters.put(highBidder, ll);
-	}
+    @Override
+    public void updateLedger() {
+        if (highBidder == null) {
+            return;
+        }
+        int bidder = ledger.indexOfBidder(highBidder);
+        ledger.setBudget(bidder, 0);
+        ledger.addToRoster(bidder, Integer.toString(highBid));
     }
 
-
-
     @Override
     protected void resolve() {
         sendStop();
@@ -139,15 +84,25 @@ public class Snake extends AuctionBase
 
     }
 
+    /**
+     * Ends the pick when its time runs out. A bidder that has not picked
+     * anyone is given the best available player from the draft pool, if
+     * there is one.
+     */
     @Override
-    protected void idle() {
-        if (System.currentTimeMillis() > endTime) {
-            tryEndable();
+    protected void deadlineExpired() {
+        if (highBid == 0) {
+            String best = ledger.bestAvailable();
+            if (best != null) {
+                highBid = Integer.parseInt(best);
+            }
         }
+        tryEndable();
     }
 
     private void sendStart() {
         endTime = System.currentTimeMillis() + MAX_TIMEOUT;
+        setDeadline(endTime);
         long seconds = MAX_TIMEOUT / 1000;
         Map<String, String> args = new HashMap<String, String>();
         args.put("timer", Long.toString(seconds));
@@ -175,9 +130,7 @@ public class Snake extends AuctionBase
     }
 
     private class BidHandler2 implements MessageHandler {
-        public void handle(Map<String, String> args) throws IllegalArgumentException {
-            System.out.println("BidHandler::handle()");
-
+        public void handle(Message args) throws IllegalArgumentException {
             // Verify this message contains the correct keys
             if (!args.containsKey("sessionId") || !args.containsKey("auctionId") ||
                 !args.containsKey("bidderId") || !args.containsKey("bid")) {
@@ -185,21 +138,24 @@ public class Snake extends AuctionBase
             }
 
             // Get the required values
-            int msgSessionId = Integer.parseInt(args.get("sessionId"));
-            int msgAuctionId = Integer.parseInt(args.get("auctionId"));
+            int msgSessionId = args.getInt("sessionId");
+            int msgAuctionId = args.getInt("auctionId");
             String msgBidderId = args.get("bidderId");
-            int msgBid = Integer.parseInt(args.get("bid"));
+            int msgBid = args.getInt("bid");
 
-            // Silently ignore this message as it was not meant for us.
+            // Reject this message as it was not meant for us.
             if (msgSessionId != sessionId || msgAuctionId != auctionId) {
+                rejectMessage();
                 return;
             }        
 
             // Check for high bid
-            if (msgBidderId.equals(highBidder) && !taken.contains(Integer.toString(msgBid))) {
+            if (msgBidderId.equals(highBidder) && !ledger.isTaken(Integer.toString(msgBid))) {
                 highBid = msgBid;
 
                 sendStatus();
+            } else {
+                rejectMessage();
             }
         }
     }
@@ -0,0 +1,82 @@
+/**
+ * This library is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License version 2.1 as published by the
+ * Free Software Foundation.
+ *
+ * How a simulated bidder in a BidderSwarm decides what to bid.  Each time a
+ * bidder may bid in an auction it asks its strategy for a bid, given the
+ * current high bid in that auction.
+ */
+
+package jack.clients;
+
+import java.util.Random;
+
+
+public enum BidStrategy
+{
+    /**
+     * Raises the high bid by one whenever another bidder holds it, so the
+     * price climbs as slowly as possible and every bidder stays in.
+     */
+    INCREMENT {
+        public int nextBid(int highBid, boolean isHighBidder, int budget, Random rand) {
+            if (isHighBidder || highBid >= budget) {
+                return NO_BID;
+            }
+            return highBid + 1;
+        }
+    },
+
+    /**
+     * Raises the high bid by a random amount of up to JUMP whenever another
+     * bidder holds it, so the price climbs faster and bidders drop out.
+     */
+    RANDOM {
+        public int nextBid(int highBid, boolean isHighBidder, int budget, Random rand) {
+            if (isHighBidder || highBid >= budget) {
+                return NO_BID;
+            }
+            return Math.min(budget, highBid + 1 + rand.nextInt(JUMP));
+        }
+    },
+
+    /**
+     * Raises the high bid by one at every opportunity, even over its own bid.
+     * This keeps the server as busy as the bid rate allows, and many of the
+     * bids lose the race to another bidder and are rejected.
+     */
+    FLOOD {
+        public int nextBid(int highBid, boolean isHighBidder, int budget, Random rand) {
+            if (highBid >= budget) {
+                return NO_BID;
+            }
+            return highBid + 1;
+        }
+    };
+
+    /** Returned by nextBid when the bidder should not bid */
+    public static final int NO_BID = -1;
+
+    /** The largest raise of a RANDOM bidder */
+    private static final int JUMP = 5;
+
+    /**
+     * Returns the next bid, or NO_BID if the bidder should not bid.
+     * @param highBid The current high bid, or 0 if there is none
+     * @param isHighBidder True if the bidder holds the high bid
+     * @param budget The most the bidder may bid
+     * @param rand The random numbers of the bidder
+     */
+    public abstract int nextBid(int highBid, boolean isHighBidder, int budget, Random rand);
+
+    /**
+     * Returns the strategy with the given name, ignoring case.  This is used
+     * to read the strategy from the command line.
+     * @param name For example "increment"
+     * @return The matching strategy
+     */
+    public static BidStrategy fromString(String name) {
+        return valueOf(name.trim().toUpperCase());
+    }
+}
@@ -0,0 +1,671 @@
+/**
+ * This library is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License version 2.1 as published by the
+ * Free Software Foundation.
+ *
+ * A load generator that connects a swarm of simulated bidders to a running
+ * AuctionServer from a single JVM.  The bidders speak the text protocol: each
+ * one bids in every auction it is told has started, following a BidStrategy,
+ * and at most a given number of times a second.  The bidders are multiplexed
+ * over a handful of non-blocking I/O threads, so thousands of them cost no
+ * more than a few threads.
+ *
+ * The swarm measures the latency from sending a bid to receiving the status
+ * that announces it as the high bid, and periodically reports the latency
+ * percentiles along with the bid throughput and any errors.  Bids that are
+ * never announced, because they were rejected or outbid before they were
+ * handled, are counted as unacknowledged.  A bid is given up on once a higher
+ * price is announced, or after timeout ms without any answer.
+ *
+ * usage: BidderSwarm [-host 127.0.0.1] [-port 1300] [-bidders 100]
+ *                    [-threads 2] [-strategy increment|random|flood]
+ *                    [-rate 1] [-budget 200] [-timeout 5000] [-duration 0]
+ *                    [-report 5] [-prefix swarm] [-session 0]
+ *
+ * The rate is the most bids a second of each bidder, or 0 for no limit.  The
+ * duration is in seconds, and 0 runs the swarm until the server has closed
+ * every connection.  Reports are printed every report seconds.  If session
+ * is not 0 each bidder asks to join that session of the server as soon as it
+ * has connected.  Every bidder tells the server it is ready once connected,
+ * so a session waiting for a quorum of bidders starts as soon as they are.
+ */
+
+package jack.clients;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import jack.auctions.Message;
+import jack.metrics.LatencyHistogram;
+
+
+public class BidderSwarm
+{
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+
+    //the longest line the server is expected to send
+    private static final int READ_BUFFER_SIZE = 65536;
+
+    //settings, which may be changed from the command line
+    String host = "127.0.0.1";
+    int port = 1300;
+    int bidders = 100;
+    int threads = 2;
+    BidStrategy strategy = BidStrategy.INCREMENT;
+    double rate = 1;
+    int budget = 200;
+    long timeout = 5000;
+    long duration = 0;
+    long reportInterval = 5;
+    String prefix = "swarm";
+    int session = 0;
+
+    //results, shared by every I/O thread
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final AtomicLong connected = new AtomicLong();
+    private final AtomicLong messagesIn = new AtomicLong();
+    private final AtomicLong bidsSent = new AtomicLong();
+    private final AtomicLong bidsAcknowledged = new AtomicLong();
+    private final AtomicLong bidsUnacknowledged = new AtomicLong();
+    private final AtomicLong connectErrors = new AtomicLong();
+    private final AtomicLong ioErrors = new AtomicLong();
+    private final AtomicLong malformed = new AtomicLong();
+
+    public static void main(String[] args) throws IOException {
+        BidderSwarm swarm = new BidderSwarm();
+        try {
+            for (int i = 0; i < args.length; i += 2) {
+                if (i + 1 >= args.length) {
+                    throw new IllegalArgumentException("missing value for " + args[i]);
+                }
+                swarm.setOption(args[i], args[i + 1]);
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println("Error: " + e.getMessage());
+            System.err.println("usage: BidderSwarm [-host 127.0.0.1] [-port 1300] [-bidders 100]\n"
+                               + "                   [-threads 2] [-strategy increment|random|flood]\n"
+                               + "                   [-rate 1] [-budget 200] [-timeout 5000] [-duration 0]\n"
+                               + "                   [-report 5] [-prefix swarm] [-session 0]");
+            System.exit(1);
+        }
+        swarm.run();
+    }
+
+    /**
+     * Sets one of the settings from the command line.
+     * @param option The name of the setting, for example "-bidders"
+     * @param value The new value of the setting
+     * @throws IllegalArgumentException If the option or value is not valid
+     */
+    void setOption(String option, String value) {
+        if (option.equals("-host")) {
+            host = value;
+        } else if (option.equals("-port")) {
+            port = Integer.parseInt(value);
+        } else if (option.equals("-bidders")) {
+            bidders = Integer.parseInt(value);
+        } else if (option.equals("-threads")) {
+            threads = Integer.parseInt(value);
+        } else if (option.equals("-strategy")) {
+            strategy = BidStrategy.fromString(value);
+        } else if (option.equals("-rate")) {
+            rate = Double.parseDouble(value);
+        } else if (option.equals("-budget")) {
+            budget = Integer.parseInt(value);
+        } else if (option.equals("-timeout")) {
+            timeout = Long.parseLong(value);
+        } else if (option.equals("-duration")) {
+            duration = Long.parseLong(value);
+        } else if (option.equals("-report")) {
+            reportInterval = Long.parseLong(value);
+        } else if (option.equals("-prefix")) {
+            prefix = value;
+        } else if (option.equals("-session")) {
+            session = Integer.parseInt(value);
+        } else {
+            throw new IllegalArgumentException("unknown option " + option);
+        }
+        if (bidders < 1 || threads < 1 || rate < 0 || timeout < 1 || duration < 0 || reportInterval < 1
+                || session < 0) {
+            throw new IllegalArgumentException("invalid value for " + option);
+        }
+    }
+
+    /**
+     * Connects the bidders and runs them until the duration has passed or the
+     * server has closed every connection, reporting as it goes.
+     */
+    public void run() throws IOException {
+        System.out.println("Connecting " + bidders + " " + strategy.toString().toLowerCase()
+                           + " bidders to " + host + ":" + port);
+
+        // Deal the bidders out between the I/O threads
+
+        InetSocketAddress address = new InetSocketAddress(host, port);
+        long interval = rate > 0 ? (long)(1000000000L / rate) : 0;
+        List<Loop> loops = new ArrayList<Loop>();
+        for (int i = 0; i < Math.min(threads, bidders); ++i) {
+            loops.add(new Loop(i, address));
+        }
+        for (int i = 0; i < bidders; ++i) {
+            Loop loop = loops.get(i % loops.size());
+            loop.bidders.add(new Bidder(prefix + "_" + i, loop, interval));
+        }
+
+        long start = System.nanoTime();
+        for (Loop loop : loops) {
+            loop.start();
+        }
+
+        // Report until every loop has finished or we run out of time
+
+        long end = duration > 0 ? start + duration * 1000000000L : Long.MAX_VALUE;
+        long lastReport = start;
+        long lastBids = 0;
+        while (true) {
+            long now = System.nanoTime();
+            long wait = Math.min(lastReport + reportInterval * 1000000000L, end) - now;
+            if (wait > 0 && joinAll(loops, wait / 1000000 + 1)) {
+                break;
+            }
+            now = System.nanoTime();
+            if (now >= end) {
+                break;
+            }
+            long bids = bidsSent.get();
+            report(now - start, (bids - lastBids) / ((now - lastReport) / 1e9));
+            lastReport = now;
+            lastBids = bids;
+        }
+
+        for (Loop loop : loops) {
+            loop.shutdown();
+        }
+        joinAll(loops, 0);
+
+        long elapsed = System.nanoTime() - start;
+        System.out.println("Finished");
+        report(elapsed, bidsSent.get() / (elapsed / 1e9));
+    }
+
+    /**
+     * Waits for every loop to finish for no longer than the given time.
+     * Returns true if they have all finished.
+     * @param loops The loops to wait for
+     * @param timeout The longest time to wait in ms, or 0 to wait for ever
+     */
+    private static boolean joinAll(List<Loop> loops, long timeout) {
+        long end = System.currentTimeMillis() + timeout;
+        try {
+            for (Loop loop : loops) {
+                if (timeout == 0) {
+                    loop.join();
+                } else {
+                    long remaining = end - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        return false;
+                    }
+                    loop.join(remaining);
+                    if (loop.isAlive()) {
+                        return false;
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        return true;
+    }
+
+    //prints the results so far
+    private void report(long elapsed, double bidRate) {
+        System.out.println(String.format(
+            "%6.1fs %d/%d connected, %d messages in, %d bids sent (%.1f/s), "
+            + "%d acknowledged, %d unacknowledged",
+            elapsed / 1e9, connected.get(), bidders, messagesIn.get(), bidsSent.get(),
+            bidRate, bidsAcknowledged.get(), bidsUnacknowledged.get()));
+        System.out.println(String.format(
+            "        bid to status latency (us): p50=%d p90=%d p99=%d p99.9=%d max=%d (%d samples)",
+            latency.getPercentile(0.5), latency.getPercentile(0.9),
+            latency.getPercentile(0.99), latency.getPercentile(0.999),
+            latency.getMax(), latency.getCount()));
+        System.out.println(String.format(
+            "        errors: %d connect, %d io, %d malformed",
+            connectErrors.get(), ioErrors.get(), malformed.get()));
+    }
+
+    /**
+     * An I/O thread that services a share of the bidders.  It connects them,
+     * reads and writes their channels, and wakes each of them when it may bid
+     * again.  Every bidder is only ever touched by its own loop.
+     */
+    private class Loop extends Thread
+    {
+        private final InetSocketAddress address;
+        private final Selector selector;
+
+        //the bidders of this loop, and the ones waiting to bid in wake order
+        final List<Bidder> bidders = new ArrayList<Bidder>();
+        private final PriorityQueue<Bidder> wakeups =
+            new PriorityQueue<Bidder>(11, new Comparator<Bidder>() {
+                public int compare(Bidder a, Bidder b) {
+                    return Long.compare(a.wakeTime, b.wakeTime);
+                }
+            });
+
+        //the number of connections that have not yet been closed
+        private int open = 0;
+
+        private volatile boolean running = true;
+
+        //reused to parse every incoming message
+        final Message message = new Message();
+
+        Loop(int index, InetSocketAddress address) throws IOException {
+            super("BidderSwarm-" + index);
+            this.address = address;
+            selector = Selector.open();
+        }
+
+        //asks the loop to close its connections and finish
+        void shutdown() {
+            running = false;
+            selector.wakeup();
+        }
+
+        //registers the bidder to be woken at the given time, unless it is
+        //already to be woken sooner
+        void wake(Bidder bidder, long time) {
+            if (bidder.scheduled) {
+                if (bidder.wakeTime <= time) {
+                    return;
+                }
+                wakeups.remove(bidder);
+            }
+            bidder.scheduled = true;
+            bidder.wakeTime = time;
+            wakeups.add(bidder);
+        }
+
+        public void run() {
+            for (Bidder bidder : bidders) {
+                try {
+                    bidder.connect(address);
+                    ++open;
+                } catch (IOException e) {
+                    connectErrors.incrementAndGet();
+                }
+            }
+
+            while (running && open > 0) {
+
+                // Sleep until a channel is ready or the next bidder may bid
+
+                long timeout = 0;
+                if (!wakeups.isEmpty()) {
+                    long delay = wakeups.peek().wakeTime - System.nanoTime();
+                    timeout = Math.max(1, (delay + 999999) / 1000000);
+                }
+                try {
+                    selector.select(timeout);
+                } catch (IOException e) {
+                    ioErrors.incrementAndGet();
+                    break;
+                }
+
+                for (SelectionKey key : selector.selectedKeys()) {
+                    ((Bidder)key.attachment()).ready(key);
+                }
+                selector.selectedKeys().clear();
+
+                long now = System.nanoTime();
+                while (!wakeups.isEmpty() && wakeups.peek().wakeTime <= now) {
+                    Bidder bidder = wakeups.poll();
+                    bidder.scheduled = false;
+                    bidder.bid(now);
+                }
+            }
+
+            for (Bidder bidder : bidders) {
+                bidder.close();
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                ioErrors.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * The view a bidder has of a single auction.
+     */
+    private static class AuctionView
+    {
+        final String auctionId;
+        boolean open = true;
+        int highBid = 0;
+        String highBidder = null;
+
+        //true if the bidder should ask its strategy for a bid
+        boolean dirty = false;
+
+        //the highest bid of the bidder so far
+        int lastBid = 0;
+
+        //bids that have not been announced, as {bid, nanos sent}, oldest first
+        final ArrayDeque<long[]> pending = new ArrayDeque<long[]>();
+
+        AuctionView(String auctionId) {
+            this.auctionId = auctionId;
+        }
+    }
+
+    /**
+     * A single simulated bidder with a connection of its own.
+     */
+    private class Bidder
+    {
+        private final String bidderId;
+        private final Loop loop;
+        private final long interval;
+        private final Random rand;
+
+        private SocketChannel channel;
+        private SelectionKey key;
+        private final ByteBuffer input = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        private final ArrayDeque<ByteBuffer> output = new ArrayDeque<ByteBuffer>();
+        private boolean closed = false;
+
+        //the auctions the bidder has heard of, by auction id
+        private final Map<String, AuctionView> auctions =
+            new LinkedHashMap<String, AuctionView>();
+
+        //the session that the auctions belong to
+        private String sessionId = null;
+
+        //the earliest time the bidder may bid again, and its wake up call
+        private long nextBidTime;
+        boolean scheduled = false;
+        long wakeTime = 0;
+
+        Bidder(String bidderId, Loop loop, long interval) {
+            this.bidderId = bidderId;
+            this.loop = loop;
+            this.interval = interval;
+            rand = new Random(bidderId.hashCode());
+
+            // Spread the first bids over an interval so that the bidders do
+            // not all bid in lock step
+
+            nextBidTime = System.nanoTime() + (interval > 0 ? (long)(rand.nextDouble() * interval) : 0);
+        }
+
+        void connect(InetSocketAddress address) throws IOException {
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            if (channel.connect(address)) {
+                key = channel.register(loop.selector, SelectionKey.OP_READ, this);
+                connected();
+            } else {
+                key = channel.register(loop.selector, SelectionKey.OP_CONNECT, this);
+            }
+        }
+
+        //counts the connection, joins the session if there is one, and tells
+        //the server that the bidder is ready
+        private void connected() throws IOException {
+            connected.incrementAndGet();
+            if (session != 0) {
+                send("join sessionId=" + session);
+            }
+            send("ready bidderId=" + bidderId);
+        }
+
+        //services the channel once the selector says it is ready
+        void ready(SelectionKey key) {
+            try {
+                if (key.isConnectable()) {
+                    channel.finishConnect();
+                    key.interestOps(SelectionKey.OP_READ);
+                    connected();
+                    return;
+                }
+                if (key.isWritable()) {
+                    write();
+                }
+                if (key.isReadable()) {
+                    read();
+                }
+            } catch (IOException e) {
+                if (!channel.isConnected()) {
+                    connectErrors.incrementAndGet();
+                } else {
+                    ioErrors.incrementAndGet();
+                }
+                close();
+            }
+        }
+
+        private void read() throws IOException {
+            if (channel.read(input) < 0) {
+                close();
+                return;
+            }
+
+            // Handle every complete line and keep the rest for the next read
+
+            input.flip();
+            int start = input.position();
+            for (int i = start; i < input.limit(); ++i) {
+                if (input.get(i) == '\n') {
+                    int end = i > start && input.get(i - 1) == '\r' ? i - 1 : i;
+                    byte[] line = new byte[end - start];
+                    input.position(start);
+                    input.get(line);
+                    handle(new String(line, CHARSET));
+                    start = i + 1;
+                }
+            }
+            input.position(start);
+            input.compact();
+
+            if (!input.hasRemaining()) {
+                malformed.incrementAndGet();
+                input.clear();
+            }
+        }
+
+        private void write() throws IOException {
+            while (!output.isEmpty()) {
+                ByteBuffer buffer = output.peek();
+                channel.write(buffer);
+                if (buffer.hasRemaining()) {
+                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return;
+                }
+                output.poll();
+            }
+            key.interestOps(SelectionKey.OP_READ);
+        }
+
+        private void send(String line) throws IOException {
+            output.add(ByteBuffer.wrap((line + "\n").getBytes(CHARSET)));
+            if (output.size() == 1) {
+                write();
+            }
+        }
+
+        //handles a single message from the server
+        private void handle(String line) {
+            messagesIn.incrementAndGet();
+            Message message = loop.message.parse(line);
+            String auctionId = message.get("auctionId");
+            if (auctionId == null) {
+                return;
+            }
+            if (message.containsKey("sessionId")) {
+                sessionId = message.get("sessionId");
+            }
+
+            try {
+                if (message.isType("start")) {
+                    AuctionView view = getView(auctionId);
+                    view.open = true;
+                    wantBid(view);
+                } else if (message.isType("status")) {
+                    AuctionView view = getView(auctionId);
+                    if (message.containsKey("bid")) {
+                        view.highBid = message.getInt("bid");
+                        view.highBidder = message.get("bidderId");
+                    }
+                    if (bidderId.equals(view.highBidder)) {
+                        acknowledge(view, view.highBid);
+                    } else {
+                        outbid(view);
+                        wantBid(view);
+                    }
+                } else if (message.isType("stop")) {
+                    AuctionView view = getView(auctionId);
+                    view.open = false;
+                    bidsUnacknowledged.addAndGet(view.pending.size());
+                    view.pending.clear();
+                }
+            } catch (IllegalArgumentException e) {
+                malformed.incrementAndGet();
+            }
+        }
+
+        private AuctionView getView(String auctionId) {
+            AuctionView view = auctions.get(auctionId);
+            if (view == null) {
+                view = new AuctionView(auctionId);
+                auctions.put(auctionId, view);
+            }
+            return view;
+        }
+
+        //the server handles the bids of a connection in order, so the bids
+        //sent before the one announced were either rejected or announced by a
+        //status that was coalesced away
+        private void acknowledge(AuctionView view, int bid) {
+            long now = System.nanoTime();
+            while (!view.pending.isEmpty()) {
+                long[] sent = view.pending.poll();
+                if (sent[0] == bid) {
+                    bidsAcknowledged.incrementAndGet();
+                    latency.record((now - sent[1]) / 1000);
+                    return;
+                }
+                bidsUnacknowledged.incrementAndGet();
+            }
+        }
+
+        //bids that are no higher than another bidder's announced bid can
+        //never be announced themselves
+        private void outbid(AuctionView view) {
+            while (!view.pending.isEmpty() && view.pending.peek()[0] <= view.highBid) {
+                view.pending.poll();
+                bidsUnacknowledged.incrementAndGet();
+            }
+        }
+
+        //bids that have gone unanswered for too long were most likely
+        //rejected, for example for being over the budget the server allows
+        private void expire(AuctionView view, long now) {
+            while (!view.pending.isEmpty() && now - view.pending.peek()[1] >= timeout * 1000000L) {
+                view.pending.poll();
+                bidsUnacknowledged.incrementAndGet();
+            }
+            if (view.pending.isEmpty()) {
+                view.lastBid = 0;
+            }
+        }
+
+        private void wantBid(AuctionView view) {
+            view.dirty = true;
+            loop.wake(this, nextBidTime);
+        }
+
+        //bids in the first auction the strategy wants to bid in, then waits
+        //for the interval to pass before bidding again
+        void bid(long now) {
+            if (closed || sessionId == null) {
+                return;
+            }
+            for (AuctionView view : auctions.values()) {
+                if (!view.open || !view.dirty) {
+                    continue;
+                }
+
+                // A bid that is still in flight counts as the high bid
+
+                expire(view, now);
+                int highBid = Math.max(view.highBid, view.lastBid);
+                boolean isHighBidder = bidderId.equals(view.highBidder) || !view.pending.isEmpty();
+                int bid = strategy.nextBid(highBid, isHighBidder, budget, rand);
+                if (bid == BidStrategy.NO_BID) {
+                    if (view.pending.isEmpty()) {
+                        view.dirty = false;
+                    } else {
+                        loop.wake(this, view.pending.peek()[1] + timeout * 1000000L);
+                    }
+                    continue;
+                }
+
+                try {
+                    send("bid sessionId=" + sessionId + " auctionId=" + view.auctionId
+                         + " bidderId=" + bidderId + " bid=" + bid);
+                } catch (IOException e) {
+                    ioErrors.incrementAndGet();
+                    close();
+                    return;
+                }
+                view.lastBid = bid;
+                view.pending.add(new long[] { bid, now });
+                bidsSent.incrementAndGet();
+
+                // Ask the strategy again once the interval has passed, in
+                // this auction or any other. Without a limit the bidder still
+                // waits for the next pass of its loop, so that it reads the
+                // replies to its bids in between.
+
+                nextBidTime = now + Math.max(1, interval);
+                loop.wake(this, nextBidTime);
+                return;
+            }
+        }
+
+        void close() {
+            if (closed || channel == null) {
+                return;
+            }
+            closed = true;
+            --loop.open;
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                ioErrors.incrementAndGet();
+            }
+        }
+    }
+}
@@ -21,7 +21,7 @@ import java.net.*;
 public class CmdLineClient
 {
     static public Socket mySocket = null;
-    static public PrintWriter out = null;
+    static public ServerConnection connection = null;
     static public BufferedReader in = null;
     //server sends Strings that encode information about auction state
     static public String serverMsg = "";
@@ -40,9 +40,11 @@ public class CmdLineClient
         } catch (IOException e) { }
         System.out.println("server IP = " + serverIP + ".  port = " + socketNum);
 
+        //"-binary" asks the server for the compact binary format
+        boolean binary = args.length > 0 && args[0].equals("-binary");
+
         try {
-            mySocket = new Socket(serverIP, socketNum);
-            out = new PrintWriter(mySocket.getOutputStream(), true);
+            connection = new ServerConnection(serverIP, socketNum, binary);
         } catch (UnknownHostException e) {
             System.err.println("Don't know about host: "+serverIP+".");
             System.exit(1);
@@ -53,7 +55,7 @@ public class CmdLineClient
         System.out.println("Connection to host established");
 
         //Create and start Listener which receives messages from Server
-        SocketListener listener = new SocketListener(mySocket);
+        SocketListener listener = new SocketListener(connection);
         listener.start();
 
         //Use to read user input
@@ -68,15 +70,13 @@ public class CmdLineClient
             //System.out.println("\nMost Recent Server Msg: " + serverMsg);
 
             //System.out.print("\nEnter response: "); //Prompt user for response
-            out.println( stdIn.readLine() ); //send user's message to host
+            connection.sendMessage( stdIn.readLine() ); //send user's message to host
             System.out.println("\n--------------------------------------------\n");
         }
         //close the connection
         listener.interrupt();
-        out.close();
-        in.close();
         stdIn.close();
-        mySocket.close();
+        connection.close();
     }
 
 
@@ -87,17 +87,11 @@ public class CmdLineClient
      * record of the auction state and print it.
      */
     private static class SocketListener extends Thread {
-        private Socket socket = null;
-        private BufferedReader in;
+        private ServerConnection connection = null;
 
-        public SocketListener(Socket s){
+        public SocketListener(ServerConnection c){
             super("SocketListener"); //call superclass constructor: Thread(String name)
-            socket = s;
-            try{
-                in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+            connection = c;
         }
 
         /**
@@ -107,7 +101,7 @@ public class CmdLineClient
         public void run() {
             while (true) {
                 try {
-                    String hostMsg = in.readLine();//receive messages from client
+                    String hostMsg = connection.readMessage();//receive messages from server
                     if (!hostMsg.equals(CmdLineClient.serverMsg)) {
                         CmdLineClient.serverMsg = hostMsg;
                         System.out.print("\n\n\n");
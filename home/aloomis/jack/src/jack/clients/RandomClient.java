@@ -20,7 +20,7 @@ import java.util.Random;
 public class RandomClient
 {
     static public Socket mySocket = null;
-    static public PrintWriter out = null;
+    static public ServerConnection connection = null;
     static public BufferedReader in = null;
     //server sends Strings that encode information about auction state
     static public String serverMsg = "";
@@ -40,9 +40,11 @@ public class RandomClient
         } catch (IOException e) { }
         System.out.println("server IP = " + serverIP + ".  port = " + socketNum);
 
+        //"-binary" asks the server for the compact binary format
+        boolean binary = args.length > 0 && args[0].equals("-binary");
+
         try {
-            mySocket = new Socket(serverIP, socketNum);
-            out = new PrintWriter(mySocket.getOutputStream(), true);
+            connection = new ServerConnection(serverIP, socketNum, binary);
         } catch (UnknownHostException e) {
             System.err.println("Don't know about host: "+serverIP+".");
             System.exit(1);
@@ -53,7 +55,7 @@ public class RandomClient
         System.out.println("Connection to host established");
 
         //Create and start Listener which receives messages from Server
-        SocketListener listener = new SocketListener(mySocket);
+        SocketListener listener = new SocketListener(connection);
         listener.start();
 
         //Use to read user input
@@ -65,22 +67,20 @@ public class RandomClient
                 break; //Special message that client should close down
             } else if (serverMsg.contains("Enter_ID")) {
                 int idNum = rand.nextInt(20);//random 0 to 19
-                out.println( "Random_Bidder_"+idNum ); //what a terrible name...
+                connection.sendMessage( "Random_Bidder_"+idNum ); //what a terrible name...
                 serverMsg = "";
                 System.out.println("\n--------------------------------------------\n");
             } else if (serverMsg.contains("Bid")) {
                 int bid = rand.nextInt(20);//bid randomly 0 to 19
-                out.println( bid ); //what a terrible way to bid...
+                connection.sendMessage( "" + bid ); //what a terrible way to bid...
                 serverMsg = "";
                 System.out.println("\n--------------------------------------------\n");
             }
         }
         //close the connection
         listener.interrupt();
-        out.close();
-        in.close();
         stdIn.close();
-        mySocket.close();
+        connection.close();
     }
 
 
@@ -91,17 +91,11 @@ public class RandomClient
      * record of the auction state and print it.
      */
     private static class SocketListener extends Thread {
-        private Socket socket = null;
-        private BufferedReader in;
+        private ServerConnection connection = null;
 
-        public SocketListener(Socket s){
+        public SocketListener(ServerConnection c){
             super("SocketListener"); //call superclass constructor: Thread(String name)
-            socket = s;
-            try{
-                in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+            connection = c;
         }
 
         /**
@@ -111,7 +105,7 @@ public class RandomClient
         public void run() {
             while (true) {
                 try {
-                    String hostMsg = in.readLine();//receive messages from client
+                    String hostMsg = connection.readMessage();//receive messages from server
                     if (!hostMsg.equals(RandomClient.serverMsg)) {
                         RandomClient.serverMsg = hostMsg;
                         System.out.print("\n\n\n");
@@ -0,0 +1,121 @@
+/**
+ * This library is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License version 2.1 as published by the
+ * Free Software Foundation.
+ *
+ * A connection to the auction server that speaks either the text protocol or
+ * the binary protocol described in jack.server.BinaryCodec.  Messages are
+ * always handed to and returned from the connection in their text form, so a
+ * client does not need to know which format is in use.
+ */
+
+package jack.clients;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+
+import jack.server.BinaryCodec;
+import jack.server.ClientHandler;
+
+
+public class ServerConnection
+{
+    private final Socket socket;
+    private final InputStream in;
+    private final OutputStream out;
+    private final BinaryCodec codec = new BinaryCodec();
+
+    //the client switches as soon as it has asked for binary, while the
+    //server only switches once it has replied
+    private boolean binaryOutput = false;
+    private boolean binaryInput = false;
+
+    /**
+     * Connects to the server.  If binary is true the binary format is
+     * requested as the very first message, and every message after that is
+     * sent as a binary frame.  The server must support the binary format.
+     */
+    public ServerConnection(String host, int port, boolean binary) throws IOException {
+        socket = new Socket(host, port);
+        in = new BufferedInputStream(socket.getInputStream());
+        out = new BufferedOutputStream(socket.getOutputStream());
+        if (binary) {
+            sendMessage(BinaryCodec.HANDSHAKE + " " + BinaryCodec.FORMAT_KEY
+                        + "=" + BinaryCodec.BINARY);
+            binaryOutput = true;
+        }
+    }
+
+    /**
+     * Sends a single message to the server.  This method is thread safe.
+     */
+    public synchronized void sendMessage(String message) throws IOException {
+        if (binaryOutput) {
+            try {
+                ByteBuffer frame = codec.encode(message);
+                out.write(frame.array(), frame.arrayOffset() + frame.position(),
+                          frame.remaining());
+            } catch (IllegalArgumentException e) {
+                throw new IOException(e.getMessage());
+            }
+        } else {
+            out.write((message + "\n").getBytes("UTF-8"));
+        }
+        out.flush();
+    }
+
+    /**
+     * Asks to join the given session of a server that hosts more than one.
+     * The server answers with a "joined" or "refused" message.  A client
+     * that never joins is placed in the server's first session.
+     */
+    public void join(int sessionId) throws IOException {
+        sendMessage(ClientHandler.JOIN + " " + ClientHandler.SESSION_ID_KEY + "=" + sessionId);
+    }
+
+    /**
+     * Tells the server that this client is ready to bid as the given bidder.
+     * A session that waits for a quorum starts as soon as enough of its
+     * clients are ready.
+     */
+    public void ready(String bidderId) throws IOException {
+        sendMessage(ClientHandler.READY + " " + ClientHandler.BIDDER_ID_KEY + "=" + bidderId);
+    }
+
+    /**
+     * Blocks until the next message arrives from the server.  The server's
+     * reply to a handshake is returned like any other message.  Returns null
+     * once the server closes the connection.  Only one thread may read.
+     */
+    public String readMessage() throws IOException {
+        if (binaryInput) {
+            return codec.readFrame(in);
+        }
+
+        String line = readLine();
+        if (line != null && line.equals(BinaryCodec.HANDSHAKE + " "
+                + BinaryCodec.FORMAT_KEY + "=" + BinaryCodec.BINARY)) {
+            binaryInput = true;
+        }
+        return line;
+    }
+
+    public void close() throws IOException {
+        socket.close();
+    }
+
+    //reads a line of text, without the line terminator
+    private String readLine() throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) {
+                return line.size() == 0 ? null : line.toString("UTF-8");
+            }
+            line.write(b);
+        }
+        String s = line.toString("UTF-8");
+        return s.endsWith("\r") ? s.substring(0, s.length() - 1) : s;
+    }
+}
@@ -0,0 +1,437 @@
+package jack.journal;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import jack.auctions.Ledger;
+
+/**
+ * The Journal is an append only record of everything that happens in a
+ * session: every message that an auction accepts, every auction state
+ * transition, and the budgets and rosters that the scheduler hands from one
+ * auction to the next. After a crash the journal can be read back with
+ * JournalReplay to resume the schedule where it stopped.
+ *
+ * The journal is a directory of fixed size segment files, each of which is
+ * memory mapped, so appending a record is a copy into memory. The records are
+ * forced to the disk by a background thread, which commits every record
+ * appended since its last pass with a single force, so appending never waits
+ * on the disk. The same thread maps the next segment ahead of time and forces
+ * each full segment once it has been retired, so moving from one segment to
+ * the next is only a change of buffers. The segment mapped ahead is left
+ * empty if the journal is closed before it is used. Each record is
+ *
+ *     length (int) | crc32 (int) | kind (byte) | sessionId (int) |
+ *     auctionId (int) | body
+ *
+ * where length counts everything after the crc. Segments are zero filled, so
+ * a zero length marks the end of the records in a segment. A record that was
+ * torn by a crash fails its crc. Every time a journal is opened it starts a
+ * new segment, so a torn record is always the last one in its segment.
+ *
+ * Every server run that does not resume from the journal starts with a RUN
+ * record, and JournalReplay only recovers the records after the last one, so
+ * a journal directory can be kept from one run to the next. This class is
+ * thread safe.
+ */
+public class Journal {
+
+    /** A message accepted by an auction. The body is the message text. */
+    public static final byte MESSAGE = 1;
+
+    /** An auction state transition. The body is the old and new state. */
+    public static final byte STATE = 2;
+
+    /**
+     * The budgets and rosters taken from an auction as it ends. The body has
+     * a line for each bidder holding the bidder, its budget, and each player
+     * that it has drafted, all followed by commas.
+     */
+    public static final byte LEDGER = 3;
+
+    /**
+     * The start of a server run that does not resume from the journal. The
+     * body is empty, and the records before it belong to earlier runs.
+     */
+    public static final byte RUN = 4;
+
+    /** The default size of each segment, in bytes */
+    public static final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+    /** The default time between commits, in ms */
+    public static final long DEFAULT_COMMIT_INTERVAL = 10;
+
+    /** The start and end of the name of each segment file */
+    static final String SEGMENT_PREFIX = "journal-";
+    static final String SEGMENT_SUFFIX = ".seg";
+
+    /** The bytes in front of each record body */
+    static final int HEADER_SIZE = 4 + 4 + 1 + 4 + 4;
+
+    static final Charset CHARSET = Charset.forName("UTF-8");
+
+    private static final Logger LOGGER = Logger.getLogger(Journal.class.getName());
+
+    /** The directory holding the segments */
+    private final File directory;
+
+    /** The size of each segment, in bytes */
+    private final int segmentSize;
+
+    /** The longest time a record may wait to be committed, in ms */
+    private final long commitInterval;
+
+    /** The thread that commits the records */
+    private final Thread committer;
+
+    /** The number of the current segment */
+    private int segmentNumber;
+
+    /** The current segment, mapped into memory */
+    private MappedByteBuffer segment;
+
+    /** The segment after the current one, mapped ahead of time, or null */
+    private MappedByteBuffer spare = null;
+
+    /** Full segments that have not yet been forced to the disk */
+    private final List<MappedByteBuffer> retired = new ArrayList<MappedByteBuffer>();
+
+    /** Used to checksum each record */
+    private final CRC32 crc = new CRC32();
+
+    /** True if records have been appended since the last commit */
+    private boolean dirty = false;
+
+    /** True once the journal has been closed */
+    private boolean closed = false;
+
+    /** The number of records appended */
+    private long appended = 0;
+
+    /** The number of commits */
+    private long commits = 0;
+
+    /**
+     * Opens a journal in the given directory, which is created if necessary.
+     * Any segments already in the directory are kept, and new records are
+     * appended to a new segment after them.
+     * @param directory The directory holding the segments
+     * @param segmentSize The size of each segment, in bytes
+     * @param commitInterval The longest time a record may wait to be
+     *        committed, in ms
+     * @throws IOException If the first segment could not be created
+     */
+    public Journal(File directory, int segmentSize, long commitInterval)
+            throws IOException {
+        if (segmentSize < HEADER_SIZE + 1) {
+            throw new IllegalArgumentException("segment too small");
+        }
+        if (commitInterval < 1) {
+            throw new IllegalArgumentException("commit interval must be positive");
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Failed to create " + directory);
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.commitInterval = commitInterval;
+
+        List<File> segments = JournalReplay.listSegments(directory);
+        segmentNumber = segments.isEmpty() ? 0
+            : JournalReplay.segmentNumber(segments.get(segments.size() - 1)) + 1;
+        segment = map(segmentNumber);
+
+        committer = new Thread(new Committer(), "journal-committer");
+        committer.setDaemon(true);
+        committer.start();
+    }
+
+    /**
+     * Opens a journal with the default segment size and commit interval.
+     * @param directory The directory holding the segments
+     * @throws IOException If the first segment could not be created
+     */
+    public Journal(File directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_SIZE, DEFAULT_COMMIT_INTERVAL);
+    }
+
+    /**
+     * Appends a message that an auction accepted.
+     * @param sessionId The session of the auction
+     * @param auctionId The auction that accepted the message
+     * @param message The message text
+     */
+    public void appendMessage(int sessionId, int auctionId, String message) {
+        append(MESSAGE, sessionId, auctionId, message.getBytes(CHARSET));
+    }
+
+    /**
+     * Appends an auction state transition.
+     * @param sessionId The session of the auction
+     * @param auctionId The auction that changed state
+     * @param oldState The state the auction left
+     * @param newState The state the auction entered
+     */
+    public void appendState(int sessionId, int auctionId, int oldState, int newState) {
+        append(STATE, sessionId, auctionId,
+               (oldState + " " + newState).getBytes(CHARSET));
+    }
+
+    /**
+     * Appends the budgets and rosters taken from an auction as it ends.
+     * @param sessionId The session of the auction
+     * @param auctionId The auction that is ending
+     * @param ledger The budget and roster of each bidder
+     */
+    public void appendLedger(int sessionId, int auctionId, Ledger ledger) {
+        append(LEDGER, sessionId, auctionId, ledger.toString().getBytes(CHARSET));
+    }
+
+    /**
+     * Appends the start of a new run, which replaces everything journaled
+     * before it. This should be appended before anything else by a server
+     * that does not resume from the journal.
+     */
+    public void appendRun() {
+        append(RUN, 0, 0, new byte[0]);
+    }
+
+    /**
+     * Blocks until every record appended so far has been forced to the disk.
+     */
+    public void sync() {
+        MappedByteBuffer toForce;
+        List<MappedByteBuffer> full;
+        synchronized (this) {
+            toForce = segment;
+            full = new ArrayList<MappedByteBuffer>(retired);
+            retired.clear();
+            dirty = false;
+        }
+        for (MappedByteBuffer done : full) {
+            done.force();
+        }
+        toForce.force();
+        synchronized (this) {
+            ++commits;
+        }
+    }
+
+    /**
+     * Commits every record appended so far and stops the commit thread.
+     * Records appended after this are ignored.
+     */
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            notifyAll();
+        }
+        try {
+            committer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (MappedByteBuffer done : retired) {
+            done.force();
+        }
+        segment.force();
+    }
+
+    /** @return The directory holding the segments */
+    public File getDirectory() {
+        return directory;
+    }
+
+    /** @return The number of records appended */
+    public synchronized long getAppended() {
+        return appended;
+    }
+
+    /** @return The number of times records have been forced to the disk */
+    public synchronized long getCommits() {
+        return commits;
+    }
+
+    /**
+     * Copies a record into the current segment, starting a new segment if it
+     * does not fit. A record that does not fit into an empty segment is
+     * refused with an IllegalArgumentException.
+     */
+    private synchronized void append(byte kind, int sessionId, int auctionId, byte[] body) {
+        if (closed) {
+            return;
+        }
+        int length = HEADER_SIZE - 8 + body.length;
+        if (8 + length > segmentSize) {
+            throw new IllegalArgumentException("record larger than a segment");
+        }
+
+        // Records never span segments. The rest of a full segment is left
+        // zero filled, which marks the end of its records. The full segment
+        // is forced by the committer, which has normally mapped the next one
+        // already. Only if it has not do we map it here.
+
+        if (segment.remaining() < 8 + length) {
+            MappedByteBuffer next = spare;
+            spare = null;
+            notifyAll();
+            if (next == null) {
+                try {
+                    next = map(segmentNumber + 1);
+                } catch (IOException e) {
+                    LOGGER.warning("Failed to start journal segment: " + e.getMessage());
+                    closed = true;
+                    notifyAll();
+                    return;
+                }
+            }
+            retired.add(segment);
+            segment = next;
+            ++segmentNumber;
+        }
+
+        int start = segment.position();
+        segment.position(start + 8);
+        segment.put(kind);
+        segment.putInt(sessionId);
+        segment.putInt(auctionId);
+        segment.put(body);
+
+        crc.reset();
+        crc.update(kind);
+        crc.update(toBytes(sessionId), 0, 4);
+        crc.update(toBytes(auctionId), 0, 4);
+        crc.update(body, 0, body.length);
+
+        segment.putInt(start + 4, (int)crc.getValue());
+        segment.putInt(start, length);
+
+        ++appended;
+        if (!dirty) {
+            dirty = true;
+            notifyAll();
+        }
+    }
+
+    /** Creates and maps the segment with the given number. */
+    private MappedByteBuffer map(int number) throws IOException {
+        File file = new File(directory, segmentName(number));
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(segmentSize);
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /** @return The name of the segment file with the given number */
+    static String segmentName(int number) {
+        return String.format("%s%08d%s", SEGMENT_PREFIX, number, SEGMENT_SUFFIX);
+    }
+
+    /** @return The bytes of the int, in the order they are journaled */
+    static byte[] toBytes(int value) {
+        return new byte[] { (byte)(value >>> 24), (byte)(value >>> 16),
+                            (byte)(value >>> 8), (byte)value };
+    }
+
+    /**
+     * Maps the segment after the current one, so that it is ready when the
+     * current one fills up. If the current segment has filled up in the
+     * meantime, the segment mapped here is already in use and is dropped.
+     * @return False if the segment could not be mapped
+     */
+    private boolean prepareSpare() {
+        int number;
+        synchronized (this) {
+            number = segmentNumber + 1;
+        }
+        MappedByteBuffer next;
+        try {
+            next = map(number);
+        } catch (IOException e) {
+            LOGGER.warning("Failed to map journal segment: " + e.getMessage());
+            return false;
+        }
+        synchronized (this) {
+            if (spare == null && number == segmentNumber + 1) {
+                spare = next;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The Committer forces the current segment to the disk whenever records
+     * have been appended to it, at most once per commit interval. Every
+     * record appended in the meantime is committed by the same force, along
+     * with any segments that filled up. It also maps each segment ahead of
+     * the one in use.
+     */
+    private class Committer implements Runnable {
+        public void run() {
+            while (true) {
+                boolean prepare;
+                synchronized (Journal.this) {
+                    try {
+                        while (!dirty && spare != null && !closed) {
+                            Journal.this.wait();
+                        }
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    if (closed) {
+                        return;
+                    }
+                    prepare = spare == null;
+                }
+
+                // If the next segment cannot be mapped, try again after the
+                // next commit rather than straight away
+
+                if (prepare && prepareSpare()) {
+                    continue;
+                }
+
+                // Wait out the commit interval, so that the records appended
+                // in the meantime are committed together, mapping the next
+                // segment whenever the spare is taken
+
+                long deadline = System.currentTimeMillis() + commitInterval;
+                while (true) {
+                    synchronized (Journal.this) {
+                        long remaining;
+                        try {
+                            while (spare != null && !closed
+                                    && (remaining = deadline - System.currentTimeMillis()) > 0) {
+                                Journal.this.wait(remaining);
+                            }
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                        if (closed) {
+                            return;
+                        }
+                        prepare = spare == null;
+                    }
+                    if (!prepare || !prepareSpare()) {
+                        break;
+                    }
+                }
+                sync();
+            }
+        }
+    }
+}
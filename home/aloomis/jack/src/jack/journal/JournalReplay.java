@@ -0,0 +1,282 @@
+package jack.journal;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import jack.auctions.AuctionBase;
+import jack.auctions.Ledger;
+
+/**
+ * The JournalReplay reads a journal written by Journal and rebuilds the state
+ * of the session that wrote it: the last state of each auction, the messages
+ * accepted by each auction since it last started, and the budgets and rosters
+ * that were handed on by the last auction to end. Only the records after the
+ * last RUN record are recovered, as those before it belong to a run that was
+ * not resumed. Reading is a single pass over the mapped segments, so a
+ * session can be recovered in a small fraction of the time it took to run.
+ *
+ * A message counts as accepted if its handler neither rejected it nor threw
+ * an IllegalArgumentException. Only accepted messages are journaled, since
+ * replaying the others would not change the auction.
+ */
+public class JournalReplay {
+
+    private static final Logger LOGGER = Logger.getLogger(JournalReplay.class.getName());
+
+    /** The last state of each auction */
+    private final Map<Integer, Integer> states = new HashMap<Integer, Integer>();
+
+    /** The messages accepted by each auction since it last started */
+    private final Map<Integer, List<String>> messages = new HashMap<Integer, List<String>>();
+
+    /** The auction that each ledger was taken from, in journal order */
+    private final List<Integer> ledgerAuctions = new ArrayList<Integer>();
+
+    /** The body of each ledger, in journal order */
+    private final List<String> ledgers = new ArrayList<String>();
+
+    /** The auctions that handed on a ledger */
+    private final Set<Integer> handedOn = new HashSet<Integer>();
+
+    /** The budgets and rosters handed on by the last auction to end */
+    private Ledger ledger = null;
+
+    /** The number of records read */
+    private long records = 0;
+
+    /** The number of torn records found at the end of a segment */
+    private int torn = 0;
+
+    /**
+     * Reads every segment of the journal in the given directory. Only the
+     * records of the given session are kept.
+     * @param directory The directory holding the segments
+     * @param sessionId The session to recover
+     * @return The recovered state
+     * @throws IOException If a segment could not be read
+     */
+    public static JournalReplay read(File directory, int sessionId) throws IOException {
+        JournalReplay replay = new JournalReplay();
+        for (File segment : listSegments(directory)) {
+            replay.readSegment(segment, sessionId);
+        }
+        replay.settle();
+        replay.chooseLedger();
+        return replay;
+    }
+
+    /**
+     * Returns the last journaled state of each auction. An auction that does
+     * not appear was never started.
+     * @return Map of states indexed by auction id
+     */
+    public Map<Integer, Integer> getStates() {
+        return Collections.unmodifiableMap(states);
+    }
+
+    /**
+     * Returns the messages accepted by the auction since it last started.
+     * These can be queued to the auction to rebuild its state when it is
+     * started again.
+     * @param auctionId The auction to look up
+     * @return The accepted messages, in order, which may be empty
+     */
+    public List<String> getMessages(int auctionId) {
+        List<String> accepted = messages.get(auctionId);
+        if (accepted == null) {
+            return Collections.emptyList();
+        }
+        return Collections.unmodifiableList(accepted);
+    }
+
+    /**
+     * @return The budgets and rosters handed on by the last auction to end,
+     *         or null if no auction ended
+     */
+    public Ledger getLedger() {
+        return ledger;
+    }
+
+    /** @return The number of records read */
+    public long getRecords() {
+        return records;
+    }
+
+    /** @return The number of torn records, each at the end of a segment */
+    public int getTorn() {
+        return torn;
+    }
+
+    /**
+     * Reads each record of a segment until the end of its records or a torn
+     * record.
+     */
+    private void readSegment(File file, int sessionId) throws IOException {
+        MappedByteBuffer segment;
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            segment = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+        } finally {
+            raf.close();
+        }
+
+        CRC32 crc = new CRC32();
+        byte[] record = new byte[256];
+        while (segment.remaining() >= 8) {
+            int length = segment.getInt();
+            int checksum = segment.getInt();
+            if (length == 0) {
+                return;
+            }
+            if (length < Journal.HEADER_SIZE - 8 || length > segment.remaining()) {
+                ++torn;
+                return;
+            }
+
+            if (record.length < length) {
+                record = new byte[Math.max(length, record.length * 2)];
+            }
+            segment.get(record, 0, length);
+            crc.reset();
+            crc.update(record, 0, length);
+            if ((int)crc.getValue() != checksum) {
+                ++torn;
+                LOGGER.warning("Torn journal record in " + file.getName());
+                return;
+            }
+
+            ++records;
+            int recordSession = readInt(record, 1);
+            if (record[0] == Journal.RUN) {
+                reset();
+            } else if (recordSession == sessionId) {
+                apply(record[0], readInt(record, 5),
+                      new String(record, 9, length - 9, Journal.CHARSET));
+            }
+        }
+    }
+
+    /** Applies a single record to the recovered state. */
+    private void apply(byte kind, int auctionId, String body) {
+        switch (kind) {
+            case Journal.MESSAGE:
+                List<String> accepted = messages.get(auctionId);
+                if (accepted == null) {
+                    accepted = new ArrayList<String>();
+                    messages.put(auctionId, accepted);
+                }
+                accepted.add(body);
+                break;
+
+            // Messages accepted before an auction last started belong to an
+            // earlier run. When an auction is run again after a crash, those
+            // messages are replayed into it and journaled again.
+
+            case Journal.STATE:
+                String[] transition = body.split(" ");
+                int oldState = Integer.parseInt(transition[0]);
+                int newState = Integer.parseInt(transition[1]);
+                states.put(auctionId, newState);
+                if (oldState == AuctionBase.STATE_NEW && messages.containsKey(auctionId)) {
+                    messages.get(auctionId).clear();
+                }
+                break;
+
+            case Journal.LEDGER:
+                ledgerAuctions.add(auctionId);
+                ledgers.add(body);
+                handedOn.add(auctionId);
+                break;
+
+            default:
+                LOGGER.warning("Unknown journal record: " + kind);
+        }
+    }
+
+    /** Forgets everything recovered so far, at the start of a new run. */
+    private void reset() {
+        states.clear();
+        messages.clear();
+        ledgerAuctions.clear();
+        ledgers.clear();
+        handedOn.clear();
+    }
+
+    /**
+     * The scheduler journals the ledger of an auction after the auction has
+     * been told to end, so an auction can be ending in the journal without
+     * its result having been recorded. Such an auction is treated as if it
+     * had not been ended, so that it is run again.
+     */
+    private void settle() {
+        for (Map.Entry<Integer, Integer> state : states.entrySet()) {
+            if (state.getValue() >= AuctionBase.STATE_ENDING
+                    && !handedOn.contains(state.getKey())) {
+                LOGGER.warning("Auction " + state.getKey() + " ended without a ledger, "
+                               + "running it again");
+                state.setValue(AuctionBase.STATE_ENDABLE);
+            }
+        }
+    }
+
+    /**
+     * Picks the budgets and rosters to resume with. These come from the last
+     * ledger taken from an auction that went on to end. A ledger taken from
+     * an auction that did not end before the crash is ignored, because that
+     * auction is run again.
+     */
+    private void chooseLedger() {
+        for (int i = ledgers.size() - 1; i >= 0; --i) {
+            Integer state = states.get(ledgerAuctions.get(i));
+            if (state != null && state >= AuctionBase.STATE_ENDING) {
+                ledger = Ledger.parse(ledgers.get(i));
+                return;
+            }
+        }
+    }
+
+    /** @return The big endian int at the given offset */
+    private static int readInt(byte[] bytes, int offset) {
+        return ((bytes[offset] & 0xff) << 24) | ((bytes[offset + 1] & 0xff) << 16)
+             | ((bytes[offset + 2] & 0xff) << 8) | (bytes[offset + 3] & 0xff);
+    }
+
+    /**
+     * Returns the segment files in the directory, in the order they were
+     * written.
+     */
+    static List<File> listSegments(File directory) {
+        File[] files = directory.listFiles(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return name.startsWith(Journal.SEGMENT_PREFIX)
+                    && name.endsWith(Journal.SEGMENT_SUFFIX);
+            }
+        });
+        if (files == null) {
+            return new ArrayList<File>();
+        }
+        Arrays.sort(files);
+        return new ArrayList<File>(Arrays.asList(files));
+    }
+
+    /** @return The number of a segment file */
+    static int segmentNumber(File segment) {
+        String name = segment.getName();
+        return Integer.parseInt(name.substring(Journal.SEGMENT_PREFIX.length(),
+                                name.length() - Journal.SEGMENT_SUFFIX.length()));
+    }
+}
@@ -0,0 +1,310 @@
+package jack.logging;
+
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+/**
+ * An EventLog writes log events to a java.util.logging Logger without making
+ * the thread that logs them wait for the Logger. An event is a level, a
+ * pattern such as "Auction {} ended by {}" and up to three parameters, one for
+ * each "{}" in the pattern. The event is checked against the level of the
+ * Logger, stored in a ring buffer shared by every EventLog, and only formatted
+ * later by a background thread that hands it on to the Logger. An event whose
+ * level is not being logged costs a level check, and an event that arrives
+ * while the ring buffer is full is dropped and counted rather than waited for.
+ * This class is thread safe.
+ */
+public final class EventLog {
+
+    /** The number of events the ring buffer can hold, a power of two */
+    private static final int CAPACITY = 8192;
+
+    /** The number of times the writer looks for an event before going idle */
+    private static final int SPINS = 10000;
+
+    /** The ring buffer shared by every event log */
+    private static final Ring RING = new Ring(CAPACITY);
+
+    /** The Logger the events are written to */
+    private final Logger target;
+
+    /**
+     * @param target The Logger to write the events to
+     */
+    private EventLog(Logger target) {
+        this.target = target;
+    }
+
+    /**
+     * Returns an event log that writes to the Logger of the given name, e.g.
+     * the name of the class that logs the events.
+     * @param name The name of the Logger
+     * @return The event log
+     */
+    public static EventLog getLog(String name) {
+        return new EventLog(Logger.getLogger(name));
+    }
+
+    /**
+     * Checks whether events of the given level are being logged. Callers that
+     * would have to do work to build the parameters of an event, such as
+     * boxing a number, can check this first.
+     * @param level The level of the event
+     * @return True if events of the level are logged and false otherwise
+     */
+    public boolean isLoggable(Level level) {
+        return target.isLoggable(level);
+    }
+
+    /**
+     * Logs an event without any parameters.
+     * @param level The level of the event
+     * @param pattern The message of the event
+     */
+    public void log(Level level, String pattern) {
+        if (target.isLoggable(level)) {
+            RING.offer(target, level, pattern, 0, null, null, null);
+        }
+    }
+
+    /**
+     * Logs an event with one parameter.
+     * @param level The level of the event
+     * @param pattern The message of the event, with "{}" in place of the
+     *                parameter
+     * @param arg0 The parameter
+     */
+    public void log(Level level, String pattern, Object arg0) {
+        if (target.isLoggable(level)) {
+            RING.offer(target, level, pattern, 1, arg0, null, null);
+        }
+    }
+
+    /**
+     * Logs an event with two parameters.
+     * @param level The level of the event
+     * @param pattern The message of the event, with "{}" in place of each
+     *                parameter
+     * @param arg0 The first parameter
+     * @param arg1 The second parameter
+     */
+    public void log(Level level, String pattern, Object arg0, Object arg1) {
+        if (target.isLoggable(level)) {
+            RING.offer(target, level, pattern, 2, arg0, arg1, null);
+        }
+    }
+
+    /**
+     * Logs an event with three parameters.
+     * @param level The level of the event
+     * @param pattern The message of the event, with "{}" in place of each
+     *                parameter
+     * @param arg0 The first parameter
+     * @param arg1 The second parameter
+     * @param arg2 The third parameter
+     */
+    public void log(Level level, String pattern, Object arg0, Object arg1, Object arg2) {
+        if (target.isLoggable(level)) {
+            RING.offer(target, level, pattern, 3, arg0, arg1, arg2);
+        }
+    }
+
+    /**
+     * Waits for the events that have been logged so far to be written to
+     * their Loggers, e.g. before the process exits.
+     * @param timeout The longest time to wait, in ms
+     * @return True if the events were written and false if the wait timed out
+     */
+    public static boolean flush(long timeout) {
+        return RING.flush(timeout);
+    }
+
+    /**
+     * @return The number of events that have been dropped because the ring
+     *         buffer was full
+     */
+    public static long getDropped() {
+        return RING.dropped.sum();
+    }
+
+    /**
+     * Formats the message of an event, replacing each "{}" in the pattern with
+     * the next parameter. Extra "{}" are left as they are.
+     */
+    static String format(String pattern, int argCount, Object arg0, Object arg1, Object arg2) {
+        if (argCount == 0) {
+            return pattern;
+        }
+        StringBuilder out = new StringBuilder(pattern.length() + 16 * argCount);
+        int arg = 0;
+        int start = 0;
+        int index;
+        while (arg < argCount && (index = pattern.indexOf("{}", start)) >= 0) {
+            out.append(pattern, start, index);
+            out.append(arg == 0 ? arg0 : arg == 1 ? arg1 : arg2);
+            start = index + 2;
+            ++arg;
+        }
+        out.append(pattern, start, pattern.length());
+        return out.toString();
+    }
+
+    /** An event in the ring buffer */
+    private static final class Event {
+
+        /** The sequence number of the event once it may be written, or -1 */
+        volatile long published = -1;
+
+        Logger target;
+        Level level;
+        String pattern;
+        int argCount;
+        Object arg0;
+        Object arg1;
+        Object arg2;
+        long millis;
+    }
+
+    /**
+     * The ring buffer of events. Any number of threads claim slots by
+     * advancing the head, and a single writer thread follows behind at the
+     * tail, writing each event once its slot has been published and freeing
+     * the slot for reuse.
+     */
+    private static final class Ring implements Runnable {
+
+        /** The events, indexed by sequence number modulo the capacity */
+        private final Event[] events;
+
+        /** The mask that turns a sequence number into an index */
+        private final int mask;
+
+        /** The sequence number of the next slot to be claimed */
+        private final AtomicLong head = new AtomicLong();
+
+        /** The sequence number of the next event to be written */
+        private volatile long tail = 0;
+
+        /** True while the writer is waiting for an event to be published */
+        private volatile boolean idle = false;
+
+        /** Events that were dropped because the buffer was full */
+        final LongAdder dropped = new LongAdder();
+
+        /** The thread that writes the events */
+        private final Thread writer;
+
+        Ring(int capacity) {
+            events = new Event[capacity];
+            mask = capacity - 1;
+            for (int i = 0; i < capacity; ++i) {
+                events[i] = new Event();
+            }
+            writer = new Thread(this, "EventLog");
+            writer.setDaemon(true);
+            writer.start();
+        }
+
+        /** Stores an event in the next free slot, or drops it if there is none. */
+        void offer(Logger target, Level level, String pattern, int argCount,
+                   Object arg0, Object arg1, Object arg2) {
+            long sequence;
+            do {
+                sequence = head.get();
+                if (sequence - tail >= events.length) {
+                    dropped.increment();
+                    return;
+                }
+            } while (!head.compareAndSet(sequence, sequence + 1));
+
+            Event event = events[(int) sequence & mask];
+            event.target = target;
+            event.level = level;
+            event.pattern = pattern;
+            event.argCount = argCount;
+            event.arg0 = arg0;
+            event.arg1 = arg1;
+            event.arg2 = arg2;
+            event.millis = System.currentTimeMillis();
+            event.published = sequence;
+
+            if (idle) {
+                idle = false;
+                LockSupport.unpark(writer);
+            }
+        }
+
+        /** Waits for the writer to catch up with the events claimed so far. */
+        boolean flush(long timeout) {
+            long end = head.get();
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+            while (tail < end) {
+                if (System.nanoTime() - deadline >= 0) {
+                    return false;
+                }
+                LockSupport.unpark(writer);
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+            }
+            return true;
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                long sequence = tail;
+                Event event = events[(int) sequence & mask];
+                if (event.published != sequence) {
+
+                    // Spin for a while before going idle, as waking us costs
+                    // the thread that logs the next event an unpark
+
+                    for (int spin = 0; spin < SPINS && event.published != sequence; ++spin) {
+                        Thread.onSpinWait();
+                    }
+                    if (event.published == sequence) {
+                        continue;
+                    }
+
+                    // Say that we are idle before looking again, so that an
+                    // event published in between either is seen or wakes us.
+                    // The timeout covers a slot claimed but not yet published.
+
+                    idle = true;
+                    if (event.published != sequence) {
+                        LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(100));
+                    }
+                    idle = false;
+                    continue;
+                }
+
+                Logger target = event.target;
+                LogRecord record = new LogRecord(event.level, format(
+                    event.pattern, event.argCount, event.arg0, event.arg1, event.arg2));
+                record.setInstant(Instant.ofEpochMilli(event.millis));
+                record.setLoggerName(target.getName());
+                record.setSourceClassName(target.getName());
+
+                // Let go of the event before the slot is handed back
+
+                event.target = null;
+                event.pattern = null;
+                event.arg0 = null;
+                event.arg1 = null;
+                event.arg2 = null;
+                tail = sequence + 1;
+
+                try {
+                    target.log(record);
+                } catch (RuntimeException e) {
+                    dropped.increment();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package jack.metrics;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of latencies that any number of threads may record into without
+ * locking. The unit of the latencies is up to the caller. Each power of two is
+ * split into SUB_BUCKETS buckets of equal width, so every percentile is
+ * accurate to within about 1/SUB_BUCKETS of its value, however long the
+ * latencies are. Recording a latency costs a few atomic increments, so it is
+ * cheap enough to leave on in production.
+ */
+public class LatencyHistogram {
+
+    /** Each power of two is split into 2^SUB_BITS buckets */
+    private static final int SUB_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+    /**
+     * The latencies below SUB_BUCKETS are counted exactly, and every power of
+     * two above that up to 2^63 gets SUB_BUCKETS of its own
+     */
+    private static final int BUCKETS = SUB_BUCKETS * (64 - SUB_BITS + 1);
+
+    /** The number of latencies in each bucket */
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    /** The number of latencies recorded */
+    private final AtomicLong total = new AtomicLong();
+
+    /** The longest latency recorded */
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Records a single latency. Negative latencies are counted as 0.
+     * @param latency The latency
+     */
+    public void record(long latency) {
+        if (latency < 0) {
+            latency = 0;
+        }
+        counts.incrementAndGet(bucketOf(latency));
+        total.incrementAndGet();
+
+        long current;
+        while (latency > (current = max.get())) {
+            if (max.compareAndSet(current, latency)) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * @return The number of latencies recorded
+     */
+    public long getCount() {
+        return total.get();
+    }
+
+    /**
+     * @return The longest latency recorded
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Returns the latency that the given fraction of the recorded latencies
+     * do not exceed, rounded up to the top of its bucket. Returns 0 if nothing
+     * has been recorded.
+     * @param fraction For example 0.99 for the 99th percentile
+     * @return The latency
+     */
+    public long getPercentile(double fraction) {
+        long count = total.get();
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long)Math.ceil(fraction * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; ++i) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(topOf(i), getMax());
+            }
+        }
+        return getMax();
+    }
+
+    /**
+     * Adds the count, the usual percentiles and the maximum of this histogram
+     * to a sample of metrics, each named after the prefix, e.g. "latency.p99".
+     * @param prefix The name of the histogram
+     * @param values The sample to add to
+     */
+    public void sample(String prefix, Map<String, Number> values) {
+        values.put(prefix + ".count", getCount());
+        values.put(prefix + ".p50", getPercentile(0.5));
+        values.put(prefix + ".p90", getPercentile(0.9));
+        values.put(prefix + ".p99", getPercentile(0.99));
+        values.put(prefix + ".max", getMax());
+    }
+
+    /**
+     * Returns the bucket of a latency. The first SUB_BUCKETS latencies have a
+     * bucket each, after that the bucket is picked by the highest set bit and
+     * the SUB_BITS below it.
+     */
+    private static int bucketOf(long latency) {
+        if (latency < SUB_BUCKETS) {
+            return (int)latency;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(latency) - SUB_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int)((latency >>> shift) - SUB_BUCKETS);
+    }
+
+    /** Returns the largest latency that falls into the given bucket. */
+    private static long topOf(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        long sub = bucket % SUB_BUCKETS + SUB_BUCKETS;
+        return ((sub + 1) << shift) - 1;
+    }
+}
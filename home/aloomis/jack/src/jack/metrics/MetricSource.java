@@ -0,0 +1,21 @@
+package jack.metrics;
+
+import java.util.Map;
+
+/**
+ * A MetricSource is anything that keeps metrics about itself, such as an
+ * auction or a client connection. Sources record into cheap counters and
+ * histograms as they go, and only turn them into values when they are
+ * sampled, which happens when the metrics are read over JMX or dumped.
+ */
+public interface MetricSource {
+
+    /**
+     * Adds the current value of each metric of this source to the sample.
+     * This may be called from any thread, at the same time as the metrics are
+     * being recorded, so the values only need to be roughly consistent with
+     * each other.
+     * @param values The sample to add to, by metric name
+     */
+    public void sample(Map<String, Number> values);
+}
@@ -0,0 +1,283 @@
+package jack.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Hashtable;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+/**
+ * The MetricsRegistry publishes the metrics of every registered source. Each
+ * source is exposed as a read only MBean named "jack:type=TYPE,name=NAME",
+ * whose attributes are the metrics of the source, and the registry can also
+ * write every source out as text to the log at a fixed interval. Sources are
+ * only sampled when they are read, so a registered source costs nothing until
+ * someone looks at it. This class is thread safe.
+ */
+public class MetricsRegistry {
+
+    /** The registry of the process, published on the platform MBean server */
+    private static final MetricsRegistry DEFAULT = new MetricsRegistry(
+        ManagementFactory.getPlatformMBeanServer());
+
+    /** The domain of every MBean name */
+    private static final String DOMAIN = "jack";
+
+    /** The MBean server the sources are published on, or null */
+    private final MBeanServer server;
+
+    /** The registered sources, sorted by type and name for the dumps */
+    private final Map<String, Registration> registrations
+        = new ConcurrentSkipListMap<String, Registration>();
+
+    /** The key of each registered source in the registrations */
+    private final Map<MetricSource, String> keys
+        = new IdentityHashMap<MetricSource, String>();
+
+    /** Writes the periodic dumps, or null if they are not being written */
+    private ScheduledExecutorService dumper = null;
+
+    /** Logger for writing log messages */
+    private final Logger LOGGER = Logger.getLogger(MetricsRegistry.class.getName());
+
+    /**
+     * Constructs a registry that publishes its sources on the given MBean
+     * server.
+     * @param server The MBean server, or null to only dump the sources
+     */
+    public MetricsRegistry(MBeanServer server) {
+        this.server = server;
+    }
+
+    /**
+     * @return The registry of the process, which publishes its sources on the
+     *         platform MBean server
+     */
+    public static MetricsRegistry getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Registers a source of metrics. A source registered under the same type
+     * and name as another source replaces it.
+     * @param type The kind of source, e.g. "Auction"
+     * @param name The name of the source among those of its type
+     * @param source The source of the metrics
+     */
+    public synchronized void register(String type, String name, MetricSource source) {
+        String key = type + " " + name;
+        Registration previous = registrations.get(key);
+        if (previous != null) {
+            unregister(previous.source);
+        }
+        unregister(source);
+
+        ObjectName objectName = null;
+        if (server != null) {
+            try {
+                objectName = new ObjectName(DOMAIN, createKeys(type, name));
+                server.registerMBean(new SourceMBean(type, source), objectName);
+            } catch (JMException e) {
+                LOGGER.warning("Failed to publish metrics of " + key + ": " + e);
+                objectName = null;
+            }
+        }
+        registrations.put(key, new Registration(type, name, source, objectName));
+        keys.put(source, key);
+    }
+
+    /**
+     * Unregisters a source of metrics. Nothing happens if the source is not
+     * registered.
+     * @param source The source to unregister
+     */
+    public synchronized void unregister(MetricSource source) {
+        String key = keys.remove(source);
+        if (key == null) {
+            return;
+        }
+        Registration registration = registrations.remove(key);
+        if (registration.objectName != null) {
+            try {
+                server.unregisterMBean(registration.objectName);
+            } catch (JMException e) {
+                LOGGER.warning("Failed to withdraw metrics of " + key + ": " + e);
+            }
+        }
+    }
+
+    /**
+     * Writes every registered source out as text, one source to a line, e.g.
+     * "Auction 1.4 queueDepth=0 handler.bid.accepted=12 ...".
+     * @return The text
+     */
+    public String dump() {
+        StringBuilder out = new StringBuilder();
+        Map<String, Number> values = new LinkedHashMap<String, Number>();
+        for (Registration registration : registrations.values()) {
+            values.clear();
+            registration.source.sample(values);
+            out.append(registration.type).append(' ').append(registration.name);
+            for (Map.Entry<String, Number> value : values.entrySet()) {
+                out.append(' ').append(value.getKey()).append('=').append(value.getValue());
+            }
+            out.append('\n');
+        }
+        return out.toString();
+    }
+
+    /**
+     * Starts writing the dump to a log at a fixed interval, replacing any
+     * dumps that have already been started. The dumps are written by a
+     * background thread.
+     * @param interval The time between dumps, in ms
+     * @param log The log to write the dumps to
+     */
+    public synchronized void startDumps(long interval, final Logger log) {
+        if (interval <= 0) {
+            throw new IllegalArgumentException("Invalid dump interval: " + interval);
+        }
+        stopDumps();
+        dumper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable task) {
+                Thread thread = new Thread(task, "MetricsDump");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        dumper.scheduleAtFixedRate(new Runnable() {
+            public void run() {
+                logDump(log);
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /** Stops writing the periodic dumps, if they have been started. */
+    public synchronized void stopDumps() {
+        if (dumper != null) {
+            dumper.shutdownNow();
+            dumper = null;
+        }
+    }
+
+    /**
+     * Writes the dump to a log straight away.
+     * @param log The log to write the dump to
+     */
+    public void logDump(Logger log) {
+        log.info("Metrics\n" + dump());
+    }
+
+    /**
+     * Returns the key properties of an MBean name. The name is quoted, as
+     * names such as socket addresses may hold characters that are not allowed
+     * in a key property.
+     */
+    private static Hashtable<String, String> createKeys(String type, String name) {
+        Hashtable<String, String> properties = new Hashtable<String, String>();
+        properties.put("type", type);
+        properties.put("name", ObjectName.quote(name));
+        return properties;
+    }
+
+    /** A registered source and the names it is known by */
+    private static class Registration {
+        final String type;
+        final String name;
+        final MetricSource source;
+        final ObjectName objectName;
+
+        Registration(String type, String name, MetricSource source, ObjectName objectName) {
+            this.type = type;
+            this.name = name;
+            this.source = source;
+            this.objectName = objectName;
+        }
+    }
+
+    /**
+     * Publishes a source as an MBean with a read only attribute for each of
+     * its metrics. The source is sampled afresh every time it is read, and
+     * the attributes may change as the source gains metrics.
+     */
+    private static class SourceMBean implements DynamicMBean {
+
+        private final String type;
+        private final MetricSource source;
+
+        SourceMBean(String type, MetricSource source) {
+            this.type = type;
+            this.source = source;
+        }
+
+        private Map<String, Number> sample() {
+            Map<String, Number> values = new LinkedHashMap<String, Number>();
+            source.sample(values);
+            return values;
+        }
+
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            Number value = sample().get(attribute);
+            if (value == null) {
+                throw new AttributeNotFoundException(attribute);
+            }
+            return value;
+        }
+
+        public AttributeList getAttributes(String[] attributes) {
+            Map<String, Number> values = sample();
+            AttributeList list = new AttributeList();
+            for (String attribute : attributes) {
+                Number value = values.get(attribute);
+                if (value != null) {
+                    list.add(new Attribute(attribute, value));
+                }
+            }
+            return list;
+        }
+
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException(attribute.getName() + " is read only");
+        }
+
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        public Object invoke(String actionName, Object[] params, String[] signature)
+                throws ReflectionException {
+            throw new ReflectionException(new NoSuchMethodException(actionName));
+        }
+
+        public MBeanInfo getMBeanInfo() {
+            List<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+            for (Map.Entry<String, Number> value : sample().entrySet()) {
+                attributes.add(new MBeanAttributeInfo(
+                    value.getKey(), value.getValue().getClass().getName(),
+                    value.getKey(), true, false, false));
+            }
+            return new MBeanInfo(source.getClass().getName(), type + " metrics",
+                                 attributes.toArray(new MBeanAttributeInfo[attributes.size()]),
+                                 null, null, null);
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package jack.scheduler;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Logger;
+
+/**
+ * The ExecutionMode selects the kind of thread that auctions and client
+ * readers run on. PLATFORM runs them on ordinary operating system threads.
+ * VIRTUAL runs every auction and every client reader on its own virtual
+ * thread, which lets the blocking style of AuctionBase.run() scale to
+ * thousands of auctions and bidders without an operating system thread for
+ * each. Virtual threads require Java 21; on older runtimes VIRTUAL falls back
+ * to PLATFORM with a warning.
+ */
+public enum ExecutionMode {
+
+    /** Auctions and client readers run on platform threads */
+    PLATFORM,
+
+    /** Auctions and client readers run on virtual threads */
+    VIRTUAL;
+
+    /** Executors.newVirtualThreadPerTaskExecutor(), if this runtime has it */
+    private static final Method NEW_VIRTUAL_EXECUTOR;
+
+    /** Thread.ofVirtual(), if this runtime has it */
+    private static final Method OF_VIRTUAL;
+
+    /** Thread.Builder.name(String) */
+    private static final Method BUILDER_NAME;
+
+    /** Thread.Builder.unstarted(Runnable) */
+    private static final Method BUILDER_UNSTARTED;
+
+    private static final Logger LOGGER = Logger.getLogger(ExecutionMode.class.getName());
+
+    // Look up the virtual thread API reflectively so that the server still
+    // builds and runs on runtimes that predate it.
+
+    static {
+        Method newVirtualExecutor = null;
+        Method ofVirtual = null;
+        Method builderName = null;
+        Method builderUnstarted = null;
+        try {
+            Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            newVirtualExecutor = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            builderName = builder.getMethod("name", String.class);
+            builderUnstarted = builder.getMethod("unstarted", Runnable.class);
+
+            // Preview builds expose the methods but refuse to run them
+
+            ((ExecutorService)newVirtualExecutor.invoke(null)).shutdown();
+        } catch (Exception e) {
+            newVirtualExecutor = null;
+            ofVirtual = null;
+        }
+        NEW_VIRTUAL_EXECUTOR = newVirtualExecutor;
+        OF_VIRTUAL = ofVirtual;
+        BUILDER_NAME = builderName;
+        BUILDER_UNSTARTED = builderUnstarted;
+    }
+
+    /**
+     * Returns the mode with the given name, ignoring case. This is used to
+     * read the mode from the server configuration.
+     * @param name Either "platform" or "virtual"
+     * @return The matching execution mode
+     */
+    public static ExecutionMode fromString(String name) {
+        return valueOf(name.trim().toUpperCase());
+    }
+
+    /**
+     * @return True if threads of this mode can be created on this runtime
+     */
+    public boolean isSupported() {
+        return this == PLATFORM || NEW_VIRTUAL_EXECUTOR != null;
+    }
+
+    /**
+     * Returns the mode that will actually be used on this runtime. This is
+     * the mode itself if it is supported and PLATFORM otherwise, in which case
+     * a warning is logged.
+     * @return The effective execution mode
+     */
+    public ExecutionMode effective() {
+        if (isSupported()) {
+            return this;
+        }
+        LOGGER.warning("Virtual threads are not available, using platform threads");
+        return PLATFORM;
+    }
+
+    /**
+     * Creates an executor for running auctions. In PLATFORM mode this is a
+     * cached thread pool which only creates as many threads as are needed to
+     * run the schedule without blocking. In VIRTUAL mode every task is given
+     * its own virtual thread. If this mode is not supported a cached thread
+     * pool is created instead.
+     * @return A new executor service
+     */
+    public ExecutorService newExecutor() {
+        if (this == VIRTUAL && isSupported()) {
+            try {
+                return (ExecutorService)NEW_VIRTUAL_EXECUTOR.invoke(null);
+            } catch (Exception e) {
+                LOGGER.warning("Failed to create virtual executor: " + e);
+            }
+        }
+        return Executors.newCachedThreadPool();
+    }
+
+    /**
+     * Creates an unstarted thread of this mode that runs the given task. If
+     * this mode is not supported a platform thread is created instead.
+     * @param name The name of the new thread
+     * @param task The task that the thread runs
+     * @return The new thread
+     */
+    public Thread newThread(String name, Runnable task) {
+        if (this == VIRTUAL && isSupported()) {
+            try {
+                Object builder = BUILDER_NAME.invoke(OF_VIRTUAL.invoke(null), name);
+                return (Thread)BUILDER_UNSTARTED.invoke(builder, task);
+            } catch (Exception e) {
+                LOGGER.warning("Failed to create virtual thread: " + e);
+            }
+        }
+        return new Thread(task, name);
+    }
+}
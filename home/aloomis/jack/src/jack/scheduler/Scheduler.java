@@ -1,20 +1,23 @@
 package jack.scheduler;
 
+import java.io.File;
 import java.lang.IllegalArgumentException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.LinkedList;
 import java.util.HashMap;
-import java.util.Iterator;
-import java.io.*;
 import java.util.HashSet;
-import java.util.LinkedList;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.locks.LockSupport;
 
 import jack.auctions.AuctionBase;
+import jack.auctions.Ledger;
+import jack.journal.Journal;
+import jack.metrics.MetricSource;
 
 /**
  * EXPIREMENTAL SCHEDULER USED TO IMPLEMENT BUDGET
@@ -38,14 +41,135 @@ public class Scheduler {
     private final Map<Integer, Set<Integer>> endDepends
                                     = new HashMap<Integer, Set<Integer>>();
 
-    /** Lock to synchronize auctions */
-    private final Object stateLock = new Object();
-    
-    /** Complilation of known bidder's budgets */
-    private Map<String, Integer> budgets = new HashMap<String, Integer>();
+    /** Reverse adjacency list of the starting dependencies */
+    private final Map<Integer, Set<Integer>> startDependents
+                                    = new HashMap<Integer, Set<Integer>>();
+
+    /** Reverse adjacency list of the ending dependencies */
+    private final Map<Integer, Set<Integer>> endDependents
+                                    = new HashMap<Integer, Set<Integer>>();
+
+    /** The budgets and rosters handed from one auction to the next */
+    private Ledger ledger = new Ledger();
+
+    /** The kind of thread that each auction is run on */
+    private ExecutionMode executionMode = ExecutionMode.PLATFORM;
+
+    /** True if draft snapshots are written */
+    private boolean snapshotsEnabled = true;
+
+    /** True if each draft snapshot is forced to the disk */
+    private boolean snapshotSync = false;
+
+    /** Records the budgets and rosters handed between auctions, or null */
+    private Journal journal = null;
+
+    /** The thread pool shared with other schedules, or null for one of our own */
+    private ExecutorService executor = null;
+
+    /** The directory that the draft snapshots are written to */
+    private File snapshotDirectory = new File(".");
+
+    /** The transitions, waits and throughput of this scheduler */
+    private final SchedulerMetrics metrics = new SchedulerMetrics();
+
+    /** How long to wait for the last draft snapshot to be written, in ms */
+    private static final long SNAPSHOT_TIMEOUT = 1000;
+
+    /**
+     * Sets the kind of thread that each auction is run on when the schedule is
+     * executed. By default auctions run on platform threads.
+     * @param newExecutionMode The new execution mode
+     */
+    public void setExecutionMode(ExecutionMode newExecutionMode) {
+        executionMode = newExecutionMode;
+    }
+
+    /**
+     * Sets whether snapshots of the draft budgets and rosters are written as
+     * the auctions end. Turning them off saves a thread and the disk writes
+     * when nothing follows the draft from outside the server, such as in a
+     * benchmark of the schedule. By default snapshots are written.
+     * @param newSnapshotsEnabled True to write snapshots
+     */
+    public void setSnapshotsEnabled(boolean newSnapshotsEnabled) {
+        snapshotsEnabled = newSnapshotsEnabled;
+    }
+
+    /**
+     * Sets whether each snapshot of the draft budgets and rosters is forced
+     * to the disk before it replaces the previous one. This survives a crash
+     * of the machine, but makes each snapshot much slower to write. The
+     * schedule never waits for a snapshot either way. By default snapshots
+     * are not forced.
+     * @param newSnapshotSync True to force each snapshot to the disk
+     */
+    public void setSnapshotSync(boolean newSnapshotSync) {
+        snapshotSync = newSnapshotSync;
+    }
+
+    /**
+     * Sets the thread pool that the auctions are run on, so that schedules
+     * running at the same time can share their threads. The pool is not shut
+     * down when the schedule finishes. By default each execution creates a
+     * pool of its own for the execution mode and shuts it down afterwards.
+     * @param newExecutor The thread pool, or null for one of our own
+     */
+    public void setExecutor(ExecutorService newExecutor) {
+        executor = newExecutor;
+    }
+
+    /**
+     * Sets the directory that the snapshots of the draft budgets and rosters
+     * are written to, which must hold the count file described in
+     * SnapshotWriter. By default this is the working directory.
+     * @param newSnapshotDirectory The directory
+     */
+    public void setSnapshotDirectory(File newSnapshotDirectory) {
+        if (newSnapshotDirectory == null) {
+            throw new IllegalArgumentException("snapshot directory must not be null");
+        }
+        snapshotDirectory = newSnapshotDirectory;
+    }
+
+    /**
+     * Sets the journal that the budgets and rosters are appended to each time
+     * they are taken from an ending auction. By default nothing is journaled.
+     * @param newJournal The new journal, or null for none
+     */
+    public void setJournal(Journal newJournal) {
+        journal = newJournal;
+    }
+
+    /**
+     * Sets the ledger of budgets and rosters that is handed to the first
+     * auctions to start. This is used to resume a schedule from a journal.
+     * @param newLedger The budget and roster of each bidder
+     */
+    public void setLedger(Ledger newLedger) {
+        if (newLedger == null) {
+            throw new IllegalArgumentException("ledger must not be null");
+        }
+        ledger = newLedger;
+    }
+
+    /**
+     * @return The ledger of budgets and rosters that is handed to the next
+     *         auctions to start
+     */
+    public Ledger getLedger() {
+        return ledger;
+    }
 
-    /** The rosters */
-    private HashMap<String, LinkedList<String>> rosters = new HashMap<String, LinkedList<String>>();
+    /**
+     * Returns the metrics of this scheduler, which count the transitions it
+     * has seen and the auctions it has started and ended, and time how long
+     * auctions wait to be ended and how long the scheduler waits for them.
+     * @return The metrics of this scheduler
+     */
+    public MetricSource getMetrics() {
+        return metrics;
+    }
 
     /**
      * Adds the specified auction to the schedule. If a auction with the same
@@ -61,6 +185,8 @@ public class Scheduler {
 
         startDepends.put(auctionId, new HashSet<Integer>());
         endDepends.put(auctionId, new HashSet<Integer>());
+        startDependents.put(auctionId, new HashSet<Integer>());
+        endDependents.put(auctionId, new HashSet<Integer>());
         return true;
     }
 
@@ -83,6 +209,7 @@ public class Scheduler {
         }
 
         startDepends.get(auctionId1).add(auctionId2);
+        startDependents.get(auctionId2).add(auctionId1);
     }
 
     /**
@@ -118,6 +245,7 @@ public class Scheduler {
         }
 
         endDepends.get(auctionId1).add(auctionId2);
+        endDependents.get(auctionId2).add(auctionId1);
     }
 
     /**
@@ -144,43 +272,39 @@ public class Scheduler {
      */
     public List<Integer> getTopoSort() {
 
-        // Create a duplicate list of edges
+        // Count the unsorted starting dependencies of each auction and insert
+        // the auctions without any into the queue
 
-        Map<Integer, Set<Integer>> edges =
-            new HashMap<Integer, Set<Integer>>(startDepends);
-
-        // Find all starting nodes and insert them into the queue
-
-        LinkedList<Integer> queue = new LinkedList<Integer>();
-        for (Map.Entry<Integer, Set<Integer>> entry : edges.entrySet()) {
+        Map<Integer, Integer> inDegree = new HashMap<Integer, Integer>();
+        ArrayDeque<Integer> queue = new ArrayDeque<Integer>();
+        for (Map.Entry<Integer, Set<Integer>> entry : startDepends.entrySet()) {
+            inDegree.put(entry.getKey(), entry.getValue().size());
             if (entry.getValue().isEmpty()) {
                 queue.add(entry.getKey());
             }
         }
 
-        // Kahn's algorithm
+        // Kahn's algorithm. Each edge is visited once, from the auction that
+        // must end to the auction that it holds back.
 
         List<Integer> sorted = new ArrayList<Integer>();
         while (!queue.isEmpty()) {
             int node = queue.remove();
             sorted.add(node);
 
-            for (Map.Entry<Integer, Set<Integer>> entry : edges.entrySet()) {
-                if (entry.getValue().remove(node)) {
-                    if (entry.getValue().isEmpty()) {
-                        queue.add(entry.getKey());
-                    }
+            for (int dependent : startDependents.get(node)) {
+                int remaining = inDegree.get(dependent) - 1;
+                inDegree.put(dependent, remaining);
+                if (remaining == 0) {
+                    queue.add(dependent);
                 }
             }
         }
 
         // Check for cycles
 
-        for (Map.Entry<Integer, Set<Integer>> entry : edges.entrySet()) {
-            if (!entry.getValue().isEmpty()) {
-                sorted.clear();
-                break;
-            }
+        if (sorted.size() != startDepends.size()) {
+            sorted.clear();
         }
 
         return sorted;
@@ -207,6 +331,15 @@ public class Scheduler {
      * tasks, and repeat. This is done until there are no endable and startable
      * tasks remaining. Any auction that is passed to this function which has
      * not been explicitly added tot he scheduler will be ignored.
+     *
+     * Rather than rescanning every auction each time something changes, each
+     * auction keeps a count of the dependencies that are still holding it
+     * back. Each auction publishes its state transitions to the scheduler
+     * through a lock free queue, and the scheduler updates the counts, which
+     * costs time proportional to the number of auctions that depend on the
+     * one that changed. An auction is queued to be ended or started as soon
+     * as its count reaches zero. No lock is shared between the auctions and
+     * the scheduler.
      * @param auctions Map of auctions indexed by their unique identification
      * 
      * NOTE: Here is where the budget is implemented
@@ -216,66 +349,70 @@ public class Scheduler {
      * dependency graph beforehand so that we can alert the user to any warnings
      * and avoid
      */
-    @SuppressWarnings("unchecked")
     public void execute(Map<Integer, AuctionBase> auctions) {
 
-        // Set the synchronization object for all auctions in the schedule. This
-        // will allow us to synchronize execution of the schedule and individual
-        // auctions without the auctions themselves knowing specifically about
-        // the schedule that they are being run by.
+        // Listen for every state transition of the auctions in the schedule,
+        // then count the dependencies that are holding back each auction.
+        // Listening first means that no transition can be missed, and any
+        // transition made in between is simply seen twice. This allows us to
+        // follow the individual auctions without the auctions themselves
+        // knowing specifically about the schedule that they are being run by.
 
+        Readiness readiness = new Readiness(Thread.currentThread());
         for (AuctionBase auction : auctions.values()) {
-            auction.setStateLock(stateLock);
+            auction.setStateListener(readiness);
         }
+        readiness.count(auctions);
 
-        // Create a thread pool to execute the auctions. We use a cached thread
-        // pool here because it only gives us as many threads as we need to
-        // request in order to execute the schedule without blocking.
+        // Create a thread pool to execute the auctions, unless we were given
+        // one to share. In platform mode this is a cached thread pool because
+        // it only gives us as many threads as we need to request in order to
+        // execute the schedule without blocking. In virtual mode each auction
+        // gets its own virtual thread.
 
-        ExecutorService threadPool = Executors.newCachedThreadPool();
+        ExecutorService threadPool = executor != null ? executor : executionMode.newExecutor();
+        SnapshotWriter snapshots = snapshotsEnabled
+            ? new SnapshotWriter(snapshotDirectory, snapshotSync) : null;
 
-        synchronized (stateLock) {
+        try {
             while (true) {
+                readiness.update();
 
                 // Get the set of endable auctions and try to end them
-                Set<AuctionBase> endableAuctions = getEndables(auctions);
+                List<AuctionBase> endableAuctions = readiness.takeEndables();
+                Set<AuctionBase> endingAuctions
+                    = new LinkedHashSet<AuctionBase>(endableAuctions);
                 for (AuctionBase auction : endableAuctions) {
-              	    /**Grab the budgets from the last auction */
-                    auction.updateBudgets();
-               	    budgets = auction.getBudgets();
-
-		    // Grab the rosters
-                    auction.updateRosters();
-	            rosters = new HashMap(auction.getRosters());
-                    auction.tryEnd();
+                    // The auction may have resumed since it became endable, in
+                    // which case it will be seen again once it is endable.
+
+                    if (!auction.tryEnd()) {
+                        metrics.endsMissed.increment();
+                        endingAuctions.remove(auction);
+                        continue;
+                    }
+                    metrics.ended.increment();
+                    metrics.endableWait.record(
+                        (System.nanoTime() - readiness.getEndableSince(auction)) / 1000);
+
+                    // Grab the budgets and rosters from the last auction. This
+                    // only happens once the auction is ending, so that each
+                    // auction updates the ledger exactly once.
+
+                    auction.updateLedger();
+                    ledger = auction.getLedger();
+                    if (journal != null) {
+                        journal.appendLedger(auction.getSessionId(), auction.getId(),
+                                             ledger.snapshot());
+                    }
                 }
 
-		//File writing
-		try{
-  			BufferedReader bf = new BufferedReader(new FileReader("count.txt"));
-			int theNum = Integer.parseInt(bf.readLine().trim());
-			bf.close();
-			BufferedWriter bw = new BufferedWriter(new FileWriter("count.txt"));
-			bw.write(Integer.toString(theNum));
-			bw.flush();
-			bw.close();
-			// Create file 
-  			FileWriter fstream = new FileWriter("ffad-current" + theNum + ".txt");
-  			BufferedWriter out = new BufferedWriter(fstream);
-  			//Get content
-			for(Map.Entry<String, LinkedList<String>> kv : rosters.entrySet()){
-				if(kv.getKey() != null){
-					out.write(kv.getKey() + "," + budgets.get(kv.getKey()) + ",");
-					for(String a : kv.getValue()){
-						out.write(a + ",");
-					}
-					out.write("\n");
-				}
-			}			
-
-  			//Close the output stream
-  			out.close();
-  		}catch (Exception e){}
+                // Hand a snapshot of the ledger to the snapshot writer, which
+                // formats and writes it out in the background.
+
+                if (snapshots != null && !endableAuctions.isEmpty()) {
+                    snapshots.submit(ledger.snapshot());
+                }
 
                 // Wait for each of those auctions to end. This approach does
                 // have some limitations in that while we are waiting, other
@@ -285,25 +422,26 @@ public class Scheduler {
                 // resolve quickly. If this is not the case the schedule will
                 // still be executed correctly, but not necessarily efficiently.
 
-                for (AuctionBase auction : endableAuctions) {
-                    auction.waitForEnd();
+                if (!endingAuctions.isEmpty()) {
+                    long waitStart = System.nanoTime();
+                    for (AuctionBase auction : endingAuctions) {
+                        auction.waitForEnd();
+                    }
+                    metrics.endingWait.record((System.nanoTime() - waitStart) / 1000);
                 }
 
                 // Get the set of startable auctions and execute them
 
-                Set<AuctionBase> startableAuctions = getStartables(auctions);
+                readiness.update();
+                List<AuctionBase> startableAuctions = readiness.takeStartables();
                 for (AuctionBase auction : startableAuctions) {
-                	/**Hand the budgets off to the next auction */
-                	if(budgets != null){
-                		auction.setBudgets(budgets);
-                	}
-
-			//Do the same with rosters
-			if(rosters != null){
-				auction.setRosters(rosters);
-			}
+                    // Hand the budgets and rosters off to the next auction
+                    auction.setLedger(ledger);
+                    readiness.started(auction);
                     threadPool.execute(auction);
+                    metrics.started.increment();
                 }
+                metrics.live = readiness.live;
 
                 // Now chack if we have finished executing the auction schedule.
                 // If there are any auctions that we just started then we have
@@ -313,130 +451,334 @@ public class Scheduler {
                 // function in the AuctionBase. That would allow us to just call
                 // isEnded here.
 
-                if (startableAuctions.isEmpty() && isEnded(auctions)) {
+                if (startableAuctions.isEmpty() && readiness.isEnded()) {
                     break;
                 }
 
-                // Now we block until we get a change in the number of endable
-                // auctions. This is really what keys the actions of the
-                // schedule. As long as no auctions move into STATE_ENDABLE,
-                // then they cannot be ended and no other auctions can be
-                // started.
+                // Now we block until an auction becomes endable or startable,
+                // or until every auction has ended. This is really what keys
+                // the actions of the schedule. As long as no auctions move into
+                // STATE_ENDABLE, then they cannot be ended and no other
+                // auctions can be started.
 
-                try {
-                    while (endableAuctions.equals(getEndables(auctions))) {
-                        stateLock.wait();
-                    }
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
+                long idleStart = System.nanoTime();
+                if (!readiness.awaitWork()) {
+                    break;
                 }
+                metrics.idleWait.record((System.nanoTime() - idleStart) / 1000);
+            }
+        } finally {
+            for (AuctionBase auction : auctions.values()) {
+                auction.setStateListener(null);
+            }
+            if (snapshots != null) {
+                snapshots.close(SNAPSHOT_TIMEOUT);
             }
         }
 
-        // Terminate the thread pool
-        threadPool.shutdown();
+        // Terminate the thread pool if it is our own
+        if (threadPool != executor) {
+            threadPool.shutdown();
+        }
     }
 
     /**
-     * Returns the set of auctions that are endable. An endable auction is not
-     * only in STATE_ENDABLE, but also has met all of its ending dependencies.
-     * To meet this requirement, each ending dependency must be in either
-     * STATE_ENDABLE, STATE_ENDING, or STATE_ENDED.
-     * @param auctions Map of auctions indexed by their unique identification
-     * @return The set of endable auctions
+     * Readiness tracks how many dependencies are still holding back each
+     * auction of a running schedule, and which auctions are ready to be ended
+     * or started. An auction is endable when it is in STATE_ENDABLE and each
+     * of its ending dependencies is in STATE_ENDABLE, STATE_ENDING, or
+     * STATE_ENDED. An auction is startable when it is in STATE_NEW and each of
+     * its starting dependencies is in STATE_ENDED. In addition if there are
+     * any starting or ending dependencies of an auction that are not present
+     * in the map, then that auction will never be considered endable or
+     * startable, respectively.
+     *
+     * The auctions report their transitions from their own threads by adding
+     * themselves to a lock free queue and waking the scheduler. Everything
+     * else is only used by the scheduler thread.
      */
-    private Set<AuctionBase> getEndables(Map<Integer, AuctionBase> auctions) {
-        Set<AuctionBase> endables = new HashSet<AuctionBase>();
-        for (AuctionBase auction : auctions.values()) {
+    private class Readiness implements AuctionBase.StateListener {
 
-            // Ignore auctions that are not endable or have not been added to
-            // the scheduler.
+        /** The thread executing the schedule, woken for each transition */
+        private final Thread scheduler;
 
-            if (auction.getState() != AuctionBase.STATE_ENDABLE
-                    || !endDepends.containsKey(auction.getId())) {
-                continue;
+        /** Auctions that have changed state since they were last looked at */
+        private final ConcurrentLinkedQueue<AuctionBase> changed
+                                    = new ConcurrentLinkedQueue<AuctionBase>();
+
+        /** The counters of each auction in the schedule */
+        private final Map<Integer, Node> nodes = new HashMap<Integer, Node>();
+
+        /** Auctions that can be ended, in the order they became endable */
+        private final Set<AuctionBase> endables = new LinkedHashSet<AuctionBase>();
+
+        /** Auctions that can be started, in the order they became startable */
+        private final Set<AuctionBase> startables = new LinkedHashSet<AuctionBase>();
+
+        /** The number of auctions that have been started but not ended */
+        private int live = 0;
+
+        /**
+         * @param scheduler The thread that executes the schedule
+         */
+        public Readiness(Thread scheduler) {
+            this.scheduler = scheduler;
+        }
+
+        /**
+         * Counts the dependencies that are holding back each auction in its
+         * current state. This takes time proportional to the size of the
+         * schedule, and is done once.
+         * @param auctions Map of auctions indexed by their unique identification
+         */
+        public void count(Map<Integer, AuctionBase> auctions) {
+            for (AuctionBase auction : auctions.values()) {
+                nodes.put(auction.getId(), new Node(auction));
             }
 
-            // Check if the auction has met all of its end dependencies
+            for (Node node : nodes.values()) {
+                if (!startDepends.containsKey(node.id)) {
+                    continue;
+                }
+                node.scheduled = true;
 
-            boolean canEnd = true;
-            for (int id : endDepends.get(auction.getId())) {
-                if (!auctions.containsKey(id)
-                        || auctions.get(id).getState()
-                            < AuctionBase.STATE_ENDABLE) {
-                    canEnd = false;
-                    break;
+                for (int depend : startDepends.get(node.id)) {
+                    Node other = nodes.get(depend);
+                    if (other == null || other.state != AuctionBase.STATE_ENDED) {
+                        ++node.startBlocks;
+                    }
+                }
+
+                for (int depend : endDepends.get(node.id)) {
+                    Node other = nodes.get(depend);
+                    if (other == null) {
+                        node.endDependsKnown = false;
+                        ++node.endBlocks;
+                    } else if (other.state < AuctionBase.STATE_ENDABLE) {
+                        ++node.endBlocks;
+                    }
                 }
             }
 
-            if (canEnd) {
-                endables.add(auction);
+            for (Node node : nodes.values()) {
+                if (isLive(node.state)) {
+                    node.started = true;
+                    ++live;
+                }
+                classify(node);
             }
         }
-        return endables;
-    }
 
-    /**
-     * Returns the set of auctions that are startable. A startable auction is
-     * currently in STATE_NEW and has also met all of its starting dependencies.
-     * This requires that each starting dependency must be in STATE_ENDED. In
-     * addition if there are any starting or ending dependencies of an auction
-     * that are not present in the map, then hat auction will never be
-     * considered startable.
-     * @param auctions Map of auctions indexed by their unique identification
-     * @return The set of startable auctions
-     */
-    private Set<AuctionBase> getStartables(Map<Integer, AuctionBase> auctions) {
-        Set<AuctionBase> startables = new HashSet<AuctionBase>();
-        for (AuctionBase auction : auctions.values()) {
+        /**
+         * Queues the auction to be looked at by the scheduler. This is called
+         * by whichever thread changed the state of the auction, and never
+         * blocks.
+         */
+        @Override
+        public void stateChanged(AuctionBase auction, int oldState, int newState) {
+            metrics.transition(newState);
+            changed.add(auction);
+            LockSupport.unpark(scheduler);
+        }
 
-            // Ignore auctions that have not been started or have not been added
-            // to the schduler.
+        /**
+         * Brings the counters up to date with every auction that has changed
+         * state. The queued transitions of an auction may arrive out of order,
+         * so each auction is compared against its current state rather than
+         * the transition that was reported.
+         */
+        public void update() {
+            AuctionBase auction;
+            while ((auction = changed.poll()) != null) {
+                Node node = nodes.get(auction.getId());
+                if (node != null && node.auction == auction) {
+                    update(node, auction.getState());
+                }
+            }
+        }
 
-            if (auction.getState() != AuctionBase.STATE_NEW
-                    || !startDepends.containsKey(auction.getId())) {
-                continue;
+        /**
+         * Blocks until there are auctions to end or start, or until every
+         * auction has ended.
+         * @return False if the scheduler thread was interrupted
+         */
+        public boolean awaitWork() {
+            update();
+            while (!hasWork()) {
+                if (changed.isEmpty()) {
+                    LockSupport.park(this);
+                }
+                if (Thread.currentThread().isInterrupted()) {
+                    return false;
+                }
+                update();
             }
+            return true;
+        }
 
-            // Check if the auction has met all of its start dependencies
+        /**
+         * Updates the counters of every auction that depends on the one that
+         * changed state. This takes time proportional to the number of
+         * auctions that depend on it.
+         */
+        private void update(Node node, int newState) {
+            // The auction may have left and come back to the same state, such
+            // as when it resumes just before it would have been ended, in
+            // which case it needs to be classified again.
+
+            int oldState = node.state;
+            if (oldState == newState) {
+                classify(node);
+                return;
+            }
+            node.state = newState;
+            if (newState == AuctionBase.STATE_ENDABLE) {
+                node.endableSince = System.nanoTime();
+            }
 
-            boolean canStart = true;
-            for (int id : startDepends.get(auction.getId())) {
-                if (!auctions.containsKey(id)
-                        || auctions.get(id).getState()
-                            != AuctionBase.STATE_ENDED) {
-                    canStart = false;
-                    break;
+            if (!node.started && isLive(newState)) {
+                node.started = true;
+                ++live;
+            } else if (node.started && newState == AuctionBase.STATE_ENDED) {
+                node.started = false;
+                --live;
+            }
+            classify(node);
+
+            // Ending dependencies are met by STATE_ENDABLE and every state
+            // after it, and STATE_ENDABLE can fall back to STATE_RUNNING.
+
+            boolean wasEndable = oldState >= AuctionBase.STATE_ENDABLE;
+            boolean isEndable = newState >= AuctionBase.STATE_ENDABLE;
+            if (wasEndable != isEndable && endDependents.containsKey(node.id)) {
+                for (int id : endDependents.get(node.id)) {
+                    Node other = nodes.get(id);
+                    if (other != null) {
+                        other.endBlocks += isEndable ? -1 : 1;
+                        classify(other);
+                    }
                 }
             }
 
-            // In addition check that we *know* about all of this auction's
-            // ending dependencies. We do not want to accidentally start an
-            // auction that we can never end.
+            // Starting dependencies are only met by STATE_ENDED, which is
+            // final.
 
-            if (canStart && auctions.keySet().containsAll(
-                    endDepends.get(auction.getId()))) {
-                startables.add(auction);
+            if (newState == AuctionBase.STATE_ENDED
+                    && startDependents.containsKey(node.id)) {
+                for (int id : startDependents.get(node.id)) {
+                    Node other = nodes.get(id);
+                    if (other != null) {
+                        --other.startBlocks;
+                        classify(other);
+                    }
+                }
             }
         }
-        return startables;
-    }
 
-    /**
-     * Returns true if the all of the auctions that have been started have also
-     * been ended. This function alone does not determine if we have completed
-     * executing the schedule.
-     * @param auctions Map of auctions indexed by their unique identification
-     */
-    private boolean isEnded(Map<Integer, AuctionBase> auctions) {
-        for (AuctionBase auction : auctions.values()) {
-            switch (auction.getState()) {
-                case AuctionBase.STATE_RUNNING:
-                case AuctionBase.STATE_ENDABLE:
-                case AuctionBase.STATE_ENDING:
-                    return false;
+        /**
+         * Records that the auction has been handed to a thread. Until it
+         * enters STATE_RUNNING it is still in STATE_NEW, but the schedule is
+         * not finished.
+         */
+        public void started(AuctionBase auction) {
+            Node node = nodes.get(auction.getId());
+            if (!node.started) {
+                node.started = true;
+                ++live;
             }
         }
-        return true;
+
+        /**
+         * @return The time at which the auction was last seen to become
+         *         endable, in ns
+         */
+        public long getEndableSince(AuctionBase auction) {
+            return nodes.get(auction.getId()).endableSince;
+        }
+
+        /** @return The endable auctions, which are forgotten until they change */
+        public List<AuctionBase> takeEndables() {
+            List<AuctionBase> taken = new ArrayList<AuctionBase>(endables);
+            endables.clear();
+            return taken;
+        }
+
+        /** @return The startable auctions, which are forgotten until they change */
+        public List<AuctionBase> takeStartables() {
+            List<AuctionBase> taken = new ArrayList<AuctionBase>(startables);
+            startables.clear();
+            return taken;
+        }
+
+        /** @return True if there are auctions to end or start */
+        public boolean hasWork() {
+            return !endables.isEmpty() || !startables.isEmpty() || live == 0;
+        }
+
+        /**
+         * Returns true if the all of the auctions that have been started have
+         * also been ended. This alone does not determine if we have completed
+         * executing the schedule.
+         */
+        public boolean isEnded() {
+            return live == 0;
+        }
+
+        /** Adds or removes the auction from the endables and startables. */
+        private void classify(Node node) {
+            if (node.scheduled && node.state == AuctionBase.STATE_ENDABLE
+                    && node.endBlocks == 0) {
+                endables.add(node.auction);
+            } else {
+                endables.remove(node.auction);
+            }
+
+            if (node.scheduled && node.state == AuctionBase.STATE_NEW
+                    && !node.started && node.startBlocks == 0
+                    && node.endDependsKnown) {
+                startables.add(node.auction);
+            } else {
+                startables.remove(node.auction);
+            }
+        }
+
+        private boolean isLive(int state) {
+            return state == AuctionBase.STATE_RUNNING
+                || state == AuctionBase.STATE_ENDABLE
+                || state == AuctionBase.STATE_ENDING;
+        }
+    }
+
+    /** The counters that the Readiness keeps for a single auction. */
+    private static class Node {
+        final AuctionBase auction;
+        final int id;
+
+        /** The last state that the auction reported */
+        int state;
+
+        /** True if the auction has been added to the scheduler */
+        boolean scheduled = false;
+
+        /** True if the auction has been started and has not yet ended */
+        boolean started = false;
+
+        /** False if an ending dependency is missing from the schedule */
+        boolean endDependsKnown = true;
+
+        /** The number of starting dependencies that have not ended */
+        int startBlocks = 0;
+
+        /** The number of ending dependencies that are not yet endable */
+        int endBlocks = 0;
+
+        /** The time at which the auction was last seen to become endable */
+        long endableSince = System.nanoTime();
+
+        Node(AuctionBase auction) {
+            this.auction = auction;
+            this.id = auction.getId();
+            this.state = auction.getState();
+        }
     }
 }
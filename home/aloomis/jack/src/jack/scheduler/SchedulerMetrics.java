@@ -0,0 +1,69 @@
+package jack.scheduler;
+
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import jack.auctions.AuctionBase;
+import jack.metrics.LatencyHistogram;
+import jack.metrics.MetricSource;
+
+/**
+ * The metrics of a scheduler: how many state transitions it has seen, how many
+ * auctions it has started and ended, and how long it and the auctions have
+ * waited on each other. The transitions are counted by the auction threads
+ * and everything else by the scheduler thread.
+ */
+class SchedulerMetrics implements MetricSource {
+
+    /** The transitions into each state, by state */
+    private final LongAdder[] transitions = new LongAdder[AuctionBase.STATE_ENDED + 1];
+
+    /** Auctions handed to a thread to be run */
+    final LongAdder started = new LongAdder();
+
+    /** Auctions that were ended */
+    final LongAdder ended = new LongAdder();
+
+    /** Auctions that resumed before they could be ended */
+    final LongAdder endsMissed = new LongAdder();
+
+    /** How long each endable auction waited to be ended, in us */
+    final LatencyHistogram endableWait = new LatencyHistogram();
+
+    /** How long the scheduler waited for each batch of auctions to end, in us */
+    final LatencyHistogram endingWait = new LatencyHistogram();
+
+    /** How long the scheduler waited for each transition it acted on, in us */
+    final LatencyHistogram idleWait = new LatencyHistogram();
+
+    /** The number of auctions that have been started but not ended */
+    volatile int live = 0;
+
+    SchedulerMetrics() {
+        for (int i = 0; i < transitions.length; ++i) {
+            transitions[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Records a transition of an auction into the given state.
+     * @param newState The state the auction moved into
+     */
+    void transition(int newState) {
+        transitions[newState].increment();
+    }
+
+    @Override
+    public void sample(Map<String, Number> values) {
+        for (int i = AuctionBase.STATE_NEW; i <= AuctionBase.STATE_ENDED; ++i) {
+            values.put("transitions." + AuctionBase.getStateName(i), transitions[i].sum());
+        }
+        values.put("started", started.sum());
+        values.put("ended", ended.sum());
+        values.put("endsMissed", endsMissed.sum());
+        values.put("live", live);
+        endableWait.sample("endableWaitUs", values);
+        endingWait.sample("endingWaitUs", values);
+        idleWait.sample("idleWaitUs", values);
+    }
+}
@@ -0,0 +1,263 @@
+package jack.scheduler;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.logging.Logger;
+
+import jack.auctions.Ledger;
+
+/**
+ * The SnapshotWriter writes the budgets and rosters of a running draft to
+ * "ffad-current<N>.txt", where N is read from "count.txt", so that the state
+ * of the draft can be followed from outside the server. Snapshots are handed
+ * to a background thread, so the scheduler never waits on the disk. If
+ * snapshots arrive faster than they can be written, only the most recent one
+ * is written. Each file is written to a temporary file first and then renamed
+ * over the old one, so a reader never sees a partially written file. This
+ * class is thread safe.
+ */
+public class SnapshotWriter implements Runnable {
+
+    /** The file that holds the number of the current draft */
+    private static final String COUNT_FILE = "count.txt";
+
+    /** The start of the name of each snapshot file */
+    private static final String SNAPSHOT_PREFIX = "ffad-current";
+
+    /** The end of the name of each snapshot file */
+    private static final String SNAPSHOT_SUFFIX = ".txt";
+
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+
+    private static final Logger LOGGER = Logger.getLogger(SnapshotWriter.class.getName());
+
+    /** The directory holding the count file and the snapshots */
+    private final File directory;
+
+    /** True if each snapshot is forced to the disk before it is renamed */
+    private final boolean sync;
+
+    /** The thread that writes the snapshots */
+    private final Thread thread;
+
+    /** The most recent snapshot that has not been written, or null */
+    private Ledger pending = null;
+
+    /** True once the writer has been closed */
+    private boolean closed = false;
+
+    /** Counters describing the writer */
+    private long written = 0;
+    private long coalesced = 0;
+    private long failed = 0;
+
+    /**
+     * Constructs a writer and starts its thread.
+     * @param directory The directory holding the count file and the snapshots
+     * @param sync True to force each snapshot to the disk before it replaces
+     *        the previous one, which survives a crash but is much slower
+     */
+    public SnapshotWriter(File directory, boolean sync) {
+        this.directory = directory;
+        this.sync = sync;
+        thread = new Thread(this, "snapshot-writer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Prepares a directory to hold snapshots, creating it if necessary. If the
+     * directory has no count file, it is given a copy of the count file in the
+     * template directory, or a count of 0 if there is none there either.
+     * @param directory The directory to hold the count file and the snapshots
+     * @param template The directory whose count file is carried over
+     * @throws IOException If the directory or count file could not be created
+     */
+    public static void prepareDirectory(File directory, File template) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Failed to create " + directory);
+        }
+        File count = new File(directory, COUNT_FILE);
+        if (count.exists()) {
+            return;
+        }
+        File source = new File(template, COUNT_FILE);
+        if (source.isFile()) {
+            Files.copy(source.toPath(), count.toPath());
+        } else {
+            Files.write(count.toPath(), "0\n".getBytes(CHARSET));
+        }
+    }
+
+    /**
+     * Queues a snapshot of the budgets and rosters to be written. The ledger
+     * must not change once it has been submitted, so the caller should pass a
+     * snapshot of its ledger. It is formatted on the writer thread. A queued
+     * snapshot that has not yet been written is replaced by this one.
+     * @param snapshot The budget and roster of each bidder
+     */
+    public void submit(Ledger snapshot) {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            if (pending != null) {
+                ++coalesced;
+            }
+            pending = snapshot;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Writes any queued snapshot and stops the writer thread. Waits at most
+     * the given time for the last snapshot to be written.
+     * @param timeout The longest time to wait, in ms
+     */
+    public void close(long timeout) {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        try {
+            thread.join(timeout);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** @return The number of snapshots written */
+    public synchronized long getWritten() {
+        return written;
+    }
+
+    /** @return The number of snapshots replaced before they were written */
+    public synchronized long getCoalesced() {
+        return coalesced;
+    }
+
+    /** @return The number of snapshots that could not be written */
+    public synchronized long getFailed() {
+        return failed;
+    }
+
+    /** Writes each snapshot as it arrives until the writer is closed. */
+    @Override
+    public void run() {
+        while (true) {
+            Ledger snapshot;
+            synchronized (this) {
+                try {
+                    while (pending == null && !closed) {
+                        wait();
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (pending == null) {
+                    return;
+                }
+                snapshot = pending;
+                pending = null;
+            }
+
+            try {
+                write(snapshot);
+                synchronized (this) {
+                    ++written;
+                }
+            } catch (IOException e) {
+
+                // Warn about the first failure only, as the rest of the
+                // snapshots usually fail for the same reason
+
+                boolean first;
+                synchronized (this) {
+                    first = failed++ == 0;
+                }
+                if (first) {
+                    LOGGER.warning("Failed to write snapshot to " + directory + ": "
+                                   + e.getMessage());
+                } else {
+                    LOGGER.fine("Failed to write snapshot: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the snapshot into the file for the current draft. Nothing is
+     * written if the count file is missing or does not hold a number.
+     */
+    private void write(Ledger snapshot) throws IOException {
+        int count;
+        BufferedReader reader = new BufferedReader(
+            new FileReader(new File(directory, COUNT_FILE)));
+        try {
+            count = Integer.parseInt(reader.readLine().trim());
+        } catch (RuntimeException e) {
+            throw new IOException("bad " + COUNT_FILE + ": " + e);
+        } finally {
+            reader.close();
+        }
+
+        File target = new File(directory, SNAPSHOT_PREFIX + count + SNAPSHOT_SUFFIX);
+        File temp = new File(directory, target.getName() + ".tmp");
+
+        FileOutputStream stream = new FileOutputStream(temp);
+        try {
+            Writer out = new OutputStreamWriter(stream, CHARSET);
+            out.write(format(snapshot));
+            out.flush();
+            if (sync) {
+                stream.getFD().sync();
+            }
+        } finally {
+            stream.close();
+        }
+
+        try {
+            Files.move(temp.toPath(), target.toPath(),
+                       StandardCopyOption.ATOMIC_MOVE,
+                       StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp.toPath(), target.toPath(),
+                       StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Formats a ledger with one line per bidder that has drafted a player,
+     * holding the name of the bidder, its budget, and each player it has
+     * drafted, all followed by commas. An unknown budget is written as null.
+     */
+    static String format(Ledger ledger) {
+        StringBuilder out = new StringBuilder();
+        int count = ledger.size();
+        for (int i = 0; i < count; ++i) {
+            List<String> roster = ledger.getRoster(i);
+            if (roster.isEmpty()) {
+                continue;
+            }
+            int budget = ledger.getBudget(i);
+            out.append(ledger.getBidder(i)).append(',');
+            out.append(budget == Ledger.NO_BUDGET ? "null" : Integer.toString(budget));
+            out.append(',');
+            for (String player : roster) {
+                out.append(player).append(',');
+            }
+            out.append('\n');
+        }
+        return out.toString();
+    }
+}
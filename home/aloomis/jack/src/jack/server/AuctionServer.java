@@ -8,6 +8,7 @@ package jack.server;
 
 import java.io.File;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
 import java.util.logging.FileHandler;
 import java.util.logging.Formatter;
 import java.util.logging.Logger;
@@ -23,14 +24,23 @@ import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 import org.xml.sax.SAXException;
 
+import jack.journal.Journal;
+import jack.logging.EventLog;
+import jack.metrics.MetricsRegistry;
+import jack.scheduler.ExecutionMode;
 import jack.scheduler.Scheduler;
 import jack.scheduler.SchedulerFactory;
+import jack.scheduler.SnapshotWriter;
 
 
 
 
 
 import java.net.*;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.sql.Timestamp;
 import java.util.*;
 import java.io.*;
@@ -48,9 +58,41 @@ import jack.valuations.*;
 
 public class AuctionServer
 {
-    private Scheduler scheduler = null;
+    /** The sessions hosted by the server, by sessionId */
+    private final Map<Integer, Session> sessions = new TreeMap<Integer, Session>();
 
-    private Map<Integer, AuctionBase> auctions = new HashMap<Integer, AuctionBase>();
+    /** Clients that have connected but not joined a session yet */
+    private final List<ClientHandler> unjoined = new ArrayList<ClientHandler>();
+
+    /** The session that each client has joined */
+    private final Map<ClientHandler, Session> members = new HashMap<ClientHandler, Session>();
+
+    /** False until the wait for clients is over */
+    private boolean waitOver = false;
+
+    /** The selector that the listener waits on for connections */
+    private volatile Selector acceptSelector = null;
+
+    /** Admits each client into the session it asks to join */
+    private final ClientHandler.SessionListener admissions = new ClientHandler.SessionListener() {
+        public void joinRequested(ClientHandler client, int sessionId) {
+            admit(client, sessionId, true);
+        }
+
+        public void readyReceived(ClientHandler client, String bidderId) {
+            ready(client, bidderId);
+        }
+    };
+
+    /** Wakes the listener when a session finishes, so that it can stop */
+    private final Runnable sessionFinished = new Runnable() {
+        public void run() {
+            Selector selector = acceptSelector;
+            if (selector != null) {
+                selector.wakeup();
+            }
+        }
+    };
 
     private final Logger logger = Logger.getLogger(AuctionServer.class.getName());
 
@@ -58,6 +100,44 @@ public class AuctionServer
 
     int maxWaitTime = 10000;
 
+    /** The number of I/O threads used to service client connections */
+    int ioThreads = 2;
+
+    /** The kind of thread that auctions and client readers run on */
+    ExecutionMode executionMode = ExecutionMode.PLATFORM;
+
+    /** The most messages that may wait to be written to a single client */
+    int outboundQueueCapacity = ClientHandler.DEFAULT_QUEUE_CAPACITY;
+
+    /** What to do with a client that falls that far behind */
+    SlowConsumerPolicy slowConsumerPolicy = ClientHandler.DEFAULT_POLICY;
+
+    /** True if each draft snapshot is forced to the disk */
+    boolean snapshotSync = false;
+
+    /** The directory of the journal, or null if nothing is journaled */
+    String journalDirectory = null;
+
+    /** The longest time a journal record may wait to be committed, in ms */
+    long journalCommitInterval = Journal.DEFAULT_COMMIT_INTERVAL;
+
+    /** True if the schedule resumes from the journal */
+    boolean replay = false;
+
+    /** The time between dumps of the metrics to the log in ms, or 0 for none */
+    long metricsInterval = 0;
+
+    /** Records every accepted message and state transition, or null */
+    private Journal journal = null;
+
+    /** How long to wait for queued messages to be written before closing */
+    private static final long FLUSH_TIMEOUT = 1000;
+
+    /** The reactor that multiplexes every client connection */
+    private Reactor reactor = null;
+
+    /** The threads that the auctions of every session run on */
+    private ExecutorService auctionThreads = null;
 
 
     //Store threads for communicating with each client
@@ -114,99 +194,219 @@ public class AuctionServer
 
     public void run() {
 
-        // Wait for client connections. If we do not get at least one
-        // connection, then we cannot continue.
+        // Start the I/O threads. Every client connection is serviced by one of
+        // these threads rather than by a thread of its own. In virtual thread
+        // mode there is no reactor and each client gets a virtual thread.
 
-        Vector<ClientHandler> clients = waitForClients();
-        if (clients.isEmpty()) {
-            logger.info("Failed to receive any connections");
-            return;
+        executionMode = executionMode.effective();
+        if (executionMode == ExecutionMode.PLATFORM) {
+            try {
+                reactor = new Reactor(ioThreads);
+                reactor.start();
+            } catch (IOException e) {
+                logger.warning("Failed to start reactor: " + e.getMessage());
+                return;
+            }
+        }
+
+        // Every session runs its auctions on the same pool of threads. In
+        // platform mode this is a cached thread pool, so an auction never
+        // waits for a thread held by another session, and the threads that
+        // one session is done with are picked up by the next. When there is
+        // more than one session, each writes its snapshots to a directory of
+        // its own, which starts with a copy of the server's count file.
+
+        auctionThreads = executionMode.newExecutor();
+        for (Session session : sessions.values()) {
+            Scheduler scheduler = session.getScheduler();
+            scheduler.setExecutionMode(executionMode);
+            scheduler.setSnapshotSync(snapshotSync);
+            scheduler.setExecutor(auctionThreads);
+            if (sessions.size() > 1) {
+                File directory = new File("session-" + session.getId());
+                try {
+                    SnapshotWriter.prepareDirectory(directory, new File("."));
+                } catch (IOException e) {
+                    logger.warning("Failed to prepare snapshot directory " + directory
+                                   + ": " + e.getMessage());
+                }
+                scheduler.setSnapshotDirectory(directory);
+            }
         }
 
-        // Notify each auction of the clients that will be participating. It is
-        // the auctions responsibility to register themselves with each client
-        // before they begin and unregister themselves after they have ended.
+        // Resume from the journal if asked to, and then journal everything
+        // that happens from here on after what is already there. A run that
+        // does not resume starts with a run record, so that a later replay
+        // ignores whatever earlier runs journaled. The sessions share the
+        // journal, whose records each carry their sessionId.
 
-        for (AuctionBase auction : auctions.values()) {
-            auction.setSessionId(1);
-            auction.setClients(clients);
+        if (journalDirectory != null) {
+            try {
+                if (replay) {
+                    for (Session session : sessions.values()) {
+                        session.replay(new File(journalDirectory));
+                    }
+                }
+                journal = new Journal(new File(journalDirectory),
+                                      Journal.DEFAULT_SEGMENT_SIZE, journalCommitInterval);
+                if (!replay) {
+                    journal.appendRun();
+                }
+                for (Session session : sessions.values()) {
+                    session.setJournal(journal);
+                }
+            } catch (IOException e) {
+                logger.warning("Failed to open journal: " + e.getMessage());
+            }
+        } else if (replay) {
+            logger.warning("Cannot replay without a journal directory");
         }
 
-        // Not entirely sure how this should work yet, but for the moment, each
-        // auction is going to send its "specification" to the bidders. This is
-        // effectively notifying them of the scheduler before it is executed.
+        // Each session publishes its own metrics over JMX while it runs. Dump
+        // them to the log as well if asked to.
 
-        for (AuctionBase auction : auctions.values()) {
-            auction.sendSpec();
+        MetricsRegistry metrics = MetricsRegistry.getDefault();
+        if (metricsInterval > 0) {
+            metrics.startDumps(metricsInterval, logger);
         }
 
-        // XXX: This should not be here--wait 5 secods before executing the
-        // schedule. This is really just a nicety especially when dealing with
-        // human interfaces.
+        // Admit clients into the sessions and start each session once it is
+        // ready, until every session has finished
 
-        try {
-            Thread.sleep(5000);
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
+        listen();
+        for (Session session : sessions.values()) {
+            session.join();
+        }
+
+        if (journal != null) {
+            journal.close();
         }
+        shutdownReactor();
+        auctionThreads.shutdown();
 
-        // Execute the schedule
+        // Dump the metrics of the whole run one last time
 
-        scheduler.execute(auctions);
+        if (metricsInterval > 0) {
+            metrics.stopDumps();
+            metrics.logDump(logger);
+        }
 
-        // Shutdown the sockets
+        // Let the event log catch up so that the sessions' events are not lost
 
-        for (ClientHandler client : clients) {
-            client.close();
+        if (!EventLog.flush(FLUSH_TIMEOUT)) {
+            logger.warning("Timed out writing the event log");
+        }
+        if (EventLog.getDropped() > 0) {
+            logger.warning("Event log dropped " + EventLog.getDropped() + " events");
         }
     }
 
-    private Vector<ClientHandler> waitForClients() {
+    /** Stops the I/O threads if the server is using them. */
+    private void shutdownReactor() {
+        if (reactor != null) {
+            reactor.shutdown();
+        }
+    }
 
-        // Set up the server socket to listen for clients
+    /**
+     * Starts servicing a newly connected client. In platform thread mode the
+     * client is attached to the reactor. In virtual thread mode the client
+     * is read and written in blocking mode by two virtual threads of its own.
+     * @param client The client to start servicing
+     * @throws IOException If the client could not be attached to the reactor
+     */
+    private void startClient(ClientHandler client) throws IOException {
+        if (reactor != null) {
+            reactor.attach(client);
+        } else {
+            String name = "Client-" + client.getChannel().socket().getRemoteSocketAddress();
+            executionMode.newThread(name, client).start();
+            executionMode.newThread(name + "-writer", client.getWriter()).start();
+        }
+    }
 
-        Vector<ClientHandler> clients = new Vector<ClientHandler>();
-        ServerSocket serverSocket = null;
+    /**
+     * Listens for clients on the one port shared by every session until every
+     * session has finished. A client joins a session by sending
+     * "join sessionId=N" and is answered with "joined sessionId=N", or with
+     * "refused sessionId=N reason=R" if it cannot join. A client then sends
+     * "ready", or "ready bidderId=B", once it is ready to bid, and a session
+     * with a quorum is started as soon as enough of its clients are ready.
+     * Every other session is started once the wait for clients is over, as is
+     * a session that is still short of its quorum by then. Clients that have
+     * not joined a session by then are admitted into the first session, and
+     * clients that join a session after it has started take part in the
+     * auctions that start after they join.
+     */
+    private void listen() {
+
+        // Set up the server channel to listen for clients. The channel is
+        // non-blocking so that we can wait on it with a timeout.
+
+        ServerSocketChannel serverChannel = null;
 
         try {
             InetSocketAddress endpoint = new InetSocketAddress(port);
-            serverSocket = new ServerSocket();
-            serverSocket.bind(endpoint);
-            serverSocket.setSoTimeout(1000);
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.bind(endpoint);
+            serverChannel.configureBlocking(false);
+            acceptSelector = Selector.open();
+            serverChannel.register(acceptSelector, SelectionKey.OP_ACCEPT);
             logger.info("Listening for connections at " + endpoint.toString());
 
         } catch (IOException e) {
             logger.warning("Failed to bind to address: " + e.getMessage());
-            return clients;
+            return;
         }
 
-        // Wait for connections until we either run out of time or we have
-        // reached the max number of clients.
+        // Accept connections until every session has finished, ending the
+        // wait for clients once we run out of time
 
         long endTime = System.currentTimeMillis() + maxWaitTime;
-        while (System.currentTimeMillis() < endTime) {
+        while (!isFinished()) {
+            long timeout = 1000;
+            if (!waitOver) {
+                long remainingTime = endTime - System.currentTimeMillis();
+                if (remainingTime <= 0) {
+                    endWait();
+                    continue;
+                }
 
-            // Update the terminal with the remaining time
+                // Update the terminal with the remaining time
 
-            int remainingTime = (int)(endTime - System.currentTimeMillis());
-            logger.fine("" + (remainingTime / 1000) + " seconds remaining");
+                logger.fine("" + (remainingTime / 1000) + " seconds remaining");
+                timeout = Math.min(remainingTime, timeout);
+            }
 
             try {
 
-                // Wait for a client connection until the socket times out. Once
-                // we get a connection, create a handler to deal with
-                // communicating to and from the socket.
-
-                Socket clientSocket = serverSocket.accept();
-                ClientHandler client = new ClientHandler(clientSocket);
-                client.start();
-                clients.add(client);
+                // Wait for a client connection until the selector times out.
+                // Once we get a connection, create a handler and start
+                // servicing it, which deals with communicating to and from the
+                // channel. The client belongs to no session until it joins one,
+                // unless the wait is over and there is only the one session.
 
-                InetAddress clientAddress = clientSocket.getInetAddress();
-                logger.info("Received connection from " + clientAddress.toString());
+                if (acceptSelector.select(timeout) == 0) {
+                    continue;
+                }
+                acceptSelector.selectedKeys().clear();
+
+                SocketChannel clientChannel;
+                while ((clientChannel = serverChannel.accept()) != null) {
+                    ClientHandler client = new ClientHandler(
+                        clientChannel, outboundQueueCapacity, slowConsumerPolicy);
+                    client.setSessionListener(admissions);
+                    synchronized (sessions) {
+                        unjoined.add(client);
+                        if (waitOver && sessions.size() == 1) {
+                            admit(client, sessions.keySet().iterator().next(), false);
+                        }
+                    }
+                    startClient(client);
 
-            } catch (SocketTimeoutException e) {
-                continue;
+                    InetAddress clientAddress = clientChannel.socket().getInetAddress();
+                    logger.info("Received connection from " + clientAddress.toString());
+                }
 
             } catch (IOException e) {
                 logger.warning("Error accepting connection: " + e.getMessage());
@@ -214,7 +414,135 @@ public class AuctionServer
             }
         }
 
-        return clients;
+        if (!waitOver) {
+            endWait();
+        }
+
+        // Stop listening, and let go of the clients that never joined
+
+        try {
+            acceptSelector.close();
+            serverChannel.close();
+        } catch (IOException e) {
+            logger.warning("Failed to close server channel: " + e.getMessage());
+        }
+        synchronized (sessions) {
+            for (ClientHandler client : unjoined) {
+                client.close();
+            }
+            unjoined.clear();
+        }
+    }
+
+    /**
+     * Ends the wait for clients. Clients that have not joined a session are
+     * admitted into the first one, and each session that has not started yet
+     * is started, whether or not it has its quorum. A session without any
+     * clients cannot be run and is skipped.
+     */
+    private void endWait() {
+        synchronized (sessions) {
+            waitOver = true;
+            if (!sessions.isEmpty()) {
+                int first = sessions.keySet().iterator().next();
+                for (ClientHandler client : new ArrayList<ClientHandler>(unjoined)) {
+                    admit(client, first, false);
+                }
+            }
+
+            for (Session session : sessions.values()) {
+                if (session.isStarted() || session.isFinished()) {
+                    continue;
+                }
+                if (session.getClientCount() == 0) {
+                    logger.info("Session " + session.getId()
+                                + " failed to receive any connections");
+                    session.skip();
+                    continue;
+                }
+                if (session.hasQuorum()) {
+                    logger.info("Session " + session.getId() + " starting without a quorum");
+                }
+                session.start(sessionFinished);
+            }
+        }
+    }
+
+    /** @return True once every session has finished or been skipped */
+    private boolean isFinished() {
+        synchronized (sessions) {
+            for (Session session : sessions.values()) {
+                if (!session.isFinished()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Admits a client into a session. A client that asked to join is answered
+     * with "joined" or "refused", and the answer goes out before anything
+     * that the session sends the client.
+     * @param client The client
+     * @param sessionId The session to admit the client into
+     * @param reply True if the client asked to join and should be answered
+     * @return True if the client is in the session and false otherwise
+     */
+    private boolean admit(ClientHandler client, int sessionId, boolean reply) {
+        String refusal = null;
+        synchronized (sessions) {
+            Session session = sessions.get(sessionId);
+            Session current = members.get(client);
+            if (session == null) {
+                refusal = "unknown";
+            } else if (current != null && current != session) {
+                refusal = "joined";
+            } else if (current == null && !session.addClient(client)) {
+                refusal = "ended";
+            } else {
+                unjoined.remove(client);
+                members.put(client, session);
+                if (reply) {
+                    client.sendMessage(ClientHandler.JOINED + " sessionId=" + sessionId);
+                    logger.info("Client " + client.getChannel().socket().getRemoteSocketAddress()
+                                + " joined session " + sessionId);
+                }
+                if (current == null) {
+                    session.catchUp(client);
+                }
+            }
+        }
+        if (refusal != null && reply) {
+            client.sendMessage(ClientHandler.REFUSED + " sessionId=" + sessionId
+                               + " reason=" + refusal);
+        }
+        return refusal == null;
+    }
+
+    /**
+     * Records that a client is ready to bid, and starts its session straight
+     * away if that gives the session its quorum. A client that is ready
+     * without having joined a session joins the first one.
+     * @param client The client
+     * @param bidderId The bidder the client will bid as, or null if not given
+     */
+    private void ready(ClientHandler client, String bidderId) {
+        synchronized (sessions) {
+            Session session = members.get(client);
+            if (session == null) {
+                if (sessions.isEmpty()
+                        || !admit(client, sessions.keySet().iterator().next(), false)) {
+                    return;
+                }
+                session = members.get(client);
+            }
+            session.ready(client, bidderId);
+            if (!session.isStarted() && !session.isFinished() && session.isQuorate()) {
+                logger.info("Session " + session.getId() + " has its quorum");
+                session.start(sessionFinished);
+            }
+        }
     }
 
     private void loadConfig(String filename) {
@@ -227,18 +555,35 @@ public class AuctionServer
             Document doc = db.parse(new File(filename));
             doc.getDocumentElement().normalize();
 
-            // Load the schedule
+            // Load the optional server settings
 
-            NodeList schedulerNodes = doc.getElementsByTagName("schedule");
-            scheduler = SchedulerFactory.newScheduler(schedulerNodes.item(0));
-            //scheduler.dump();
+            NodeList serverNodes = doc.getElementsByTagName("server");
+            if (serverNodes.getLength() > 0) {
+                loadServerParams(serverNodes.item(0));
+            }
 
-            // Load the auction(s)
+            // Load the session(s). A configuration without any session
+            // elements holds a single session, with an id of 1, at its top
+            // level.
 
-            NodeList auctionNodes = doc.getElementsByTagName("auction");
-            for (int i = 0; i < auctionNodes.getLength(); ++i) {
-                AuctionBase auction = AuctionFactory.newAuction(auctionNodes.item(i));
-                auctions.put(auction.getId(), auction);
+            NodeList sessionNodes = doc.getElementsByTagName("session");
+            if (sessionNodes.getLength() == 0) {
+                loadSession(1, doc.getDocumentElement());
+            }
+            for (int i = 0; i < sessionNodes.getLength(); ++i) {
+                Element element = (Element)sessionNodes.item(i);
+                int id;
+                try {
+                    id = Integer.parseInt(element.getAttribute("id").trim());
+                } catch (NumberFormatException e) {
+                    logger.warning("Bad session id: " + element.getAttribute("id"));
+                    continue;
+                }
+                if (sessions.containsKey(id)) {
+                    logger.warning("Duplicate session: " + id);
+                    continue;
+                }
+                loadSession(id, element);
             }
 
         // TODO: Break these out
@@ -251,14 +596,125 @@ public class AuctionServer
         }
     }
 
+    /**
+     * Reads a session of the configuration: its schedule, its auctions, its
+     * optional draft pool, and its optional quorum, e.g. "<quorum>4</quorum>"
+     * or "<bidder id="alice"/>".
+     * @param id The id of the session
+     * @param element The DOM element holding the session
+     */
+    private void loadSession(int id, Element element) {
+
+        // Load the schedule
+
+        NodeList schedulerNodes = element.getElementsByTagName("schedule");
+        Session session = new Session(id, SchedulerFactory.newScheduler(schedulerNodes.item(0)));
+
+        // Load the auction(s)
+
+        NodeList auctionNodes = element.getElementsByTagName("auction");
+        for (int i = 0; i < auctionNodes.getLength(); ++i) {
+            session.addAuction(AuctionFactory.newAuction(auctionNodes.item(i)));
+        }
+
+        // Load the optional draft pool
+
+        NodeList playerNodes = element.getElementsByTagName("player");
+        for (int i = 0; i < playerNodes.getLength(); ++i) {
+            loadPlayer(session, (Element)playerNodes.item(i));
+        }
+
+        // Load the optional quorum: the least number of clients, and the
+        // bidders, that must be ready before the session starts
+
+        NodeList quorumNodes = element.getElementsByTagName("quorum");
+        if (quorumNodes.getLength() > 0) {
+            session.setQuorum(Integer.parseInt(quorumNodes.item(0).getTextContent().trim()));
+        }
+        NodeList bidderNodes = element.getElementsByTagName("bidder");
+        for (int i = 0; i < bidderNodes.getLength(); ++i) {
+            session.expectBidder(((Element)bidderNodes.item(i)).getAttribute("id"));
+        }
+
+        sessions.put(id, session);
+    }
+
+    /**
+     * Reads the optional "server" element of the configuration. Each child
+     * element names a setting and holds its value, in the same way that the
+     * auction parameters are specified, e.g. "<ioThreads>4</ioThreads>" or
+     * "<threads>virtual</threads>".
+     * Settings that are not present keep their default values.
+     * @param node The DOM node of the server element
+     */
+    private void loadServerParams(Node node) {
+        for (Node childNode = node.getFirstChild();
+             childNode != null; childNode = childNode.getNextSibling()) {
+            if (childNode.getNodeType() != Node.ELEMENT_NODE) {
+                continue;
+            }
+            String key = ((Element)childNode).getTagName();
+            String value = childNode.getTextContent().trim();
+            if (key.equals("port")) {
+                port = Integer.parseInt(value);
+            } else if (key.equals("maxWaitTime")) {
+                maxWaitTime = Integer.parseInt(value);
+            } else if (key.equals("ioThreads")) {
+                ioThreads = Integer.parseInt(value);
+            } else if (key.equals("threads")) {
+                executionMode = ExecutionMode.fromString(value);
+            } else if (key.equals("outboundQueue")) {
+                outboundQueueCapacity = Integer.parseInt(value);
+            } else if (key.equals("slowConsumerPolicy")) {
+                slowConsumerPolicy = SlowConsumerPolicy.fromString(value);
+            } else if (key.equals("snapshotSync")) {
+                snapshotSync = Boolean.parseBoolean(value);
+            } else if (key.equals("journal")) {
+                journalDirectory = value;
+            } else if (key.equals("journalCommitInterval")) {
+                journalCommitInterval = Long.parseLong(value);
+            } else if (key.equals("metricsInterval")) {
+                metricsInterval = Long.parseLong(value);
+            } else {
+                logger.warning("Unknown server setting: " + key);
+            }
+        }
+    }
+
+    /**
+     * Reads a "player" element of the configuration, which adds a player to
+     * the draft pool, e.g. "<player id="12"><estValue>36</estValue></player>".
+     * The id is the number that bidders pick the player by. A player with a
+     * bad id or value is skipped.
+     * @param session The session whose draft pool the player is added to
+     * @param element The DOM element of the player
+     */
+    private void loadPlayer(Session session, Element element) {
+        String id = element.getAttribute("id");
+        NodeList valueNodes = element.getElementsByTagName("estValue");
+        try {
+            Integer.parseInt(id);
+            if (valueNodes.getLength() == 0) {
+                throw new NumberFormatException("missing estValue");
+            }
+            int estValue = Integer.parseInt(valueNodes.item(0).getTextContent().trim());
+            if (!session.addPlayer(id, estValue)) {
+                logger.warning("Duplicate player: " + id);
+            }
+        } catch (NumberFormatException e) {
+            logger.warning("Bad player " + id + ": " + e.getMessage());
+        }
+    }
+
     public static void main(String[] args) throws IOException {
 
         if (args.length == 0) {
-            System.out.println("usage: AuctionServer configuration.xml");
+            System.out.println("usage: AuctionServer configuration.xml [-replay]");
             return;
         }
 
         AuctionServer server = new AuctionServer(args[0]);
+        server.replay = args.length > 1 && args[1].equals("-replay");
         server.run();
 
 
@@ -673,19 +1129,19 @@ public class AuctionServer
         writeToLogFile("AuctionServer.waitForAllResponses("+threads.size()+
                 " threads, Time_Limit: "+timeLimit +", waitFull: "+waitFull+
                 ", Default_Msg: "+def +") starting", 5);
-        boolean allResp;
-        long startTime = System.currentTimeMillis();
-        while (System.currentTimeMillis()-startTime < timeLimit) {
-            allResp = true;
-            for (ComThread com : threads) {
-                if (com.getClientMsg().isEmpty()) {
-                    allResp = false;//this client hasn't responded yet
-                }
-            }
-            if(allResp && !waitFull) {
-                break; //all clients have responded, and set not to wait full time.
+        //block until the last client responds, or for the full time if asked to
+        ResponseCollector collector = new ResponseCollector(threads);
+        if (waitFull) {
+            try {
+                Thread.sleep(timeLimit);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
             }
+        } else {
+            collector.await(timeLimit);
         }
+        collector.close();
+
         //check each client's response, and replace non-responses with default
         for (ComThread com : threads) {
             if (com.getClientMsg().isEmpty()) {
@@ -795,7 +1251,7 @@ public class AuctionServer
      * @throws IOException
      */
     static public void writeToLogFile(String str, int verbosity){
-        if (verbosity > logVerbosity) {
+        if (!isLogged(verbosity)) {
             return; //ignore if logVerbosity ignores low priority msg (high number)
         }
         try {
@@ -807,6 +1263,16 @@ public class AuctionServer
         }
     }
 
+    /**
+     * Checks whether messages of the given verbosity are written to the log
+     * file, so that callers can skip building messages that would be ignored.
+     * @param verbosity The verbosity of the message, 1 being the most important
+     * @return True if the message would be written and false otherwise
+     */
+    static public boolean isLogged(int verbosity) {
+        return verbosity <= logVerbosity;
+    }
+
     static public void writeToLogFile(String str){
         int verbosity = 0;//Default to highest priority. Msg WILL be logged.
         writeToLogFile(str, verbosity);
@@ -0,0 +1,408 @@
+package jack.server;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import jack.auctions.Message;
+
+/**
+ * The BinaryCodec translates between the text form of a message,
+ * "messageType key1=value1 ... keyN=valueN", and a compact binary frame. A
+ * connection starts out speaking text and switches to binary frames once the
+ * client asks for them with a "hello format=binary" line and the server
+ * replies with the same line. Every message after the reply, in both
+ * directions, is a binary frame.
+ *
+ * A frame is a varint body length followed by the body. The body is the
+ * message type, a varint field count, and then a key and a value per field.
+ * Each of these is an item that starts with a varint whose low two bits are a
+ * tag and whose remaining bits are:
+ *
+ *   TAG_INT          the zigzag encoded value of an integer
+ *   TAG_SYMBOL       the index of a previously defined symbol
+ *   TAG_NEW_SYMBOL   the length of a UTF-8 string that follows and that
+ *                    becomes the next symbol
+ *   TAG_STRING       the length of a UTF-8 string that follows
+ *
+ * Message types, keys and bidder ids are interned as symbols, so after their
+ * first use they cost a single byte. Each direction of a connection has its own
+ * symbol table, so a codec must be used for exactly one connection. Encoding
+ * and decoding use separate state and may run concurrently with each other,
+ * but each must only be called by one thread at a time.
+ */
+public class BinaryCodec {
+
+    /** The message type used to negotiate the format of a connection */
+    public static final String HANDSHAKE = "hello";
+
+    /** The handshake key that names the format */
+    public static final String FORMAT_KEY = "format";
+
+    /** The format names that can be negotiated */
+    public static final String TEXT = "text";
+    public static final String BINARY = "binary";
+
+    /** The largest frame body that will be sent or accepted */
+    public static final int MAX_FRAME_LENGTH = 65536;
+
+    /** The most symbols that each direction of a connection defines */
+    private static final int MAX_SYMBOLS = 4096;
+
+    /** Item tags, stored in the low two bits of each item header */
+    private static final int TAG_INT = 0;
+    private static final int TAG_SYMBOL = 1;
+    private static final int TAG_NEW_SYMBOL = 2;
+    private static final int TAG_STRING = 3;
+
+    /** The key whose values are interned in addition to types and keys */
+    private static final String BIDDER_ID_KEY = "bidderId";
+
+    /** Room in front of an encoded body for its length prefix */
+    private static final int HEADER_SPACE = 3;
+
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+
+    /** Symbols defined by this side, and the view used to encode with */
+    private final Map<String, Integer> sendSymbols = new HashMap<String, Integer>();
+    private final Message message = new Message();
+    private byte[] encodeBuffer = new byte[256];
+    private int encodeLength;
+
+    /** Symbols defined by the other side, and the state used to decode with */
+    private final List<String> receiveSymbols = new ArrayList<String>();
+    private final StringBuilder decodeBuffer = new StringBuilder(256);
+    private byte[] frameBuffer = new byte[256];
+    private byte[] decodeBytes;
+    private int decodePosition;
+    private int decodeEnd;
+
+    /**
+     * Returns true if the message is a handshake asking for the binary format.
+     * @param message The text message to check
+     * @return True if the message is "hello format=binary"
+     */
+    public static boolean isBinaryHandshake(Message message) {
+        return message.isType(HANDSHAKE) && BINARY.equals(message.get(FORMAT_KEY));
+    }
+
+    /**
+     * Encodes a text message into a binary frame, including its length
+     * prefix.
+     * @param line The message in text form
+     * @return A buffer holding the frame, ready to be written
+     * @throws IllegalArgumentException If the frame would be too long, in
+     *         which case no symbols are defined by it
+     */
+    public ByteBuffer encode(String line) {
+        message.parse(line);
+        encodeLength = HEADER_SPACE;
+        int symbols = sendSymbols.size();
+
+        int numFields = message.getFieldCount();
+        writeString(message.getType(), true);
+        writeVarint(numFields);
+        for (int i = 0; i < numFields; ++i) {
+            String key = message.getKey(i);
+            writeString(key, true);
+            writeValue(key, message.getValue(i));
+        }
+
+        int bodyLength = encodeLength - HEADER_SPACE;
+        if (bodyLength > MAX_FRAME_LENGTH) {
+
+            // The frame is never sent, so the other side never learns the
+            // symbols it defined. Forget them to keep the tables in step.
+
+            Iterator<Integer> defined = sendSymbols.values().iterator();
+            while (defined.hasNext()) {
+                if (defined.next() >= symbols) {
+                    defined.remove();
+                }
+            }
+            throw new IllegalArgumentException("Message too long: " + bodyLength);
+        }
+
+        // Write the length immediately in front of the body
+
+        int start = HEADER_SPACE - varintSize(bodyLength);
+        int end = encodeLength;
+        encodeLength = start;
+        writeVarint(bodyLength);
+        return ByteBuffer.wrap(Arrays.copyOfRange(encodeBuffer, start, end));
+    }
+
+    /**
+     * Decodes the body of a binary frame into a text message.
+     * @param bytes The array holding the body
+     * @param offset The start of the body
+     * @param length The length of the body
+     * @return The message in text form
+     * @throws IllegalArgumentException If the body is malformed
+     */
+    public String decode(byte[] bytes, int offset, int length) {
+        decodeBytes = bytes;
+        decodePosition = offset;
+        decodeEnd = offset + length;
+        decodeBuffer.setLength(0);
+
+        readItem();
+        long numFields = readVarint();
+        for (long i = 0; i < numFields; ++i) {
+            decodeBuffer.append(' ');
+            readItem();
+            decodeBuffer.append('=');
+            readItem();
+        }
+        if (decodePosition != decodeEnd) {
+            throw new IllegalArgumentException("Trailing bytes in frame");
+        }
+        decodeBytes = null;
+        return decodeBuffer.toString();
+    }
+
+    /**
+     * Reads a single frame from a stream and decodes it into a text message.
+     * This is used by clients, which read from blocking streams.
+     * @param in The stream to read from
+     * @return The message in text form, or null at the end of the stream
+     * @throws IOException If the stream fails or the frame is malformed
+     */
+    public String readFrame(InputStream in) throws IOException {
+        int length = 0;
+        for (int shift = 0; ; shift += 7) {
+            int b = in.read();
+            if (b < 0) {
+                if (shift == 0) {
+                    return null;
+                }
+                throw new EOFException("End of stream inside frame header");
+            }
+            length |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                break;
+            }
+            if (shift >= 14) {
+                throw new IOException("Frame header too long");
+            }
+        }
+        if (length > MAX_FRAME_LENGTH) {
+            throw new IOException("Frame too long: " + length);
+        }
+
+        if (frameBuffer.length < length) {
+            frameBuffer = new byte[Math.max(length, frameBuffer.length * 2)];
+        }
+        int read = 0;
+        while (read < length) {
+            int count = in.read(frameBuffer, read, length - read);
+            if (count < 0) {
+                throw new EOFException("End of stream inside frame");
+            }
+            read += count;
+        }
+
+        try {
+            return decode(frameBuffer, 0, length);
+        } catch (IllegalArgumentException e) {
+            throw new IOException(e.getMessage());
+        }
+    }
+
+    /**
+     * Returns the body length of the frame that starts at the given position
+     * of the buffer, or -1 if the buffer does not yet hold the whole length
+     * prefix.
+     * @throws IllegalArgumentException If the length prefix is malformed
+     */
+    static int frameLength(ByteBuffer buffer, int position) {
+        int length = 0;
+        for (int i = 0; i < HEADER_SPACE; ++i) {
+            if (position + i >= buffer.limit()) {
+                return -1;
+            }
+            int b = buffer.get(position + i);
+            length |= (b & 0x7f) << (7 * i);
+            if ((b & 0x80) == 0) {
+                return length;
+            }
+        }
+        throw new IllegalArgumentException("Frame header too long");
+    }
+
+    /** @return The number of bytes needed to varint encode the value */
+    static int varintSize(long value) {
+        int size = 1;
+        while ((value >>>= 7) != 0) {
+            ++size;
+        }
+        return size;
+    }
+
+    /**
+     * Writes a value, as an integer if it is the canonical text form of one
+     * and as a string otherwise.
+     */
+    private void writeValue(String key, String value) {
+        long n = parseInt(value);
+        if (n != Long.MIN_VALUE) {
+            int i = (int)n;
+            long zigzag = ((i << 1) ^ (i >> 31)) & 0xffffffffL;
+            writeVarint((zigzag << 2) | TAG_INT);
+        } else {
+            writeString(value, BIDDER_ID_KEY.equals(key));
+        }
+    }
+
+    /** Writes a string, interning it if asked to and there is room. */
+    private void writeString(String s, boolean intern) {
+        if (intern) {
+            Integer symbol = sendSymbols.get(s);
+            if (symbol != null) {
+                writeVarint(((long)symbol << 2) | TAG_SYMBOL);
+                return;
+            }
+            if (sendSymbols.size() < MAX_SYMBOLS) {
+                sendSymbols.put(s, sendSymbols.size());
+                writeBytes(s, TAG_NEW_SYMBOL);
+                return;
+            }
+        }
+        writeBytes(s, TAG_STRING);
+    }
+
+    private void writeBytes(String s, int tag) {
+        byte[] bytes = s.getBytes(CHARSET);
+        writeVarint(((long)bytes.length << 2) | tag);
+        ensureCapacity(bytes.length);
+        System.arraycopy(bytes, 0, encodeBuffer, encodeLength, bytes.length);
+        encodeLength += bytes.length;
+    }
+
+    private void writeVarint(long value) {
+        ensureCapacity(10);
+        while ((value & ~0x7fL) != 0) {
+            encodeBuffer[encodeLength++] = (byte)((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        encodeBuffer[encodeLength++] = (byte)value;
+    }
+
+    private void ensureCapacity(int extra) {
+        if (encodeLength + extra > encodeBuffer.length) {
+            encodeBuffer = Arrays.copyOf(encodeBuffer,
+                Math.max(encodeLength + extra, encodeBuffer.length * 2));
+        }
+    }
+
+    /** Reads an item and appends its text form to the decode buffer. */
+    private void readItem() {
+        long header = readVarint();
+        long value = header >>> 2;
+        switch ((int)(header & 3)) {
+            case TAG_INT:
+                if (value > 0xffffffffL) {
+                    throw new IllegalArgumentException("Integer out of range");
+                }
+                int zigzag = (int)value;
+                decodeBuffer.append((zigzag >>> 1) ^ -(zigzag & 1));
+                return;
+            case TAG_SYMBOL:
+                if (value >= receiveSymbols.size()) {
+                    throw new IllegalArgumentException("Unknown symbol: " + value);
+                }
+                decodeBuffer.append(receiveSymbols.get((int)value));
+                return;
+            case TAG_NEW_SYMBOL:
+                if (receiveSymbols.size() >= MAX_SYMBOLS) {
+                    throw new IllegalArgumentException("Too many symbols");
+                }
+                String symbol = readString(value);
+                receiveSymbols.add(symbol);
+                decodeBuffer.append(symbol);
+                return;
+            default:
+                decodeBuffer.append(readString(value));
+                return;
+        }
+    }
+
+    /**
+     * Reads a string of the given length. Whitespace would split the string
+     * when the text form is parsed again, so it is replaced by underscores.
+     */
+    private String readString(long length) {
+        if (length > decodeEnd - decodePosition) {
+            throw new IllegalArgumentException("Truncated string");
+        }
+        String s = new String(decodeBytes, decodePosition, (int)length, CHARSET);
+        decodePosition += (int)length;
+        for (int i = 0; i < s.length(); ++i) {
+            if (s.charAt(i) <= ' ') {
+                char[] chars = s.toCharArray();
+                for (int j = i; j < chars.length; ++j) {
+                    if (chars[j] <= ' ') {
+                        chars[j] = '_';
+                    }
+                }
+                return new String(chars);
+            }
+        }
+        return s;
+    }
+
+    private long readVarint() {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (decodePosition >= decodeEnd) {
+                throw new IllegalArgumentException("Truncated varint");
+            }
+            int b = decodeBytes[decodePosition++];
+            value |= (long)(b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Varint too long");
+    }
+
+    /**
+     * Returns the value of a string that is the canonical text form of an
+     * int, meaning that converting the int back to text gives the same string,
+     * or Long.MIN_VALUE if it is not.
+     */
+    private static long parseInt(String s) {
+        int length = s.length();
+        int i = 0;
+        boolean negative = length > 0 && s.charAt(0) == '-';
+        if (negative) {
+            ++i;
+        }
+        if (i == length || length - i > 10
+                || (s.charAt(i) == '0' && (length - i > 1 || negative))) {
+            return Long.MIN_VALUE;
+        }
+
+        long value = 0;
+        for (; i < length; ++i) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9') {
+                return Long.MIN_VALUE;
+            }
+            value = value * 10 + (c - '0');
+        }
+        value = negative ? -value : value;
+        if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+            return Long.MIN_VALUE;
+        }
+        return value;
+    }
+}
@@ -1,54 +1,205 @@
 package jack.server;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.net.Socket;
-import java.util.Vector;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Logger;
 
 import jack.auctions.AuctionBase;
+import jack.auctions.Message;
+import jack.metrics.MetricSource;
 
-public class ClientHandler extends Thread {
+/**
+ * The ClientHandler represents a single client connection. Normally it does
+ * not own a thread; instead it is attached to one of the Reactor's I/O
+ * threads, which calls back into the handler whenever the channel can be read
+ * or written. Alternatively, when the server runs in virtual thread mode, the
+ * handler is run on a virtual thread of its own and reads and writes its
+ * channel in blocking mode. Either way messages use the same line based wire
+ * protocol: every message is a single line of text terminated by a newline,
+ * unless the client negotiates the binary format described in BinaryCodec.
+ */
+public class ClientHandler implements Runnable {
 
-    private final Socket socket;
+    /** The character set used to encode and decode messages */
+    private static final Charset CHARSET = Charset.forName("UTF-8");
 
-    private final BufferedReader input;
+    /** The initial size of the buffer that incoming lines are framed in */
+    private static final int READ_BUFFER_SIZE = 4096;
 
-    private final PrintWriter output;
+    /** The longest line that a client may send before it is discarded */
+    private static final int MAX_LINE_LENGTH = 65536;
 
-    private final Vector<AuctionBase> auctions = new Vector<AuctionBase>();
+    /** The most queued messages written with a single gathering write */
+    private static final int WRITE_BATCH_SIZE = 64;
+
+    /** The outbound queue settings used unless others are given */
+    public static final int DEFAULT_QUEUE_CAPACITY = 1024;
+    public static final SlowConsumerPolicy DEFAULT_POLICY = SlowConsumerPolicy.COALESCE_STATUS;
+
+    /** The type of the message that a client sends to join a session */
+    public static final String JOIN = "join";
+
+    /** The key of the session that a client asks to join */
+    public static final String SESSION_ID_KEY = "sessionId";
+
+    /** The type of the reply to a client that has joined a session */
+    public static final String JOINED = "joined";
+
+    /** The type of the reply to a client that cannot join a session */
+    public static final String REFUSED = "refused";
+
+    /** The type of the message that a client sends once it is ready to bid */
+    public static final String READY = "ready";
+
+    /** The key of the bidder that a client is ready to bid as */
+    public static final String BIDDER_ID_KEY = "bidderId";
+
+    private final SocketChannel channel;
+
+    /** Delivers each incoming message to the auction it is addressed to */
+    private final MessageRouter router = new MessageRouter();
+
+    /** Partially received lines, only touched by the I/O thread */
+    private ByteBuffer input = ByteBuffer.allocate(READ_BUFFER_SIZE);
+
+    /** Encoded messages waiting to be written to the channel */
+    private final OutboundQueue output;
+
+    /** The traffic of this connection */
+    private final ConnectionMetrics metrics;
+
+    /** Held while a message is encoded and queued */
+    private final Object sendLock = new Object();
+
+    /** Translates messages to and from binary frames once negotiated */
+    private final BinaryCodec codec = new BinaryCodec();
+
+    /** True once outgoing messages are sent as binary frames */
+    private boolean binaryOutput = false;
+
+    /** True once incoming messages arrive as binary frames */
+    private boolean binaryInput = false;
+
+    /** True while skipping the rest of a line that was too long */
+    private boolean discarding = false;
+
+    /** The view that handshake messages are parsed into */
+    private final Message handshake = new Message();
+
+    /** The view that join and ready messages are parsed into */
+    private final Message session = new Message();
+
+    /** Told of the client joining a session and being ready, or null */
+    private volatile SessionListener sessionListener = null;
+
+    /** Messages gathered into a single write, only touched by the writer */
+    private final ByteBuffer[] batch = new ByteBuffer[WRITE_BATCH_SIZE];
+
+    /** True if the I/O thread has been asked to enable writes */
+    private final AtomicBoolean writePending = new AtomicBoolean(false);
+
+    /** The I/O thread servicing this client, or null until it is attached */
+    private volatile Reactor.Worker worker;
+
+    /** The selection key of this client's channel */
+    private volatile SelectionKey key;
 
     private final Logger LOGGER = Logger.getLogger(ClientHandler.class.getName());
 
-    public ClientHandler(Socket sock) throws IOException {
-        socket = sock;
-        input = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-        output = new PrintWriter(socket.getOutputStream(), true);
+    public ClientHandler(SocketChannel channel) {
+        this(channel, DEFAULT_QUEUE_CAPACITY, DEFAULT_POLICY);
+    }
+
+    /**
+     * Constructs a handler for the client connected on the channel.
+     * @param channel The channel the client is connected on
+     * @param queueCapacity The most messages that may wait to be written
+     * @param policy What to do when the client falls that far behind
+     */
+    public ClientHandler(SocketChannel channel, int queueCapacity,
+                         SlowConsumerPolicy policy) {
+        this.channel = channel;
+        output = new OutboundQueue(queueCapacity, policy);
+        metrics = new ConnectionMetrics(output);
+    }
+
+    /** @return The channel this client is connected on */
+    public SocketChannel getChannel() {
+        return channel;
+    }
+
+    /**
+     * Sets the listener that is told each time the client asks to join a
+     * session or says that it is ready to bid. Join and ready messages are
+     * only delivered to the listener, never to the auctions. Without a
+     * listener they are delivered like any other message.
+     * @param newListener The listener, or null for none
+     */
+    public void setSessionListener(SessionListener newListener) {
+        sessionListener = newListener;
     }
 
     /**
      * Ends communication with the client. This function closes the client
-     * socket and effectively ends any further communication.
+     * channel and effectively ends any further communication. Messages that
+     * have not been written yet are discarded.
      */
     public void close() {
+        output.close();
         try {
-            socket.close();
+            channel.close();
         } catch (IOException e) {
             LOGGER.warning("Failed to close socket: " + e.getMessage());
         }
     }
 
+    /**
+     * Blocks until every queued message has been written to the client, the
+     * client is closed, or the timeout expires.
+     * @param timeout The longest time to wait, in ms
+     * @return True if every queued message was written
+     */
+    public boolean flush(long timeout) {
+        try {
+            return output.awaitEmpty(timeout);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * @return The queue of messages waiting to be written to this client,
+     *         which describes how well the client is keeping up
+     */
+    public OutboundQueue getOutboundQueue() {
+        return output;
+    }
+
+    /**
+     * @return The metrics of this connection, which count the bytes and
+     *         messages in each direction
+     */
+    public MetricSource getMetrics() {
+        return metrics;
+    }
+
     /**
      * Resgisters an auction with this handler. Once registered an auction will
-     * receive every message that arrives at this socket. Generally auctions
+     * receive every message that arrives at this socket and is either
+     * addressed to it or not addressed to any auction. Generally auctions
      * should register with a handler when they begin and unregister when they
      * end. This function is thread safe.
      * @param auction The auction to register with this client
      */
     public void register(AuctionBase auction) {
-        auctions.add(auction);
+        router.register(auction);
     }
 
     /**
@@ -59,28 +210,374 @@ public class ClientHandler extends Thread {
      * @param auction The auction to unregsiter with this client
      */
     public void unregister(AuctionBase auction) {
-        auctions.remove(auction);
+        router.unregister(auction);
     }
 
     /**
-     * This function sends a message to the client.
+     * This function sends a message to the client. The message is queued and
+     * written out by the I/O thread, so this function never blocks on the
+     * network. If the client has fallen so far behind that the message cannot
+     * be queued, the client is disconnected. This function is thread safe.
      * @param message The message to send
      */
     public void sendMessage(String message) {
-        output.println(message);
+        sendMessage(new OutboundMessage(message));
     }
 
+    /**
+     * This function sends an already encoded message to the client. The same
+     * message may be sent to any number of clients, and clients that speak
+     * the text format all share its encoded bytes. This function is thread
+     * safe.
+     * @param message The message to send
+     */
+    public void sendMessage(OutboundMessage message) {
+
+        // Messages are queued under one lock so that the format they are
+        // queued in always matches the format the client was last told of.
+        // Binary messages are encoded by the writer, after the queue has had
+        // its chance to replace or drop them, so that the codec only defines
+        // symbols in frames that are sure to be written.
+
+        synchronized (sendLock) {
+            boolean queued = binaryOutput ? output.offer(message, codec)
+                                          : output.offer(message, message.getLine());
+            if (!queued) {
+                if (channel.isOpen()) {
+                    LOGGER.warning("Disconnecting slow client " + getRemoteAddress()
+                                   + ": " + output);
+                    close();
+                }
+                return;
+            }
+        }
+        requestWrite();
+    }
+
+    /**
+     * Reads from the channel in blocking mode until the client disconnects,
+     * delivering each complete line to the registered auctions. This is only
+     * used when the handler is given a thread of its own rather than being
+     * attached to the reactor.
+     */
     @Override
     public void run() {
         try {
-            String message;
-            while ((message = input.readLine()) != null) {
-                for (AuctionBase auction : auctions) {
-                    auction.queueMessage(message);
+            int count;
+            while ((count = channel.read(input)) >= 0) {
+                metrics.bytesIn.add(count);
+                frameInput();
+            }
+        } catch (ClosedChannelException e) {
+            return;
+        } catch (IOException e) {
+            LOGGER.warning("Failed to read from socket: " + e.getMessage());
+        }
+        close();
+    }
+
+    /**
+     * Returns a task that writes queued messages to the channel in blocking
+     * mode until the client is closed. This is only used when the handler is
+     * given threads of its own rather than being attached to the reactor, in
+     * which case the task must be run on a thread of its own as well.
+     * @return The writer task
+     */
+    public Runnable getWriter() {
+        return new Runnable() {
+            public void run() {
+                writeBlocking();
+            }
+        };
+    }
+
+    /** Writes queued messages in batches until the client is closed. */
+    private void writeBlocking() {
+        try {
+            int count;
+            while ((count = output.awaitWrite(batch)) >= 0) {
+                while (batch[count - 1].hasRemaining()) {
+                    metrics.bytesOut.add(channel.write(batch, 0, count));
                 }
+                output.endWrite(count, false);
+                Arrays.fill(batch, 0, count, null);
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ClosedChannelException e) {
+            return;
+        } catch (IOException e) {
+            LOGGER.warning("Failed to write to socket: " + e.getMessage());
+            close();
+        }
+    }
+
+    /** @return The address of the client, for log messages */
+    private String getRemoteAddress() {
+        return String.valueOf(channel.socket().getRemoteSocketAddress());
+    }
+
+    /**
+     * Called by the reactor once this client has been registered with one of
+     * its I/O threads.
+     */
+    void attached(Reactor.Worker newWorker, SelectionKey newKey) {
+        worker = newWorker;
+        key = newKey;
+
+        // Anything sent before we were attached still needs to go out
+
+        if (output.size() > 0) {
+            requestWrite();
+        }
+    }
+
+    /**
+     * Asks the I/O thread to start watching for writability. Only the first
+     * request after a drain wakes the I/O thread, so a burst of messages costs
+     * a single wakeup.
+     */
+    private void requestWrite() {
+        final Reactor.Worker w = worker;
+        if (w == null || !writePending.compareAndSet(false, true)) {
+            return;
+        }
+        w.execute(new Runnable() {
+            public void run() {
+                if (key.isValid()) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                }
+            }
+        });
+    }
+
+    /**
+     * Reads whatever is available on the channel and delivers each complete
+     * line to the registered auctions. This is called by the I/O thread when
+     * the channel is readable.
+     */
+    void handleRead() {
+        int count;
+        try {
+            count = channel.read(input);
+        } catch (ClosedChannelException e) {
+            return;
         } catch (IOException e) {
             LOGGER.warning("Failed to read from socket: " + e.getMessage());
+            close();
+            return;
+        }
+
+        if (count < 0) {
+            close();
+            return;
+        }
+        metrics.bytesIn.add(count);
+        frameInput();
+    }
+
+    /**
+     * Frames the bytes in the input buffer into messages and delivers each
+     * complete message to the registered auctions. Messages are lines until
+     * the client switches to binary frames. Whatever follows the last complete
+     * message is kept in the buffer for the next read.
+     */
+    private void frameInput() {
+        input.flip();
+        int start = 0;
+        try {
+            while (start < input.limit()) {
+                if (discarding) {
+                    start = skipLine(start);
+                    continue;
+                }
+                int end = binaryInput ? nextFrame(start) : nextLine(start);
+                if (end < 0) {
+                    break;
+                }
+                start = end;
+            }
+        } catch (IllegalArgumentException e) {
+            LOGGER.warning("Closing client after bad frame: " + e.getMessage());
+            close();
+            return;
+        }
+        input.position(start);
+        input.compact();
+
+        // If the buffer is full without a complete message then the message is
+        // longer than the buffer. Grow the buffer, up to the maximum line
+        // length for lines and give up on the line after that, skipping the
+        // rest of it up to the next newline. Frames are never longer than the
+        // maximum frame length, which nextFrame checks.
+
+        if (!input.hasRemaining()) {
+            if (!binaryInput && input.capacity() >= MAX_LINE_LENGTH) {
+                LOGGER.warning("Discarding line longer than " + MAX_LINE_LENGTH);
+                input.clear();
+                discarding = true;
+            } else {
+                ByteBuffer larger = ByteBuffer.allocate(input.capacity() * 2);
+                input.flip();
+                larger.put(input);
+                input = larger;
+            }
+        }
+    }
+
+    /**
+     * Skips the rest of a line that was too long, starting at the given
+     * position of the input buffer.
+     * @return The position after the end of the line, or the end of the
+     *         buffer if the line goes on past it
+     */
+    private int skipLine(int start) {
+        for (int i = start; i < input.limit(); ++i) {
+            if (input.get(i) == '\n') {
+                discarding = false;
+                return i + 1;
+            }
+        }
+        return input.limit();
+    }
+
+    /**
+     * Delivers the line that starts at the given position of the input
+     * buffer, if it is complete.
+     * @return The position after the line, or -1 if the line is incomplete
+     */
+    private int nextLine(int start) {
+        for (int i = start; i < input.limit(); ++i) {
+            if (input.get(i) == '\n') {
+                int end = i;
+                if (end > start && input.get(end - 1) == '\r') {
+                    --end;
+                }
+                if (end > start) {
+                    handleLine(new String(input.array(), start, end - start, CHARSET));
+                }
+                return i + 1;
+            }
         }
+        return -1;
+    }
+
+    /**
+     * Delivers the binary frame that starts at the given position of the
+     * input buffer, if it is complete.
+     * @return The position after the frame, or -1 if the frame is incomplete
+     * @throws IllegalArgumentException If the frame is malformed
+     */
+    private int nextFrame(int start) {
+        int length = BinaryCodec.frameLength(input, start);
+        if (length < 0) {
+            return -1;
+        }
+        if (length > BinaryCodec.MAX_FRAME_LENGTH) {
+            throw new IllegalArgumentException("Frame too long: " + length);
+        }
+
+        int body = start + BinaryCodec.varintSize(length);
+        if (body + length > input.limit()) {
+            return -1;
+        }
+        dispatch(codec.decode(input.array(), body, length));
+        return body + length;
+    }
+
+    /**
+     * Handles a line of text. Handshakes are answered here, and every other
+     * line is delivered to the registered auctions.
+     */
+    private void handleLine(String line) {
+        if (!line.startsWith(BinaryCodec.HANDSHAKE)
+                || !handshake.parse(line).isType(BinaryCodec.HANDSHAKE)) {
+            dispatch(line);
+            return;
+        }
+
+        // The reply must be the last text message sent to the client, so no
+        // other message may be encoded between sending it and switching.
+        // Everything the client sends after its handshake is already binary.
+
+        boolean binary = BinaryCodec.isBinaryHandshake(handshake);
+        synchronized (sendLock) {
+            sendMessage(BinaryCodec.HANDSHAKE + " " + BinaryCodec.FORMAT_KEY + "="
+                        + (binary ? BinaryCodec.BINARY : BinaryCodec.TEXT));
+            binaryOutput = binary;
+        }
+        binaryInput = binary;
+    }
+
+    /**
+     * Writes as much of the pending output as the channel will accept. This is
+     * called by the I/O thread when the channel is writable. Queued messages
+     * are written in batches with a single gathering write, so a burst of
+     * messages costs one system call rather than one per message.
+     */
+    void handleWrite() {
+        writePending.set(false);
+        try {
+            while (true) {
+                int count = output.beginWrite(batch);
+                if (count == 0) {
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                    return;
+                }
+
+                metrics.bytesOut.add(channel.write(batch, 0, count));
+
+                // Remove whatever was written in full. Anything left over means
+                // the socket is full, so wait until it is writable again.
+
+                int written = 0;
+                while (written < count && !batch[written].hasRemaining()) {
+                    ++written;
+                }
+                output.endWrite(written, written < count && batch[written].position() > 0);
+                Arrays.fill(batch, 0, count, null);
+                if (written < count) {
+                    return;
+                }
+            }
+        } catch (ClosedChannelException e) {
+            return;
+        } catch (IOException e) {
+            LOGGER.warning("Failed to write to socket: " + e.getMessage());
+            close();
+        }
+    }
+
+    /**
+     * Delivers a single message to the registered auctions.
+     * @param message The message received from the client
+     */
+    private void dispatch(String message) {
+        metrics.messagesIn.increment();
+        SessionListener listener = sessionListener;
+        if (listener != null && message.startsWith(JOIN) && session.parse(message).isType(JOIN)) {
+            try {
+                listener.joinRequested(this, session.getInt(SESSION_ID_KEY));
+            } catch (IllegalArgumentException e) {
+                LOGGER.warning("Bad join from " + getRemoteAddress() + ": " + e.getMessage());
+            }
+            return;
+        }
+        if (listener != null && message.startsWith(READY) && session.parse(message).isType(READY)) {
+            listener.readyReceived(this, session.get(BIDDER_ID_KEY));
+            return;
+        }
+        router.route(message);
+    }
+
+    /**
+     * The SessionListener is told each time a client asks to join a session
+     * with a "join sessionId=N" message, and each time it says that it is
+     * ready to bid with a "ready" or "ready bidderId=B" message. It is called
+     * on the thread reading the client, so it should not block.
+     */
+    public interface SessionListener {
+        public void joinRequested(ClientHandler client, int sessionId);
+        public void readyReceived(ClientHandler client, String bidderId);
     }
 }
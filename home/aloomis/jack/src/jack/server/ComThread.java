@@ -20,7 +20,9 @@
 package jack.server;
 
 import java.net.*;
-import java.util.Vector;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
 import java.util.Calendar;
 import java.io.*;
 
@@ -30,9 +32,12 @@ public class ComThread
 {
     private Socket socket = null;
     private String clientID = "";//unique ID for assigned client
-    private String serverMsg = "";//latest message from server to client
-    private long serverMsgTimeStamp = 0;//stamp when messages sent to client
-    private String clientMsg = "";//latest message from client to server
+    private volatile String serverMsg = "";//latest message from server to client
+    private volatile long serverMsgTimeStamp = 0;//stamp when messages sent to client
+    private volatile String clientMsg = "";//latest message from client to server
+
+    //told about each response from the client while a response is awaited
+    private volatile ResponseCollector collector = null;
 
     private long latency = 0;//last measure of server/client latency
 
@@ -40,7 +45,12 @@ public class ComThread
     public Listener listener;
     public Sender sender;
 
-    private Vector<AuctionBase> auctions;
+    private final MessageRouter router = new MessageRouter();
+
+    //Messages waiting for the Sender.  Nothing here is a status message, so a
+    //client that falls this far behind is disconnected.
+    private final OutboundQueue output =
+        new OutboundQueue(ClientHandler.DEFAULT_QUEUE_CAPACITY, SlowConsumerPolicy.DISCONNECT);
 
     public ComThread(Socket s) {
         socket = s;
@@ -48,19 +58,17 @@ public class ComThread
         listener = new Listener(socket, this);
         sender = new Sender(socket, this);
 
-        auctions = new Vector<AuctionBase>();
-
         //Start the communication threads
         listener.start();
         sender.start();
     }
 
     public void register(AuctionBase auction) {
-        auctions.add(auction);
+        router.register(auction);
     }
 
     public void unregister(AuctionBase auction) {
-        auctions.remove(auction);
+        router.unregister(auction);
     }
 
     //Resets messages to/from server to empty strings
@@ -72,12 +80,21 @@ public class ComThread
     //Used by associated SocketListener to record message(s) from client
     public void setClientMsg(String msg) {
         clientMsg = msg;
-        AuctionServer.writeToLogFile("Client IP:"+this.getClientIP()+
-                ", ID: "+this.getClientID()+", setClientMsg("+msg+")", 10);
+        if (AuctionServer.isLogged(10)) {
+            AuctionServer.writeToLogFile("Client IP:"+this.getClientIP()+
+                    ", ID: "+this.getClientID()+", setClientMsg("+msg+")", 10);
+        }
 
-        for (AuctionBase auction : auctions) {
-            auction.queueMessage(msg);
+        ResponseCollector currCollector = collector;
+        if (currCollector != null) {
+            currCollector.responded(this);
         }
+        router.route(msg);
+    }
+
+    //Used by ResponseCollector to be told when the client responds
+    public void setResponseCollector(ResponseCollector newCollector) {
+        collector = newCollector;
     }
 
     //Access client's latest response (may be blank if client hasn't responded)
@@ -85,14 +102,29 @@ public class ComThread
         return clientMsg;
     }
 
-    //Record server's last message sent to client
+    //Record server's last message sent to client and queue it for the Sender
     public void setServerMsg(String msg){
         clientMsg = "";//clear any prior client response to avoid confusion
         serverMsg = msg;
-        //Change timestamp to alert Sender that this is a new message to client
         serverMsgTimeStamp = Calendar.getInstance().getTimeInMillis();
-        AuctionServer.writeToLogFile("Client IP:"+this.getClientIP()+
-                ", ID: "+this.getClientID()+", setServerMsg("+msg+")", 10);
+        if (AuctionServer.isLogged(10)) {
+            AuctionServer.writeToLogFile("Client IP:"+this.getClientIP()+
+                    ", ID: "+this.getClientID()+", setServerMsg("+msg+")", 10);
+        }
+
+        OutboundMessage message = new OutboundMessage(msg);
+        if (!output.offer(message, message.getLine())) {
+            if (AuctionServer.isLogged(10)) {
+                AuctionServer.writeToLogFile("Client IP:"+this.getClientIP()+
+                        ", ID: "+this.getClientID()+", too slow, disconnecting: "+output, 10);
+            }
+            closeConnection();
+        }
+    }
+
+    //Access the queue of messages waiting to be sent to the client
+    public OutboundQueue getOutboundQueue(){
+        return output;
     }
 
     //Access the last message sent to the client from the server
@@ -134,8 +166,11 @@ public class ComThread
 
     //Close connection with client. Send message instructing client to close.
     public void closeConnection(){
-        AuctionServer.writeToLogFile("Client IP:"+this.getClientIP()+
-                ", ID: "+this.getClientID()+", closing socket connection", 10);
+        if (AuctionServer.isLogged(10)) {
+            AuctionServer.writeToLogFile("Client IP:"+this.getClientIP()+
+                    ", ID: "+this.getClientID()+", closing socket connection", 10);
+        }
+        output.close();
         try {
             socket.close();
         }
@@ -173,15 +208,18 @@ public class ComThread
             }
         }
 
-        //When socketListener is created, loop to listen for client messages.
+        //When socketListener is created, loop to listen for client messages
+        //until the client disconnects or the connection is closed.
         public void run() {
-            while(true) {
-                try{
-                    String clientMsg = in.readLine();//get messages from client
+            try{
+                String clientMsg;
+                while ((clientMsg = in.readLine()) != null) {//get messages from client
                     if (!clientMsg.isEmpty()) {
                         com.setClientMsg(clientMsg);
                     }
-                } catch (IOException e) {
+                }
+            } catch (IOException e) {
+                if (!socket.isClosed()) {
                     e.printStackTrace();
                 }
             }
@@ -202,19 +240,20 @@ public class ComThread
     /**
      * Sender is used within ComThread to send messages from the server to a
      * client.  Outgoing messages are sent asynchronously from incoming
-     * messages.
+     * messages, in the order they were queued, and none are skipped.
      */
     private class Sender extends Thread
     {
         private Socket socket = null;
-        private PrintWriter out;
+        private OutputStream out;
+        private WritableByteChannel channel;
 
         //Stores reference to ComThread with which this SocketSender works.
-        //Use this reference to check for new messages to send to the client.
+        //Use this reference to take queued messages to send to the client.
         private ComThread com;
 
-        //ComThread associates a timeStamp with each message.
-        long timeStamp = 0;//used to detect new messages from Server to client.
+        //Messages taken from the queue together and sent with one flush
+        private final ByteBuffer[] batch = new ByteBuffer[64];
 
         public Sender(Socket s, ComThread com){
             super("SocketSender"); //call superclass constructor
@@ -222,30 +261,34 @@ public class ComThread
             //this.com should hold a reference to the parent ComThread
             this.com = com;
             try{
-                out = new PrintWriter(socket.getOutputStream(), true);
+                out = new BufferedOutputStream(socket.getOutputStream());
+                channel = Channels.newChannel(out);
             } catch (IOException e) {
                 e.printStackTrace();
             }
         }
 
-        //Keep checking for new messages (by time-stamp) from server to client.
-        //When new message found, send it to the client.
+        //Wait for queued messages from server to client and send them as they
+        //arrive.  Stops once the connection is closed.
         public void run() {
-            while(true) {
-                //detect if time-stamp changed, else wait for NEW message
-                if (com.getServerMsgTimeStamp() != this.timeStamp) {
-                    try {
-                        timeStamp = com.getServerMsgTimeStamp();
-                        out.println( com.getServerMsg() );//send message to client...
-                    } catch (Exception e) {
-                        e.printStackTrace();
-                    }
-                } else {
-                    try{
-                        sleep(50);
-                    } catch(InterruptedException e){
-                        e.printStackTrace();
+            OutboundQueue queue = com.getOutboundQueue();
+            try {
+                int count;
+                while ((count = queue.awaitWrite(batch)) >= 0) {
+                    for (int i = 0; i < count; i++) {
+                        while (batch[i].hasRemaining()) {
+                            channel.write(batch[i]);
+                        }
+                        batch[i] = null;
                     }
+                    out.flush();
+                    queue.endWrite(count, false);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (IOException e) {
+                if (!socket.isClosed()) {
+                    e.printStackTrace();
                 }
             }
         }
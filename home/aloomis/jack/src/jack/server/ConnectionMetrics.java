@@ -0,0 +1,46 @@
+package jack.server;
+
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import jack.metrics.MetricSource;
+
+/**
+ * The metrics of a single client connection: the bytes and messages that have
+ * come in and gone out, along with the state of its outbound queue. The
+ * counters are recorded by the threads reading and writing the connection,
+ * and the queue is only looked at when the metrics are sampled.
+ */
+class ConnectionMetrics implements MetricSource {
+
+    /** The queue of messages waiting to be written to the client */
+    private final OutboundQueue output;
+
+    /** Bytes read from the client */
+    final LongAdder bytesIn = new LongAdder();
+
+    /** Messages received from the client */
+    final LongAdder messagesIn = new LongAdder();
+
+    /** Bytes written to the client */
+    final LongAdder bytesOut = new LongAdder();
+
+    /**
+     * @param output The queue of messages waiting to be written to the client
+     */
+    ConnectionMetrics(OutboundQueue output) {
+        this.output = output;
+    }
+
+    @Override
+    public void sample(Map<String, Number> values) {
+        values.put("bytesIn", bytesIn.sum());
+        values.put("messagesIn", messagesIn.sum());
+        values.put("bytesOut", bytesOut.sum());
+        values.put("messagesOut", output.getSent());
+        values.put("queued", output.size());
+        values.put("queueHighWaterMark", output.getHighWaterMark());
+        values.put("dropped", output.getDropped());
+        values.put("coalesced", output.getCoalesced());
+    }
+}
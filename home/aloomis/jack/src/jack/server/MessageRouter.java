@@ -0,0 +1,119 @@
+package jack.server;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import jack.auctions.AuctionBase;
+
+/**
+ * The MessageRouter delivers messages from a single client to the auctions
+ * registered with that client. Rather than handing every message to every
+ * auction, the router reads the auctionId of the message once and delivers it
+ * only to the auction it is addressed to. Messages without an auctionId, such
+ * as registration messages, are still delivered to every registered auction.
+ * This class is thread safe.
+ */
+public class MessageRouter {
+
+    /** The value returned by getAuctionId when a message has no auctionId */
+    public static final int NO_ID = -1;
+
+    /** The key that identifies the target auction of a message */
+    private static final String AUCTION_ID_KEY = "auctionId=";
+
+    /** Registered auctions indexed by their auctionId */
+    private final Map<Integer, AuctionBase> auctionsById =
+        new ConcurrentHashMap<Integer, AuctionBase>();
+
+    /** Every registered auction, for messages without an auctionId */
+    private final List<AuctionBase> auctions =
+        new CopyOnWriteArrayList<AuctionBase>();
+
+    /**
+     * Registers an auction with this router. Once registered the auction will
+     * receive every message addressed to it and every message that is not
+     * addressed to a particular auction.
+     * @param auction The auction to register
+     */
+    public void register(AuctionBase auction) {
+        auctions.add(auction);
+        auctionsById.put(auction.getId(), auction);
+    }
+
+    /**
+     * Unregisters an auction with this router. If the auction has not been
+     * previously registered this function will silently fail.
+     * @param auction The auction to unregister
+     */
+    public void unregister(AuctionBase auction) {
+        auctions.remove(auction);
+        auctionsById.remove(auction.getId(), auction);
+    }
+
+    /**
+     * Delivers the message to the auction it is addressed to. Messages that
+     * are addressed to an auction that is not registered are dropped, since no
+     * registered auction would accept them.
+     * @param message The message received from the client
+     */
+    public void route(String message) {
+        int auctionId = getAuctionId(message);
+        if (auctionId == NO_ID) {
+            for (AuctionBase auction : auctions) {
+                auction.queueMessage(message);
+            }
+            return;
+        }
+
+        AuctionBase auction = auctionsById.get(auctionId);
+        if (auction != null) {
+            auction.queueMessage(message);
+        }
+    }
+
+    /**
+     * Returns the value of the auctionId key of a "type key=value ..."
+     * message. The message is scanned in place rather than split, so this
+     * does not allocate.
+     * @param message The message to scan
+     * @return The auctionId, or NO_ID if there is no valid auctionId
+     */
+    public static int getAuctionId(String message) {
+        int from = 0;
+        int index;
+        while ((index = message.indexOf(AUCTION_ID_KEY, from)) >= 0) {
+            from = index + AUCTION_ID_KEY.length();
+
+            // The key must start a token, otherwise it is part of another key
+            // such as "previousAuctionId=".
+
+            if (index > 0 && !Character.isWhitespace(message.charAt(index - 1))) {
+                continue;
+            }
+
+            int value = 0;
+            int i = from;
+            for (; i < message.length(); ++i) {
+                char c = message.charAt(i);
+                if (c < '0' || c > '9') {
+                    break;
+                }
+                if (value > (Integer.MAX_VALUE - (c - '0')) / 10) {
+                    return NO_ID;
+                }
+                value = value * 10 + (c - '0');
+            }
+
+            // The value must be a non-empty run of digits ending the token
+
+            if (i == from
+                    || (i < message.length() && !Character.isWhitespace(message.charAt(i)))) {
+                return NO_ID;
+            }
+            return value;
+        }
+        return NO_ID;
+    }
+}
@@ -0,0 +1,70 @@
+package jack.server;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * The OutboundMessage is a message on its way to one or more clients. The text
+ * form of the message is encoded into bytes once, when the message is
+ * created, and every client that speaks the text format is handed its own
+ * read only view of those same bytes. This lets an auction broadcast a message
+ * to every bidder without re-encoding it for each of them.
+ */
+public final class OutboundMessage {
+
+    /** The character set used to encode messages */
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+
+    /** The start of every status message */
+    private static final String STATUS_TYPE = "status ";
+
+    /** The message in text form, without a line terminator */
+    private final String text;
+
+    /** The encoded line, including its terminator, shared by every client */
+    private final ByteBuffer line;
+
+    /** True if this is a status message, which a later status supersedes */
+    private final boolean status;
+
+    /** The auction this message is about, or MessageRouter.NO_ID */
+    private final int auctionId;
+
+    /**
+     * Constructs a message and encodes its text form.
+     * @param text The message in text form, without a line terminator
+     */
+    public OutboundMessage(String text) {
+        this.text = text;
+        line = ByteBuffer.wrap((text + "\n").getBytes(CHARSET)).asReadOnlyBuffer();
+        status = text.startsWith(STATUS_TYPE);
+        auctionId = MessageRouter.getAuctionId(text);
+    }
+
+    /** @return The message in text form, without a line terminator */
+    public String getText() {
+        return text;
+    }
+
+    /**
+     * @return True if this is a status message. A slow client can safely miss
+     *         a status message as long as it receives a later one.
+     */
+    public boolean isStatus() {
+        return status;
+    }
+
+    /** @return The auction this message is about, or MessageRouter.NO_ID */
+    public int getAuctionId() {
+        return auctionId;
+    }
+
+    /**
+     * Returns a new view of the encoded line. Each view has its own position,
+     * so it can be written to a channel independently of every other view.
+     * @return A read only buffer holding the line and its terminator
+     */
+    ByteBuffer getLine() {
+        return line.duplicate();
+    }
+}
@@ -0,0 +1,337 @@
+package jack.server;
+
+import java.nio.ByteBuffer;
+import java.util.logging.Logger;
+
+/**
+ * The OutboundQueue is a bounded ring of encoded messages waiting to be
+ * written to a single client. Any thread may add messages, and a single
+ * writer, either a Reactor I/O thread or a dedicated writer thread, removes
+ * them in batches as the client accepts them. When the queue is full the
+ * SlowConsumerPolicy decides whether a status message is dropped to make
+ * room or whether the message is refused, in which case the caller should
+ * disconnect the client. The queue also keeps counters that describe how well
+ * the client is keeping up. This class is thread safe.
+ *
+ * Messages for a client that speaks the binary format are queued in text form
+ * and only encoded by the writer, once no later message can replace them. A
+ * binary frame may define symbols that every later frame relies on, so a frame
+ * that has been encoded is never dropped or replaced.
+ */
+public class OutboundQueue {
+
+    /** The encoded messages, in the order they will be written */
+    private final ByteBuffer[] buffers;
+
+    /** The message that each buffer was encoded from */
+    private final OutboundMessage[] messages;
+
+    /** The codec that each message is still to be encoded with, or null */
+    private final BinaryCodec[] codecs;
+
+    private final SlowConsumerPolicy policy;
+
+    /** The index of the oldest message */
+    private int head = 0;
+
+    /** The number of queued messages */
+    private int size = 0;
+
+    /**
+     * The number of messages at the head of the queue that the writer is
+     * working on. These may be partially written, so they are never dropped
+     * or replaced.
+     */
+    private int inFlight = 0;
+
+    /**
+     * The number of messages at the head of the queue that may have been
+     * encoded into binary frames. These are never dropped or replaced either.
+     */
+    private int encoded = 0;
+
+    /** True once the queue has been closed */
+    private boolean closed = false;
+
+    /** Counters describing the client */
+    private long sent = 0;
+    private long dropped = 0;
+    private long coalesced = 0;
+    private int highWaterMark = 0;
+
+    private static final Logger LOGGER = Logger.getLogger(OutboundQueue.class.getName());
+
+    /**
+     * Constructs an empty queue.
+     * @param capacity The most messages the queue can hold
+     * @param policy What to do when the queue is full
+     */
+    public OutboundQueue(int capacity, SlowConsumerPolicy policy) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("queue needs room for a message");
+        }
+        buffers = new ByteBuffer[capacity];
+        messages = new OutboundMessage[capacity];
+        codecs = new BinaryCodec[capacity];
+        this.policy = policy;
+    }
+
+    /**
+     * Adds a message to the queue, applying the slow consumer policy.
+     * @param message The message being sent
+     * @param buffer The message encoded for this client
+     * @return False if the message was refused, either because the queue is
+     *         closed or because it is full and nothing could be dropped
+     */
+    public boolean offer(OutboundMessage message, ByteBuffer buffer) {
+        return add(message, buffer, null);
+    }
+
+    /**
+     * Adds a message to the queue, applying the slow consumer policy. The
+     * message is encoded with the codec when the writer is about to write it,
+     * so it can still be replaced or dropped until then without the codec
+     * having defined any symbols for it.
+     * @param message The message being sent
+     * @param codec The codec of the client's connection
+     * @return False if the message was refused, either because the queue is
+     *         closed or because it is full and nothing could be dropped
+     */
+    public boolean offer(OutboundMessage message, BinaryCodec codec) {
+        return add(message, null, codec);
+    }
+
+    /** Adds a message that is either encoded already or has a codec. */
+    private synchronized boolean add(OutboundMessage message, ByteBuffer buffer,
+                                     BinaryCodec codec) {
+        if (closed) {
+            return false;
+        }
+
+        if (policy == SlowConsumerPolicy.COALESCE_STATUS && message.isStatus()
+                && replaceStatus(message, buffer, codec)) {
+            ++coalesced;
+            return true;
+        }
+
+        if (size == buffers.length) {
+            if (policy == SlowConsumerPolicy.DISCONNECT || !dropOldestStatus()) {
+                return false;
+            }
+            ++dropped;
+        }
+
+        int tail = index(size);
+        buffers[tail] = buffer;
+        messages[tail] = message;
+        codecs[tail] = codec;
+        ++size;
+        highWaterMark = Math.max(highWaterMark, size);
+
+        if (size == 1) {
+            notifyAll();
+        }
+        return true;
+    }
+
+    /**
+     * Copies the messages at the head of the queue into the batch, so that
+     * they can be written in one go, encoding any that are still in text
+     * form. A message that cannot be encoded is dropped. The messages stay
+     * queued until endWrite is called. Only the writer may call this.
+     * @param batch The array to copy the messages into
+     * @return The number of messages copied, which may be zero
+     */
+    public synchronized int beginWrite(ByteBuffer[] batch) {
+        int i = 0;
+        while (i < Math.min(size, batch.length)) {
+            int j = index(i);
+            if (codecs[j] != null) {
+                if (buffers[j] == null) {
+                    try {
+                        buffers[j] = codecs[j].encode(messages[j].getText());
+                    } catch (IllegalArgumentException e) {
+                        LOGGER.warning("Failed to encode message: " + e.getMessage());
+                        remove(i);
+                        continue;
+                    }
+                }
+                encoded = i + 1;
+            }
+            batch[i] = buffers[j];
+            ++i;
+        }
+        inFlight = i;
+        return inFlight;
+    }
+
+    /**
+     * Like beginWrite, but blocks until there is at least one message to
+     * write. This is used by writers that have a thread of their own.
+     * @param batch The array to copy the messages into
+     * @return The number of messages copied, or -1 once the queue is closed
+     * @throws InterruptedException If the thread is interrupted while waiting
+     */
+    public synchronized int awaitWrite(ByteBuffer[] batch) throws InterruptedException {
+        while (size == 0 && !closed) {
+            wait();
+        }
+        if (closed) {
+            return -1;
+        }
+        return beginWrite(batch);
+    }
+
+    /**
+     * Removes the messages that have been written in full after a call to
+     * beginWrite. Only the writer may call this.
+     * @param written The number of messages at the head that were written
+     * @param partial True if the message after those was partially written
+     */
+    public synchronized void endWrite(int written, boolean partial) {
+        for (int i = 0; i < written; ++i) {
+            buffers[head] = null;
+            messages[head] = null;
+            codecs[head] = null;
+            head = index(1);
+        }
+        size -= written;
+        sent += written;
+        inFlight = partial ? 1 : 0;
+        encoded = Math.max(0, encoded - written);
+
+        if (size == 0) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * Blocks until every queued message has been written, the queue is
+     * closed, or the timeout expires.
+     * @param timeout The longest time to wait, in ms
+     * @return True if the queue is empty
+     * @throws InterruptedException If the thread is interrupted while waiting
+     */
+    public synchronized boolean awaitEmpty(long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        long remaining;
+        while (size > 0 && !closed
+                && (remaining = deadline - System.currentTimeMillis()) > 0) {
+            wait(remaining);
+        }
+        return size == 0;
+    }
+
+    /**
+     * Closes the queue and discards anything still queued. Further messages
+     * are refused and a waiting writer is woken up.
+     */
+    public synchronized void close() {
+        closed = true;
+        for (int i = 0; i < size; ++i) {
+            buffers[index(i)] = null;
+            messages[index(i)] = null;
+            codecs[index(i)] = null;
+        }
+        size = 0;
+        inFlight = 0;
+        encoded = 0;
+        notifyAll();
+    }
+
+    /** @return The number of messages currently queued */
+    public synchronized int size() {
+        return size;
+    }
+
+    /** @return The most messages that the queue can hold */
+    public int getCapacity() {
+        return buffers.length;
+    }
+
+    /** @return The largest number of messages that have been queued at once */
+    public synchronized int getHighWaterMark() {
+        return highWaterMark;
+    }
+
+    /** @return The number of messages written to the client */
+    public synchronized long getSent() {
+        return sent;
+    }
+
+    /** @return The number of status messages dropped to make room */
+    public synchronized long getDropped() {
+        return dropped;
+    }
+
+    /** @return The number of status messages replaced by a newer one */
+    public synchronized long getCoalesced() {
+        return coalesced;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("depth=%d max=%d capacity=%d sent=%d dropped=%d coalesced=%d",
+                             size, highWaterMark, buffers.length, sent, dropped, coalesced);
+    }
+
+    /**
+     * Replaces the most recent queued status of the same auction with the new
+     * one, unless some other message of that auction was queued after it, in
+     * which case the order of the two matters.
+     * @return True if a status was replaced
+     */
+    private boolean replaceStatus(OutboundMessage message, ByteBuffer buffer,
+                                  BinaryCodec codec) {
+        for (int i = size - 1; i >= Math.max(inFlight, encoded); --i) {
+            int j = index(i);
+            if (messages[j].getAuctionId() != message.getAuctionId()) {
+                continue;
+            }
+            if (!messages[j].isStatus()) {
+                return false;
+            }
+            buffers[j] = buffer;
+            messages[j] = message;
+            codecs[j] = codec;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Removes the oldest status message that is not being written and has not
+     * been encoded.
+     * @return True if a status was removed
+     */
+    private boolean dropOldestStatus() {
+        for (int i = Math.max(inFlight, encoded); i < size; ++i) {
+            if (messages[index(i)].isStatus()) {
+                remove(i);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Removes the message at the given queue position, closing the gap by
+     * moving every later message forward one place.
+     */
+    private void remove(int position) {
+        for (int i = position; i < size - 1; ++i) {
+            buffers[index(i)] = buffers[index(i + 1)];
+            messages[index(i)] = messages[index(i + 1)];
+            codecs[index(i)] = codecs[index(i + 1)];
+        }
+        buffers[index(size - 1)] = null;
+        messages[index(size - 1)] = null;
+        codecs[index(size - 1)] = null;
+        --size;
+    }
+
+    /** @return The ring index of the message at the given queue position */
+    private int index(int position) {
+        return (head + position) % buffers.length;
+    }
+}
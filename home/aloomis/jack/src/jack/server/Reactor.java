@@ -0,0 +1,180 @@
+package jack.server;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Logger;
+
+/**
+ * The Reactor multiplexes all client connections over a small, fixed number of
+ * I/O threads. Each thread owns a selector and services the reads and writes
+ * of every client that has been attached to it. Clients are spread across the
+ * threads in a round robin fashion as they are attached. This replaces the old
+ * model of dedicating one blocking thread to every connected bidder.
+ */
+public class Reactor {
+
+    /** The I/O threads that service the client connections */
+    private final Worker[] workers;
+
+    /** The index of the worker that the next client is attached to */
+    private int nextWorker = 0;
+
+    /** Logger for writing log messages */
+    private final Logger LOGGER = Logger.getLogger(Reactor.class.getName());
+
+    /**
+     * Constructs a reactor with the specified number of I/O threads. The
+     * threads are not started until start is called.
+     * @param numThreads The number of I/O threads, which must be at least one
+     * @throws IOException If a selector could not be opened
+     */
+    public Reactor(int numThreads) throws IOException {
+        if (numThreads < 1) {
+            throw new IllegalArgumentException("reactor needs at least one thread");
+        }
+
+        workers = new Worker[numThreads];
+        for (int i = 0; i < numThreads; ++i) {
+            workers[i] = new Worker("Reactor-" + i);
+        }
+    }
+
+    /** Starts each of the I/O threads. */
+    public void start() {
+        for (Worker worker : workers) {
+            worker.start();
+        }
+    }
+
+    /**
+     * Attaches a client to one of the I/O threads. Once attached, every line
+     * that arrives on the client's channel is framed into a message and
+     * delivered to the auctions registered with the client, and every message
+     * sent to the client is written out by the I/O thread. This function is
+     * thread safe.
+     * @param client The client to attach
+     * @throws IOException If the client channel could not be made non-blocking
+     */
+    public void attach(final ClientHandler client) throws IOException {
+        final Worker worker;
+        synchronized (workers) {
+            worker = workers[nextWorker];
+            nextWorker = (nextWorker + 1) % workers.length;
+        }
+
+        client.getChannel().configureBlocking(false);
+        worker.execute(new Runnable() {
+            public void run() {
+                worker.register(client);
+            }
+        });
+    }
+
+    /**
+     * Stops each of the I/O threads and closes their selectors. Clients that
+     * are still attached are not closed by this function.
+     */
+    public void shutdown() {
+        for (Worker worker : workers) {
+            worker.shutdown();
+        }
+    }
+
+    /**
+     * A single I/O thread. The worker blocks in its selector until one of its
+     * channels is ready or until another thread hands it a task, such as
+     * registering a new client or enabling writes for a client with pending
+     * output.
+     */
+    class Worker extends Thread {
+
+        /** The selector for every channel serviced by this worker */
+        private final Selector selector;
+
+        /** Tasks submitted by other threads to be run on this worker */
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+        /** False once the worker has been asked to shut down */
+        private volatile boolean running = true;
+
+        Worker(String name) throws IOException {
+            super(name);
+            selector = Selector.open();
+        }
+
+        /**
+         * Runs the task on this worker's thread. Any selector operations must
+         * go through this function because selection keys may only be safely
+         * modified by the thread that owns the selector.
+         * @param task The task to run
+         */
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        /**
+         * Registers the client's channel with this worker's selector. This
+         * must be called from the worker thread.
+         */
+        private void register(ClientHandler client) {
+            try {
+                SelectionKey key = client.getChannel().register(
+                    selector, SelectionKey.OP_READ, client);
+                client.attached(this, key);
+            } catch (ClosedChannelException e) {
+                LOGGER.warning("Client closed before it was attached");
+            }
+        }
+
+        void shutdown() {
+            running = false;
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    selector.select();
+                } catch (IOException e) {
+                    LOGGER.warning("Selector failed: " + e.getMessage());
+                    break;
+                }
+
+                // Run anything handed to us by another thread before servicing
+                // the ready channels.
+
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    task.run();
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+
+                    ClientHandler client = (ClientHandler)key.attachment();
+                    if (key.isValid() && key.isReadable()) {
+                        client.handleRead();
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        client.handleWrite();
+                    }
+                }
+            }
+
+            try {
+                selector.close();
+            } catch (IOException e) {
+                LOGGER.warning("Failed to close selector: " + e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,79 @@
+/**
+ * This library is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License version 2.1 as published by the
+ * Free Software Foundation.
+ */
+
+package jack.server;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ResponseCollector waits for a response from each of a group of clients.
+ * Each ComThread reports to the collector as soon as its client responds, so
+ * waiting costs no CPU and returns as soon as the last client has responded,
+ * rather than polling every client until the time limit.
+ */
+public class ResponseCollector
+{
+    private final Collection<ComThread> threads;
+    private final CountDownLatch remaining;
+
+    //clients that have responded, so that each is only counted once
+    private final Set<ComThread> responded = new HashSet<ComThread>();
+
+    /**
+     * Starts collecting responses from the given clients.  Clients that have
+     * already responded, i.e. whose client message is not empty, are counted
+     * immediately.
+     * @param threads ComThreads of the clients that should respond
+     */
+    public ResponseCollector(Collection<ComThread> threads) {
+        this.threads = threads;
+        remaining = new CountDownLatch(threads.size());
+        for (ComThread thread : threads) {
+            thread.setResponseCollector(this);
+            if (!thread.getClientMsg().isEmpty()) {
+                responded(thread);
+            }
+        }
+    }
+
+    /**
+     * Called by a ComThread when its client responds.  Only the first response
+     * of each client counts.
+     */
+    public void responded(ComThread thread) {
+        synchronized (responded) {
+            if (!responded.add(thread)) {
+                return;
+            }
+        }
+        remaining.countDown();
+    }
+
+    /**
+     * Blocks until every client has responded or the time limit expires.
+     * @param timeLimit Longest time to wait, in milliseconds
+     * @return True if every client responded in time
+     */
+    public boolean await(long timeLimit) {
+        try {
+            return remaining.await(timeLimit, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /** Stops collecting responses. */
+    public void close() {
+        for (ComThread thread : threads) {
+            thread.setResponseCollector(null);
+        }
+    }
+}
@@ -0,0 +1,388 @@
+package jack.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.Vector;
+import java.util.logging.Logger;
+
+import jack.auctions.AuctionBase;
+import jack.auctions.Ledger;
+import jack.journal.Journal;
+import jack.journal.JournalReplay;
+import jack.metrics.MetricsRegistry;
+import jack.scheduler.Scheduler;
+
+/**
+ * A Session is a single draft hosted by the server: a schedule of auctions,
+ * the pool of players being drafted, and the clients bidding on them. Every
+ * session has a scheduler, auctions and clients of its own, so sessions never
+ * wait on each other, while the I/O threads, auction threads and journal are
+ * shared by every session of the server. Once it has been started a session
+ * runs its schedule on a thread of its own.
+ *
+ * A session may ask for a quorum before it is started: a minimum number of
+ * clients that have said they are ready, a list of bidders that must each
+ * have said so, or both. Clients may still be admitted once the session has
+ * started, and take part in every auction that starts after they join.
+ */
+class Session implements Runnable {
+
+    /** The id of the session, which every message of the session carries */
+    private final int id;
+
+    /** The schedule of the auctions */
+    private final Scheduler scheduler;
+
+    /** The auctions of the session, by auctionId */
+    private final Map<Integer, AuctionBase> auctions = new HashMap<Integer, AuctionBase>();
+
+    /** The estimated value of each player in the draft pool, by player id */
+    private final Map<String, Integer> players = new LinkedHashMap<String, Integer>();
+
+    /** The clients bidding in the session */
+    private final Vector<ClientHandler> clients = new Vector<ClientHandler>();
+
+    /** The least number of ready clients needed to start, or 0 for no quorum */
+    private int quorum = 0;
+
+    /** The bidders that must each be ready to start */
+    private final Set<String> expectedBidders = new LinkedHashSet<String>();
+
+    /** The clients that have said they are ready */
+    private final Set<ClientHandler> readyClients = new HashSet<ClientHandler>();
+
+    /** The bidders that clients have said they are ready to bid as */
+    private final Set<String> readyBidders = new HashSet<String>();
+
+    /** The thread running the session, or null if it has not been started */
+    private Thread thread = null;
+
+    /** True once the session has finished, or was never run */
+    private boolean finished = false;
+
+    /** How long to wait for queued messages to be written before closing */
+    private static final long FLUSH_TIMEOUT = 1000;
+
+    /** Logger for writing log messages, which go to the server's log */
+    private final Logger LOGGER = Logger.getLogger(AuctionServer.class.getName());
+
+    /**
+     * @param id The id of the session
+     * @param scheduler The schedule of the auctions
+     */
+    Session(int id, Scheduler scheduler) {
+        this.id = id;
+        this.scheduler = scheduler;
+    }
+
+    /** @return The id of the session */
+    int getId() {
+        return id;
+    }
+
+    /** @return The schedule of the auctions */
+    Scheduler getScheduler() {
+        return scheduler;
+    }
+
+    /**
+     * Adds an auction to the session, replacing any auction with the same id.
+     * @param auction The auction to add
+     */
+    void addAuction(AuctionBase auction) {
+        auction.setSessionId(id);
+        auctions.put(auction.getId(), auction);
+    }
+
+    /**
+     * Adds a player to the draft pool.
+     * @param playerId The number that bidders pick the player by
+     * @param estValue The estimated value of the player
+     * @return False if the player is already in the pool and true otherwise
+     */
+    boolean addPlayer(String playerId, int estValue) {
+        if (players.containsKey(playerId)) {
+            return false;
+        }
+        players.put(playerId, estValue);
+        return true;
+    }
+
+    /**
+     * Sets the least number of clients that must be ready before the session
+     * may start.
+     * @param newQuorum The number of clients, or 0 for no quorum
+     */
+    void setQuorum(int newQuorum) {
+        if (newQuorum < 0) {
+            throw new IllegalArgumentException("Invalid quorum: " + newQuorum);
+        }
+        quorum = newQuorum;
+    }
+
+    /**
+     * Adds a bidder that must be ready before the session may start.
+     * @param bidderId The id that the bidder bids as
+     */
+    void expectBidder(String bidderId) {
+        expectedBidders.add(bidderId);
+    }
+
+    /**
+     * @return True if the session waits for a quorum and false if it only
+     *         waits for the server's wait for clients to be over
+     */
+    boolean hasQuorum() {
+        return quorum > 0 || !expectedBidders.isEmpty();
+    }
+
+    /**
+     * @return True if the session has a quorum and enough clients are ready
+     *         to satisfy it
+     */
+    synchronized boolean isQuorate() {
+        return hasQuorum() && readyClients.size() >= quorum
+            && readyBidders.containsAll(expectedBidders);
+    }
+
+    /**
+     * Records that a client of the session is ready to bid.
+     * @param client The client
+     * @param bidderId The bidder the client will bid as, or null if not given
+     */
+    synchronized void ready(ClientHandler client, String bidderId) {
+        readyClients.add(client);
+        if (bidderId != null) {
+            readyBidders.add(bidderId);
+        }
+    }
+
+    /**
+     * Admits a client into the session. A client admitted once the session
+     * has started takes part in each auction that starts after that.
+     * @param client The client to admit
+     * @return False if the session has already finished and true otherwise
+     */
+    synchronized boolean addClient(ClientHandler client) {
+        if (finished) {
+            return false;
+        }
+        clients.add(client);
+        if (thread != null) {
+            MetricsRegistry.getDefault().register("Connection", String.valueOf(
+                client.getChannel().socket().getRemoteSocketAddress()), client.getMetrics());
+            LOGGER.info("Session " + id + " admitted a late client");
+        }
+        return true;
+    }
+
+    /**
+     * Sends a client that was admitted once the session had started the
+     * specification of each auction that it can still take part in. Clients
+     * admitted before the session started are sent them when it starts.
+     * @param client The client
+     */
+    synchronized void catchUp(ClientHandler client) {
+        if (thread == null || finished) {
+            return;
+        }
+        for (AuctionBase auction : auctions.values()) {
+            if (auction.getState() == AuctionBase.STATE_NEW) {
+                auction.sendSpec(client);
+            }
+        }
+    }
+
+    /** @return The number of clients admitted into the session */
+    int getClientCount() {
+        return clients.size();
+    }
+
+    /**
+     * Hands the journal to the auctions and the scheduler, which record
+     * everything that happens from then on.
+     * @param journal The journal
+     */
+    void setJournal(Journal journal) {
+        for (AuctionBase auction : auctions.values()) {
+            auction.setJournal(journal);
+        }
+        scheduler.setJournal(journal);
+    }
+
+    /**
+     * Rebuilds the state of the session from the journal. Auctions that ended
+     * before the journal stopped are marked as ended and are not run again,
+     * and the budgets and rosters they handed on are given to the scheduler.
+     * Auctions that were running are run again from the start, with the
+     * messages they had accepted queued up so that they pick up where they
+     * left off.
+     * @param directory The directory of the journal
+     * @throws IOException If the journal could not be read
+     */
+    void replay(File directory) throws IOException {
+        long start = System.currentTimeMillis();
+        JournalReplay recovered = JournalReplay.read(directory, id);
+
+        int ended = 0;
+        int resumed = 0;
+        for (AuctionBase auction : auctions.values()) {
+            Integer state = recovered.getStates().get(auction.getId());
+            if (state == null) {
+                continue;
+            }
+            if (state >= AuctionBase.STATE_ENDING) {
+                auction.restoreEnded();
+                ++ended;
+            } else {
+                for (String message : recovered.getMessages(auction.getId())) {
+                    auction.queueMessage(message);
+                }
+                ++resumed;
+            }
+        }
+
+        if (recovered.getLedger() != null) {
+            scheduler.setLedger(recovered.getLedger());
+        }
+
+        LOGGER.info(String.format("Session %d replayed %d journal records in %d ms, "
+                                  + "%d auctions ended and %d resumed",
+                                  id, recovered.getRecords(),
+                                  System.currentTimeMillis() - start, ended, resumed));
+    }
+
+    /**
+     * Starts the session. The auctions are told of the clients admitted so
+     * far and send them their specifications, and then the schedule is run
+     * on a thread of its own.
+     * @param onFinished Run on the session's thread once it has finished
+     */
+    synchronized void start(final Runnable onFinished) {
+
+        // Notify each auction of the clients that will be participating. It is
+        // the auctions responsibility to register themselves with each client
+        // before they begin and unregister themselves after they have ended.
+
+        for (AuctionBase auction : auctions.values()) {
+            auction.setClients(clients);
+        }
+
+        // Publish the metrics of the session over JMX
+
+        MetricsRegistry metrics = MetricsRegistry.getDefault();
+        metrics.register("Scheduler", String.valueOf(id), scheduler.getMetrics());
+        for (AuctionBase auction : auctions.values()) {
+            metrics.register("Auction", id + "." + auction.getId(), auction.getMetrics());
+        }
+        for (ClientHandler client : clients) {
+            metrics.register("Connection", String.valueOf(
+                client.getChannel().socket().getRemoteSocketAddress()), client.getMetrics());
+        }
+
+        // Register the draft pool with the ledger that the scheduler hands to
+        // the first auctions, so a snake draft can find the best available
+        // player. This comes after any replay, which replaces the ledger.
+
+        Ledger ledger = scheduler.getLedger();
+        for (Map.Entry<String, Integer> player : players.entrySet()) {
+            ledger.addPlayer(player.getKey(), player.getValue());
+        }
+
+        // Not entirely sure how this should work yet, but for the moment, each
+        // auction is going to send its "specification" to the bidders. This is
+        // effectively notifying them of the scheduler before it is executed.
+        // The specifications are queued ahead of anything the auctions send
+        // once they start, so the schedule can be executed straight away.
+
+        for (AuctionBase auction : auctions.values()) {
+            auction.sendSpec();
+        }
+
+        LOGGER.info("Session " + id + " starting with " + clients.size() + " clients, "
+                    + readyClients.size() + " ready");
+        thread = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    Session.this.run();
+                } finally {
+                    onFinished.run();
+                }
+            }
+        }, "Session-" + id);
+        thread.start();
+    }
+
+    /** @return True if the session has been started */
+    synchronized boolean isStarted() {
+        return thread != null;
+    }
+
+    /** Marks a session that will never be run as finished. */
+    synchronized void skip() {
+        finished = true;
+    }
+
+    /** @return True once the session has finished, or was never run */
+    synchronized boolean isFinished() {
+        return finished;
+    }
+
+    /** Waits for the session to finish, if it has been started. */
+    void join() {
+        Thread current;
+        synchronized (this) {
+            current = thread;
+        }
+        if (current == null) {
+            return;
+        }
+        try {
+            current.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Runs the schedule of the session, and then disconnects its clients.
+     */
+    @Override
+    public void run() {
+        scheduler.execute(auctions);
+        LOGGER.info("Session " + id + " finished");
+
+        // No more clients are admitted from here on, so the clients can be
+        // shut down without missing any.
+
+        ClientHandler[] members;
+        synchronized (this) {
+            finished = true;
+            members = clients.toArray(new ClientHandler[0]);
+        }
+
+        // Shutdown the sockets, giving the final messages a moment to go out
+
+        for (ClientHandler client : members) {
+            client.flush(FLUSH_TIMEOUT);
+            LOGGER.info("Client " + client.getChannel().socket().getRemoteSocketAddress()
+                        + " outbound queue: " + client.getOutboundQueue());
+            client.close();
+        }
+
+        MetricsRegistry metrics = MetricsRegistry.getDefault();
+        metrics.unregister(scheduler.getMetrics());
+        for (AuctionBase auction : auctions.values()) {
+            metrics.unregister(auction.getMetrics());
+        }
+        for (ClientHandler client : members) {
+            metrics.unregister(client.getMetrics());
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package jack.server;
+
+/**
+ * The SlowConsumerPolicy decides what happens when a client does not read its
+ * messages as fast as they are sent and its outbound queue fills up. Whatever
+ * the policy, a client whose queue is full of messages that cannot be dropped
+ * is disconnected, so that one stalled client never holds up the auctions or
+ * the other clients.
+ */
+public enum SlowConsumerPolicy {
+
+    /**
+     * When the queue is full, the oldest queued status message is dropped to
+     * make room. Status messages are superseded by later ones, so a slow
+     * client only misses intermediate prices.
+     */
+    DROP_OLDEST_STATUS,
+
+    /**
+     * A status message replaces any status for the same auction that is still
+     * queued, so a slow client only ever has the latest status of each auction
+     * waiting. When the queue is full the oldest status is dropped as well.
+     */
+    COALESCE_STATUS,
+
+    /** When the queue is full the client is disconnected. */
+    DISCONNECT;
+
+    /**
+     * Returns the policy with the given name, ignoring case and allowing
+     * dashes in place of underscores. This is used to read the policy from
+     * the server configuration.
+     * @param name For example "coalesce-status"
+     * @return The matching policy
+     */
+    public static SlowConsumerPolicy fromString(String name) {
+        return valueOf(name.trim().toUpperCase().replace('-', '_'));
+    }
+}
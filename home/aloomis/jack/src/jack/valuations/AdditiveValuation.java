@@ -22,9 +22,10 @@ import java.io.BufferedReader;
 import java.io.DataInputStream;
 import java.io.FileInputStream;
 import java.io.InputStreamReader;
+import java.util.Arrays;
 import java.util.Hashtable;
 import java.util.List;
-import java.util.Random;
+import java.util.SplittableRandom;
 
 
 public class AdditiveValuation implements Valuation
@@ -32,6 +33,12 @@ public class AdditiveValuation implements Valuation
 	//Stores parameters from config file. "name_of_good" -> [params]
 	Hashtable<String, Hashtable<String, String>> params;
 
+	//The params parsed for generating scoring functions, or null until needed
+	private Bounds bounds = null;
+
+	//Scoring functions that have already been compiled
+	private final ScoringFunctionCache cache = new ScoringFunctionCache(this);
+
 	public AdditiveValuation(String configFile){
 		this.initialize(configFile);
 	}
@@ -56,6 +63,9 @@ public class AdditiveValuation implements Valuation
 	 */
 	public void initialize(String configFile) {
 		params = new Hashtable<String, Hashtable<String, String>>();
+		synchronized (this) {
+			bounds = null;
+		}
     	try {
     		DataInputStream in = new DataInputStream(new FileInputStream("src/valuations/"+configFile));
     		BufferedReader br = new BufferedReader(new InputStreamReader(in));
@@ -92,29 +102,83 @@ public class AdditiveValuation implements Valuation
 	 * the number of that good a client owns.
 	 */
 	public String generateScoringFunction() {
-		String scoreFunct = new String();
-		Random rand = new Random();
+		return generateScoringFunction(new SplittableRandom());
+	}
 
-		String[] goodTypes = new String[params.size()];
-		goodTypes = params.keySet().toArray(goodTypes);
-		int numGoodTypes = goodTypes.length;
+	/**
+	 * Generate a scoring function as generateScoringFunction() does, using
+	 * the given source of random numbers. The types of good are taken in
+	 * order of their names, so the same random numbers give the same string.
+	 * @param rand The source of random numbers.
+	 * @return A string which encodes an additive valuation function.
+	 */
+	public String generateScoringFunction(SplittableRandom rand) {
+		Bounds bounds = getBounds();
+		StringBuilder scoreFunct = new StringBuilder();
+		for (int i=0; i < bounds.goodTypes.length; i++) {
+			double linear = (rand.nextDouble()*(bounds.linearHigh[i]-bounds.linearLow[i]))
+							+ bounds.linearLow[i];
+			double exponent = (rand.nextDouble()*(bounds.exponentHigh[i]-bounds.exponentLow[i]))
+							  + bounds.exponentLow[i];
 
-                for (int i=0; i < numGoodTypes; i++) {
-                        String currGood = goodTypes[i];
-                        Hashtable<String, String> currParams = params.get(currGood);
+			//Append 3-tuple of "good,linear,exponent" to scoring function
+			if (i > 0) {
+				scoreFunct.append(' ');
+			}
+			scoreFunct.append(bounds.goodTypes[i]).append(',').append(linear)
+					  .append(',').append(exponent);
+		}
+		return scoreFunct.toString();
+	}
 
-                        double lo = Double.parseDouble(currParams.get("Linear_Low_Bound"));
-                        double hi = Double.parseDouble(currParams.get("Linear_High_Bound"));
-                        double linear = (rand.nextDouble()*(hi-lo)) + lo;
+	/**
+	 * Generate a number of scoring functions in parallel. The functions are
+	 * the same for a given seed, however many threads generate them.
+	 * @param seed The seed that determines every function.
+	 * @param count The number of functions to generate.
+	 * @return The functions, in order.
+	 */
+	public String[] generateScoringFunctions(long seed, int count) {
+		return ScoringFunctionGenerator.generate(this, seed, count);
+	}
 
-                        lo = Double.parseDouble(currParams.get("Exponent_Low_Bound"));
-                        hi = Double.parseDouble(currParams.get("Exponent_High_Bound"));
-                        double exponent = (rand.nextDouble()*(hi-lo)) + lo;
+	/**
+	 * @return The bounds from the config file, parsed the first time they
+	 * are needed.
+	 */
+	private synchronized Bounds getBounds() {
+		if (bounds == null) {
+			bounds = new Bounds(params);
+		}
+		return bounds;
+	}
 
-                        //Append 3-tuple of "good,linear,exponent" to scoring function
-                        scoreFunct = scoreFunct + " " + currGood + "," + linear + "," + exponent;
-                }
-                return scoreFunct.substring(1);//remove leading " "
+	/**
+	 * The bounds of the factors for each type of good, parsed from the config
+	 * file into arrays indexed in order of the names of the types.
+	 */
+	private static final class Bounds {
+		final String[] goodTypes;
+		final double[] linearLow;
+		final double[] linearHigh;
+		final double[] exponentLow;
+		final double[] exponentHigh;
+
+		Bounds(Hashtable<String, Hashtable<String, String>> params) {
+			goodTypes = params.keySet().toArray(new String[params.size()]);
+			Arrays.sort(goodTypes);
+			linearLow = new double[goodTypes.length];
+			linearHigh = new double[goodTypes.length];
+			exponentLow = new double[goodTypes.length];
+			exponentHigh = new double[goodTypes.length];
+			for (int i=0; i < goodTypes.length; i++) {
+				Hashtable<String, String> currParams = params.get(goodTypes[i]);
+				linearLow[i] = Double.parseDouble(currParams.get("Linear_Low_Bound"));
+				linearHigh[i] = Double.parseDouble(currParams.get("Linear_High_Bound"));
+				exponentLow[i] = Double.parseDouble(currParams.get("Exponent_Low_Bound"));
+				exponentHigh[i] = Double.parseDouble(currParams.get("Exponent_High_Bound"));
+			}
+		}
 	}
 
 
@@ -132,31 +196,185 @@ public class AdditiveValuation implements Valuation
 	    if (goods == null || scoreFunct == null) {
             return 0;
         }
-		double value = 0;
-		//Decode scoreFunct into 3-tuples, one for each good type
-		String[] functParts = scoreFunct.split(" ");
-
-		//count each type of good
-		Hashtable<String, Integer> goodCounts = new Hashtable<String, Integer>();
-		for (String good : goods) {
-			if (goodCounts.containsKey(good)) {
-				goodCounts.put(good, new Integer(goodCounts.get(good)+1));
-			} else {
-				goodCounts.put(good, new Integer(1));
+		return cache.get(scoreFunct).getScore(goods);
+	}
+
+	/**
+	 * Create an evaluator of marginal values, using the cached compiled form
+	 * of the scoring function.
+	 * @param scoreFunct String encoding a scoring function.
+	 * @param holdings The goods already held, or null for none.
+	 * @return A new evaluator.
+	 */
+	public MarginalEvaluator newEvaluator(String scoreFunct, List<String> holdings) {
+		return cache.get(scoreFunct).newEvaluator(holdings);
+	}
+
+	/**
+	 * Compile a string encoding an additive valuation function into arrays
+	 * of the linear and exponential factors for each type of good.
+	 * @param scoreFunct A string encoding the linear and exponential factors,
+	 * using the same convention as generateScoringFunction().
+	 * @return The compiled scoring function.
+	 */
+	public ScoringFunction compile(String scoreFunct) {
+		if (scoreFunct == null) {
+			throw new IllegalArgumentException("scoreFunct must not be null");
+		}
+		return new Compiled(scoreFunct);
+	}
+
+	/**
+	 * An additive valuation function compiled into arrays. Each type of good
+	 * is given an index, and the factors are kept in the order they appear in
+	 * the function, so that the components are summed in the same order.
+	 */
+	public static final class Compiled implements ScoringFunction {
+
+		//The index of each type of good named by the function
+		private final Hashtable<String, Integer> typeIndex = new Hashtable<String, Integer>();
+
+		//The type, linear constant, and exponential factor of each component
+		private final int[] types;
+		private final double[] linears;
+		private final double[] exponents;
+
+		//The components of each type, by type index
+		private final int[][] componentsOf;
+
+		Compiled(String scoreFunct) {
+			//Decode scoreFunct into 3-tuples, one for each good type
+			String[] functParts = scoreFunct.split(" ");
+			types = new int[functParts.length];
+			linears = new double[functParts.length];
+			exponents = new double[functParts.length];
+			for (int i=0; i < functParts.length; i++) {
+				String[] currParts = functParts[i].split(",");
+				if (currParts.length < 3) {
+					throw new IllegalArgumentException("malformed component: " + functParts[i]);
+				}
+				Integer type = typeIndex.get(currParts[0]);
+				if (type == null) {
+					type = typeIndex.size();
+					typeIndex.put(currParts[0], type);
+				}
+				types[i] = type;
+				try {
+					linears[i] = Double.parseDouble(currParts[1]);
+					exponents[i] = Double.parseDouble(currParts[2]);
+				} catch (NumberFormatException e) {
+					throw new IllegalArgumentException("malformed component: " + functParts[i]);
+				}
+			}
+
+			int[] componentCounts = new int[typeIndex.size()];
+			for (int type : types) {
+				componentCounts[type]++;
+			}
+			componentsOf = new int[typeIndex.size()][];
+			for (int type=0; type < componentsOf.length; type++) {
+				componentsOf[type] = new int[componentCounts[type]];
+				componentCounts[type] = 0;
+			}
+			for (int i=0; i < types.length; i++) {
+				componentsOf[types[i]][componentCounts[types[i]]++] = i;
 			}
 		}
 
-		//For each type of good, calculate the component score and add to sum
-		for (int i=0; i < functParts.length; i++) {
-			String[] currParts = functParts[i].split(",");
-			String currGood = currParts[0];
-			if (goodCounts.containsKey(currGood)){
-			    double linear = Double.parseDouble(currParts[1]);
-			    double exponent = Double.parseDouble(currParts[2]);
-			    value += linear * Math.pow(goodCounts.get(currGood),exponent);
+		/**
+		 * @return double Score calculated by applying linear and exponential
+		 * factors to each type of good and then summing the score components.
+		 */
+		public double getScore(List<String> goods) {
+			if (goods == null) {
+				return 0;
+			}
+			int[] goodCounts = countGoods(goods);
+
+			//For each type of good, calculate the component score and add to sum
+			double value = 0;
+			for (int i=0; i < types.length; i++) {
+				value += component(i, goodCounts[types[i]]);
+			}
+			return value;
+		}
+
+		public MarginalEvaluator newEvaluator(List<String> holdings) {
+			return new Evaluator(holdings);
+		}
+
+		/** count each type of good named by the function */
+		private int[] countGoods(List<String> goods) {
+			int[] goodCounts = new int[typeIndex.size()];
+			if (goods != null) {
+				for (String good : goods) {
+					Integer type = typeIndex.get(good);
+					if (type != null) {
+						goodCounts[type]++;
+					}
+				}
+			}
+			return goodCounts;
+		}
+
+		/** @return the score of component i when count goods of its type are held */
+		private double component(int i, int count) {
+			return count > 0 ? linears[i] * Math.pow(count, exponents[i]) : 0;
+		}
+
+		/** @return the change in score when a type goes from count to count+extra */
+		private double delta(int type, int count, int extra) {
+			double change = 0;
+			for (int i : componentsOf[type]) {
+				change += component(i, count + extra) - component(i, count);
+			}
+			return change;
+		}
+
+		/**
+		 * Keeps a count of each type of good held. The components of each type
+		 * are independent of the other types, so a marginal value only looks
+		 * at the components of the types being added.
+		 */
+		private final class Evaluator implements MarginalEvaluator {
+			private final int[] counts;
+			private double value;
+
+			Evaluator(List<String> holdings) {
+				counts = countGoods(holdings);
+				for (int i=0; i < types.length; i++) {
+					value += component(i, counts[types[i]]);
+				}
+			}
+
+			public double getValue() {
+				return value;
+			}
+
+			public double marginalValue(String good) {
+				Integer type = typeIndex.get(good);
+				return type == null ? 0 : delta(type, counts[type], 1);
+			}
+
+			public double marginalValue(List<String> bundle) {
+				int[] extra = countGoods(bundle);
+				double change = 0;
+				for (int type=0; type < extra.length; type++) {
+					if (extra[type] > 0) {
+						change += delta(type, counts[type], extra[type]);
+					}
+				}
+				return change;
+			}
+
+			public void add(String good) {
+				Integer type = typeIndex.get(good);
+				if (type != null) {
+					value += delta(type, counts[type], 1);
+					counts[type]++;
+				}
 			}
 		}
-		return value;
 	}
 
 }
@@ -0,0 +1,471 @@
+package jack.valuations;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A contract scoring function compiled for fast scoring. The contracts are
+ * parsed once into a vector of needed counts over an index of good types, and
+ * each score is found by solving the packing problem over those vectors rather
+ * than by enumerating every combination of contracts.
+ *
+ * A contract that the goods cannot satisfy on its own, or that is worth
+ * nothing, can never improve a score, so each solve starts by dropping those.
+ * The rest are solved by dynamic programming over the goods left after each
+ * choice, with the result for each (contract, goods left) pair memoized. Only
+ * the good types needed by the remaining contracts count towards the goods
+ * left, so the number of distinct states is usually small. If it cannot be
+ * counted in a long the solve falls back to a depth first branch and bound.
+ * Either way the value of the best combination is summed in contract order,
+ * as the enumeration did, so the two return the same score.
+ *
+ * A compiled function is immutable and may be shared between threads.
+ * ContractValuation.compile returns one of these.
+ */
+public final class ContractSolver implements ScoringFunction {
+
+	/** The most memo entries to hold in a dense table rather than a map */
+	private static final int DENSE_LIMIT = 1 << 18;
+
+	/** The index of each type of good named by a contract */
+	private final Map<String, Integer> typeIndex;
+
+	/** The number of each type of good needed by each contract */
+	private final int[][] needs;
+
+	/** The value of fulfilling each contract */
+	private final double[] values;
+
+	private ContractSolver(Map<String, Integer> typeIndex, int[][] needs, double[] values) {
+		this.typeIndex = typeIndex;
+		this.needs = needs;
+		this.values = values;
+	}
+
+	/**
+	 * Compiles a string encoding one or more contracts, using the convention of
+	 * ContractValuation.generateScoringFunction().
+	 * @param scoreFunct String encoding the contracts.
+	 * @return The compiled contracts.
+	 * @throws IllegalArgumentException If a contract is malformed or needs a
+	 * 	negative number of a good.
+	 */
+	public static ContractSolver compile(String scoreFunct) {
+		if (scoreFunct == null) {
+			throw new IllegalArgumentException("scoreFunct must not be null");
+		}
+		String[] contracts = scoreFunct.split(" ");
+		Map<String, Integer> types = new HashMap<String, Integer>();
+		double[] values = new double[contracts.length];
+		int[][] typeNeeds = new int[contracts.length][];
+
+		for (int c = 0; c < contracts.length; c++) {
+			String[] parts = contracts[c].split("[,:]");//type0 need0 type1 need1... value
+			if (parts.length < 3 || parts.length % 2 == 0) {
+				throw new IllegalArgumentException("malformed contract: " + contracts[c]);
+			}
+			try {
+				values[c] = Double.parseDouble(parts[parts.length-1]);
+				int[] contract = new int[parts.length - 1];
+				for (int k = 0; k+1 < parts.length; k += 2) {
+					Integer type = types.get(parts[k]);
+					if (type == null) {
+						type = types.size();
+						types.put(parts[k], type);
+					}
+					int need = Integer.parseInt(parts[k+1]);
+					if (need < 0) {
+						throw new IllegalArgumentException("negative need in contract: "
+															+ contracts[c]);
+					}
+					contract[k] = type;
+					contract[k+1] = need;
+				}
+				typeNeeds[c] = contract;
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("malformed contract: " + contracts[c]);
+			}
+		}
+
+		//Now that every type is known, expand each contract into a vector of
+		//needs indexed by type. A type named twice by a contract is summed.
+		int[][] needs = new int[contracts.length][types.size()];
+		for (int c = 0; c < contracts.length; c++) {
+			int[] contract = typeNeeds[c];
+			for (int k = 0; k+1 < contract.length; k += 2) {
+				needs[c][contract[k]] += contract[k+1];
+			}
+		}
+
+		return new ContractSolver(types, needs, values);
+	}
+
+	/**
+	 * Returns the highest total value of any combination of contracts that
+	 * can be satisfied together by the goods. This is the same as solve.
+	 * @param goods A list of goods that will be used to satisfy contracts.
+	 * @return The best score, which is 0 if no contract can be satisfied.
+	 */
+	public double getScore(List<String> goods) {
+		return solve(goods);
+	}
+
+	/** @return The number of contracts. */
+	public int getContractCount() {
+		return values.length;
+	}
+
+	/**
+	 * Returns the highest total value of any combination of contracts that
+	 * can be satisfied together by the goods.
+	 * @param goods A list of goods that will be used to satisfy contracts.
+	 * @return The best score, which is 0 if no contract can be satisfied.
+	 */
+	public double solve(List<String> goods) {
+		if (goods == null) {
+			return 0;
+		}
+		int[] owned = new int[typeIndex.size()];
+		for (String good : goods) {
+			Integer type = typeIndex.get(good);
+			if (type != null) {
+				owned[type]++;
+			}
+		}
+		return solve(owned);
+	}
+
+	/**
+	 * Returns the highest total value of any combination of contracts that
+	 * can be satisfied together by the given counts of each type of good.
+	 * @param owned The number owned of each type, indexed as by typeIndexOf.
+	 * @return The best score, which is 0 if no contract can be satisfied.
+	 */
+	public double solve(int[] owned) {
+		if (owned.length != typeIndex.size()) {
+			throw new IllegalArgumentException("expected " + typeIndex.size() + " types");
+		}
+		return solve(owned, 0);
+	}
+
+	/**
+	 * Solves for the given counts, knowing that a combination worth at least
+	 * lowerBound can be satisfied. This is used to warm start a solve from
+	 * the solution for a subset of the goods, which is still satisfiable.
+	 * The solve stops at once if the contracts that fit cannot beat it.
+	 */
+	private double solve(int[] owned, double lowerBound) {
+
+		//Keep only the contracts that could be part of a better score, and
+		//only the types that those contracts need.
+		int[] kept = new int[values.length];
+		int keptCount = 0;
+		boolean[] needed = new boolean[owned.length];
+		for (int c = 0; c < values.length; c++) {
+			if (values[c] > 0 && fits(needs[c], owned)) {
+				kept[keptCount++] = c;
+				for (int t = 0; t < owned.length; t++) {
+					needed[t] |= needs[c][t] > 0;
+				}
+			}
+		}
+		double upperBound = 0;
+		for (int i = 0; i < keptCount; i++) {
+			upperBound += values[kept[i]];
+		}
+		if (keptCount == 0 || upperBound <= lowerBound) {
+			return lowerBound;
+		}
+
+		int[] types = new int[owned.length];
+		int typeCount = 0;
+		for (int t = 0; t < owned.length; t++) {
+			if (needed[t]) {
+				types[typeCount++] = t;
+			}
+		}
+
+		Search search = new Search(keptCount, typeCount);
+		for (int i = 0; i < keptCount; i++) {
+			search.values[i] = values[kept[i]];
+			for (int j = 0; j < typeCount; j++) {
+				search.needs[i][j] = needs[kept[i]][types[j]];
+			}
+		}
+		for (int j = 0; j < typeCount; j++) {
+			search.left[j] = owned[types[j]];
+		}
+		return Math.max(lowerBound, search.run(lowerBound));
+	}
+
+	public MarginalEvaluator newEvaluator(List<String> holdings) {
+		return new Evaluator(holdings);
+	}
+
+	/**
+	 * @param type The name of a type of good.
+	 * @return The index of the type, or -1 if no contract names it.
+	 */
+	public int typeIndexOf(String type) {
+		Integer index = typeIndex.get(type);
+		return index == null ? -1 : index;
+	}
+
+	/** @return true if every need is covered by what is owned. */
+	private static boolean fits(int[] need, int[] owned) {
+		for (int t = 0; t < need.length; t++) {
+			if (need[t] > owned[t]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Keeps the count of each type of good held and the best value for those
+	 * counts. Adding goods never makes a combination of contracts infeasible,
+	 * so the current best value is a lower bound for every marginal solve,
+	 * which starts from it. The marginal value of a single good is kept for
+	 * each type until the holdings change.
+	 */
+	private final class Evaluator implements MarginalEvaluator {
+		private final int[] owned;
+		private final double[] marginals;
+		private double value;
+
+		Evaluator(List<String> holdings) {
+			owned = new int[typeIndex.size()];
+			if (holdings != null) {
+				for (String good : holdings) {
+					Integer type = typeIndex.get(good);
+					if (type != null) {
+						owned[type]++;
+					}
+				}
+			}
+			marginals = new double[owned.length];
+			Arrays.fill(marginals, Double.NaN);
+			value = solve(owned, 0);
+		}
+
+		public double getValue() {
+			return value;
+		}
+
+		public double marginalValue(String good) {
+			Integer type = typeIndex.get(good);
+			if (type == null) {
+				return 0;
+			}
+			if (Double.isNaN(marginals[type])) {
+				owned[type]++;
+				marginals[type] = solve(owned, value) - value;
+				owned[type]--;
+			}
+			return marginals[type];
+		}
+
+		public double marginalValue(List<String> bundle) {
+			if (bundle == null) {
+				return 0;
+			}
+			int[] counts = owned.clone();
+			for (String good : bundle) {
+				Integer type = typeIndex.get(good);
+				if (type != null) {
+					counts[type]++;
+				}
+			}
+			return solve(counts, value) - value;
+		}
+
+		public void add(String good) {
+			Integer type = typeIndex.get(good);
+			if (type != null) {
+				owned[type]++;
+				value = solve(owned, value);
+				Arrays.fill(marginals, Double.NaN);
+			}
+		}
+	}
+
+	/**
+	 * The state of a single solve, over the contracts and types that survived
+	 * the initial filtering.
+	 */
+	private static final class Search {
+		final double[] values;
+		final int[][] needs;
+
+		/** The goods of each type that are not yet used */
+		final int[] left;
+
+		/** The weight of each type in the code for the goods left */
+		final long[] weights;
+
+		/** The amount each contract subtracts from the code when taken */
+		final long[] needCodes;
+
+		/** Memo of best values for the dense and sparse cases */
+		double[] table;
+		Map<Long, Double> map;
+		long states;
+
+		/** The best value found by branch and bound, and its contracts */
+		double bestValue;
+		boolean[] bestTaken;
+		boolean[] taken;
+		double[] suffixValues;
+
+		Search(int contractCount, int typeCount) {
+			values = new double[contractCount];
+			needs = new int[contractCount][typeCount];
+			left = new int[typeCount];
+			weights = new long[typeCount];
+			needCodes = new long[contractCount];
+		}
+
+		/**
+		 * Solves the problem and returns the best value, which is at least
+		 * lowerBound.
+		 */
+		double run(double lowerBound) {
+
+			//The goods left are coded in a mixed radix number, so that taking a
+			//contract subtracts a constant from the code. If the number of
+			//codes overflows a long, memoizing is not possible.
+			states = 1;
+			for (int j = 0; j < left.length; j++) {
+				weights[j] = states;
+				long radix = left[j] + 1;
+				if (states > Long.MAX_VALUE / radix / (values.length + 1)) {
+					return branchAndBound(lowerBound);
+				}
+				states *= radix;
+			}
+			long code = 0;
+			for (int j = 0; j < left.length; j++) {
+				code += left[j] * weights[j];
+			}
+			for (int i = 0; i < values.length; i++) {
+				for (int j = 0; j < left.length; j++) {
+					needCodes[i] += needs[i][j] * weights[j];
+				}
+			}
+
+			if (states * values.length <= DENSE_LIMIT) {
+				table = new double[(int)(states * values.length)];
+				Arrays.fill(table, Double.NaN);
+			} else {
+				map = new HashMap<Long, Double>();
+			}
+			best(0, code);
+
+			//Walk the memo to find the contracts in the best combination, and
+			//sum their values in contract order.
+			double total = 0;
+			for (int i = 0; i < values.length; i++) {
+				if (fits(needs[i], left)) {
+					double take = values[i] + best(i + 1, code - needCodes[i]);
+					if (take > best(i + 1, code)) {
+						total += values[i];
+						code -= needCodes[i];
+						subtract(i);
+					}
+				}
+			}
+			return total;
+		}
+
+		/** @return The best value of contracts i and on with the goods left. */
+		double best(int i, long code) {
+			if (i == values.length) {
+				return 0;
+			}
+			long key = i * states + code;
+			if (table != null) {
+				if (!Double.isNaN(table[(int)key])) {
+					return table[(int)key];
+				}
+			} else {
+				Double memo = map.get(key);
+				if (memo != null) {
+					return memo;
+				}
+			}
+
+			double result = best(i + 1, code);
+			if (fits(needs[i], left)) {
+				subtract(i);
+				result = Math.max(result, values[i] + best(i + 1, code - needCodes[i]));
+				add(i);
+			}
+
+			if (table != null) {
+				table[(int)key] = result;
+			} else {
+				map.put(key, result);
+			}
+			return result;
+		}
+
+		/**
+		 * Searches every combination depth first, abandoning a branch once the
+		 * value of every remaining contract could not beat the best found. The
+		 * search starts with lowerBound as the best found.
+		 */
+		double branchAndBound(double lowerBound) {
+			suffixValues = new double[values.length + 1];
+			for (int i = values.length - 1; i >= 0; i--) {
+				suffixValues[i] = suffixValues[i + 1] + values[i];
+			}
+			taken = new boolean[values.length];
+			bestTaken = new boolean[values.length];
+			bestValue = lowerBound;
+			search(0, 0);
+			if (bestValue == lowerBound) {
+				return lowerBound;
+			}
+
+			double total = 0;
+			for (int i = 0; i < values.length; i++) {
+				if (bestTaken[i]) {
+					total += values[i];
+				}
+			}
+			return total;
+		}
+
+		private void search(int i, double value) {
+			if (value > bestValue) {
+				bestValue = value;
+				System.arraycopy(taken, 0, bestTaken, 0, taken.length);
+			}
+			if (i == values.length || value + suffixValues[i] <= bestValue) {
+				return;
+			}
+			if (fits(needs[i], left)) {
+				subtract(i);
+				taken[i] = true;
+				search(i + 1, value + values[i]);
+				taken[i] = false;
+				add(i);
+			}
+			search(i + 1, value);
+		}
+
+		private void subtract(int i) {
+			for (int j = 0; j < left.length; j++) {
+				left[j] -= needs[i][j];
+			}
+		}
+
+		private void add(int i) {
+			for (int j = 0; j < left.length; j++) {
+				left[j] += needs[i][j];
+			}
+		}
+	}
+}
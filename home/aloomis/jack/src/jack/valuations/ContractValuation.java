@@ -21,10 +21,10 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.util.Enumeration;
+import java.util.Arrays;
 import java.util.Hashtable;
 import java.util.List;
-import java.util.Random;
+import java.util.SplittableRandom;
 import java.util.Vector;
 import java.util.regex.*;
 
@@ -34,6 +34,12 @@ public class ContractValuation implements Valuation {
 	Hashtable<String, Hashtable<String, String>> params;
 	int contractsPerClient = 1;
 
+	//The params parsed for generating scoring functions, or null until needed
+	private Bounds bounds = null;
+
+	//Scoring functions that have already been compiled
+	private final ScoringFunctionCache cache = new ScoringFunctionCache(this);
+
 	public ContractValuation(String configFile){
 		this.initialize(configFile);
 	}
@@ -56,6 +62,9 @@ public class ContractValuation implements Valuation {
 	public void initialize(String configFile)
 	{
 		params = new Hashtable<String, Hashtable<String, String>>();
+		synchronized (this) {
+			bounds = null;
+		}
     	try {
     		DataInputStream in = new DataInputStream(new FileInputStream("src/valuations/"+configFile));
     		BufferedReader br = new BufferedReader(new InputStreamReader(in));
@@ -109,35 +118,97 @@ public class ContractValuation implements Valuation {
 	 */
 	public String generateScoringFunction()
 	{
-		String contracts = new String();
-		Random rand = new Random();
-    	for (int i=0; i < contractsPerClient; i++) {
-    		String currContract = "";
-    		double val = 0;//as required goods are added, add to value of contract
-
-    		//for each good type, add requirement to contract
-    		Enumeration<String> keys = params.keys();
-    		while (keys.hasMoreElements()) {
-    			String currType = keys.nextElement();
-    			Hashtable<String, String> typeParams = params.get(currType);
-
-    			//Pick number of this good needed and the marginal value to contract
-    			int numNeeded = rand.nextInt(Integer.parseInt(typeParams.get("Need_High_Bound"))-
-    							Integer.parseInt(typeParams.get("Need_Low_Bound"))+1)+
-    							Integer.parseInt(typeParams.get("Need_Low_Bound"));
-    			double currVal = (rand.nextDouble()*
-    					(Double.parseDouble(typeParams.get("Value_High_Bound"))-
-						Double.parseDouble(typeParams.get("Value_Low_Bound")))) +
-						Double.parseDouble(typeParams.get("Value_Low_Bound"));
-
-    			currContract = currContract + "," + currType + ":" + numNeeded;
-    			val += numNeeded * currVal;//contract value is aggregation of marginal values
-    		}
-    		//Append value for fulfilling currContract, and remove leading ",".
-    		//Add currContract to output string containing all contracts.
-    		contracts = contracts + " " + currContract.substring(1)  + "," + val;
-    	}
-    	return contracts.substring(1);//remove leading " "
+		return generateScoringFunction(new SplittableRandom());
+	}
+
+	/**
+	 * Generate contracts as generateScoringFunction() does, using the given
+	 * source of random numbers. The types of good are taken in order of
+	 * their names, so the same random numbers give the same string.
+	 * @param rand The source of random numbers.
+	 * @return A string which encodes contractsPerClient contracts.
+	 */
+	public String generateScoringFunction(SplittableRandom rand)
+	{
+		Bounds bounds = getBounds();
+		if (bounds.goodTypes.length == 0) {
+			throw new IllegalStateException("no types of good are configured");
+		}
+		StringBuilder contracts = new StringBuilder();
+		for (int i=0; i < contractsPerClient; i++) {
+			if (i > 0) {
+				contracts.append(' ');
+			}
+			double val = 0;//as required goods are added, add to value of contract
+
+			//for each good type, add requirement to contract
+			for (int j=0; j < bounds.goodTypes.length; j++) {
+				//Pick number of this good needed and the marginal value to contract
+				int numNeeded = rand.nextInt(bounds.needHigh[j]-bounds.needLow[j]+1)
+								+ bounds.needLow[j];
+				double currVal = (rand.nextDouble()*(bounds.valueHigh[j]-bounds.valueLow[j]))
+								 + bounds.valueLow[j];
+
+				if (j > 0) {
+					contracts.append(',');
+				}
+				contracts.append(bounds.goodTypes[j]).append(':').append(numNeeded);
+				val += numNeeded * currVal;//contract value is aggregation of marginal values
+			}
+			//Append value for fulfilling the contract
+			contracts.append(',').append(val);
+		}
+		return contracts.toString();
+	}
+
+	/**
+	 * Generate a number of scoring functions in parallel. The functions are
+	 * the same for a given seed, however many threads generate them.
+	 * @param seed The seed that determines every function.
+	 * @param count The number of functions to generate.
+	 * @return The functions, in order.
+	 */
+	public String[] generateScoringFunctions(long seed, int count) {
+		return ScoringFunctionGenerator.generate(this, seed, count);
+	}
+
+	/**
+	 * @return The bounds from the config file, parsed the first time they
+	 * are needed.
+	 */
+	private synchronized Bounds getBounds() {
+		if (bounds == null) {
+			bounds = new Bounds(params);
+		}
+		return bounds;
+	}
+
+	/**
+	 * The bounds of the need and value of each type of good, parsed from the
+	 * config file into arrays indexed in order of the names of the types.
+	 */
+	private static final class Bounds {
+		final String[] goodTypes;
+		final int[] needLow;
+		final int[] needHigh;
+		final double[] valueLow;
+		final double[] valueHigh;
+
+		Bounds(Hashtable<String, Hashtable<String, String>> params) {
+			goodTypes = params.keySet().toArray(new String[params.size()]);
+			Arrays.sort(goodTypes);
+			needLow = new int[goodTypes.length];
+			needHigh = new int[goodTypes.length];
+			valueLow = new double[goodTypes.length];
+			valueHigh = new double[goodTypes.length];
+			for (int i=0; i < goodTypes.length; i++) {
+				Hashtable<String, String> typeParams = params.get(goodTypes[i]);
+				needLow[i] = Integer.parseInt(typeParams.get("Need_Low_Bound"));
+				needHigh[i] = Integer.parseInt(typeParams.get("Need_High_Bound"));
+				valueLow[i] = Double.parseDouble(typeParams.get("Value_Low_Bound"));
+				valueHigh[i] = Double.parseDouble(typeParams.get("Value_High_Bound"));
+			}
+		}
 	}
 
 	/**
@@ -152,10 +223,46 @@ public class ContractValuation implements Valuation {
 	 * @return double score achieved by solving the optimization problem of
 	 * 	assigning goods to satisfy contracts to achieve the highest score.
 	 */
-	@SuppressWarnings("unchecked")
 	public double getScore(String scoreFunct, List<String> goods) {
 	    if (goods == null || scoreFunct == null) {
             return 0;
+        }
+		return cache.get(scoreFunct).getScore(goods);
+	}
+
+	/**
+	 * Create an evaluator of marginal values, using the cached compiled form
+	 * of the scoring function.
+	 * @param scoreFunct String encoding a scoring function.
+	 * @param holdings The goods already held, or null for none.
+	 * @return A new evaluator.
+	 */
+	public MarginalEvaluator newEvaluator(String scoreFunct, List<String> holdings) {
+		return cache.get(scoreFunct).newEvaluator(holdings);
+	}
+
+	/**
+	 * Compile a string encoding one or more contracts into a ContractSolver.
+	 * @param scoreFunct A string encoding one or more contract, using the
+	 * 	same convention as ContractValuation.generateScoringFunction().
+	 * @return The compiled contracts.
+	 */
+	public ScoringFunction compile(String scoreFunct) {
+		return ContractSolver.compile(scoreFunct);
+	}
+
+	/**
+	 * Computes the same score as getScore by trying every combination of
+	 * contracts. This takes time exponential in the number of contracts and
+	 * is kept only as a reference for testing and benchmarking ContractSolver.
+	 * @param scoreFunct A string encoding one or more contract.
+	 * @param goods A list of goods that will be used to satisfy contracts.
+	 * @return double score achieved by the best combination of contracts.
+	 */
+	@SuppressWarnings("unchecked")
+	public static double enumerateScore(String scoreFunct, List<String> goods) {
+	    if (goods == null || scoreFunct == null) {
+            return 0;
         }
 		double maxValue = Double.NEGATIVE_INFINITY;
 		int i, j, k, l;//declare variables used in for-loops only once
@@ -0,0 +1,39 @@
+/**
+ * Answers what a bidder's score would become if it also won one or more goods,
+ * given the goods it already holds. An evaluator is created from a compiled
+ * ScoringFunction and keeps the holdings in a form that lets each question be
+ * answered without rescoring the holdings from scratch. Values computed
+ * incrementally may differ from a full rescore in the last few bits.
+ * An evaluator is not thread safe.
+ */
+
+package jack.valuations;
+
+import java.util.List;
+
+public interface MarginalEvaluator {
+
+	/**
+	 * @return the score of the current holdings.
+	 */
+	double getValue();
+
+	/**
+	 * @param good A good that is not yet held.
+	 * @return the increase in score from also holding the good.
+	 */
+	double marginalValue(String good);
+
+	/**
+	 * @param bundle Goods that are not yet held.
+	 * @return the increase in score from also holding every good in bundle.
+	 */
+	double marginalValue(List<String> bundle);
+
+	/**
+	 * Adds a good to the holdings, e.g. once it has been won.
+	 * @param good The good to add.
+	 */
+	void add(String good);
+
+}
@@ -24,13 +24,19 @@ import java.io.InputStreamReader;
 import java.util.Arrays;
 import java.util.Hashtable;
 import java.util.List;
-import java.util.Random;
+import java.util.SplittableRandom;
 
 public class ScheduleValuation implements Valuation {
 
 	//Stores parameters from config file. "Name_Of_Param" -> "Param"
 	Hashtable<String, String> params;
 
+	//The params parsed for generating scoring functions, or null until needed
+	private Bounds bounds = null;
+
+	//Scoring functions that have already been compiled
+	private final ScoringFunctionCache cache = new ScoringFunctionCache(this);
+
 	public ScheduleValuation(String configFile){
 		this.initialize(configFile);
 	}
@@ -43,6 +49,9 @@ public class ScheduleValuation implements Valuation {
 	 */
 	public void initialize(String configFile) {
 		params = new Hashtable<String, String>();
+		synchronized (this) {
+			bounds = null;
+		}
     	try {
     		DataInputStream in = new DataInputStream(new FileInputStream("src/valuations/"+configFile));
     		BufferedReader br = new BufferedReader(new InputStreamReader(in));
@@ -80,49 +89,103 @@ public class ScheduleValuation implements Valuation {
 	 * the required number of goods by that time-slot.
 	 */
 	public String generateScoringFunction() {
-		String schedule;
-    	Random rand = new Random();
-
-    	//Generate a number of goods needed using param boundaries
-    	int lo = Integer.parseInt(params.get("Need_Low_Bound"));
-    	int hi = Integer.parseInt(params.get("Need_High_Bound"));
-    	int numNeed = rand.nextInt(hi-lo+1) + lo;
-
-    	//Generate a random deadline using param boundaries
-    	lo = Integer.parseInt(params.get("Deadline_Low_Bound"));
-    	hi = Integer.parseInt(params.get("Deadline_High_Bound"));
-    	//deadline should never be less than number of goods needed (else impossible)
-    	int deadline = Math.max(numNeed, rand.nextInt(hi-lo+1)+lo);
-
-    	//Generate valuations from distribution with param boundaries
-    	double loD = Double.parseDouble(params.get("Value_High_Bound"));
-    	double hiD = Double.parseDouble(params.get("Value_Low_Bound"));
-    	double[] vals = new double[Integer.parseInt(params.get("Number_Of_Goods"))];
-    	for (int i=0; i < vals.length; i++) {
-    		vals[i] = (rand.nextDouble()*(hiD-loD)) + loD;
-    	}
-    	//sort valuations so that highest is first (0th is highest)
-    	Arrays.sort(vals);//smallest payoffs first... reverse array order
+		return generateScoringFunction(new SplittableRandom());
+	}
+
+	/**
+	 * Generate a schedule as generateScoringFunction() does, using the given
+	 * source of random numbers.
+	 * @param rand The source of random numbers.
+	 * @return A string which encodes a schedule-based valuation function.
+	 */
+	public String generateScoringFunction(SplittableRandom rand) {
+		Bounds bounds = getBounds();
+
+		//Generate a number of goods needed using param boundaries
+		int numNeed = rand.nextInt(bounds.needHigh-bounds.needLow+1) + bounds.needLow;
+
+		//Generate a random deadline using param boundaries
+		//deadline should never be less than number of goods needed (else impossible)
+		int deadline = Math.max(numNeed,
+				rand.nextInt(bounds.deadlineHigh-bounds.deadlineLow+1) + bounds.deadlineLow);
+
+		//Generate valuations from distribution with param boundaries
+		double loD = bounds.valueHigh;
+		double hiD = bounds.valueLow;
+		double[] vals = new double[bounds.numberOfGoods];
+		for (int i=0; i < vals.length; i++) {
+			vals[i] = (rand.nextDouble()*(hiD-loD)) + loD;
+		}
+		//sort valuations so that highest is first (0th is highest)
+		Arrays.sort(vals);//smallest payoffs first... reverse array order
 		for (int i=0; i < vals.length/2; i++) {
 			double tmp = vals[i];
 			vals[i] = vals[ vals.length-1-i ];
 			vals[ vals.length-1-i ] = tmp;
 		}
-    	//any valuations greater than the deadline are set to 0
+		//any valuations greater than the deadline are set to 0
 		for (int i=deadline; i<vals.length; i++) {
 			vals[i] = 0;
 		}
 
-    	//Construct the string encoding the valuation function
-		schedule = new String("Number_Of_Goods:" + params.get("Number_Of_Goods") +
-							  " Need:" + numNeed +
-							  " Deadline: " + deadline +
-							  " Valuations:");
-		String valuations = "";
-    	for(int j=0; j < vals.length; j++)
-    		valuations = valuations + "," + vals[j];
+		//Construct the string encoding the valuation function
+		StringBuilder schedule = new StringBuilder();
+		schedule.append("Number_Of_Goods:").append(bounds.numberOfGoodsText)
+				.append(" Need:").append(numNeed)
+				.append(" Deadline: ").append(deadline)
+				.append(" Valuations:");
+		for (int j=0; j < vals.length; j++) {
+			if (j > 0) {
+				schedule.append(',');
+			}
+			schedule.append(vals[j]);
+		}
+		return schedule.toString();
+	}
 
-    	return schedule + valuations.substring(1);//remove leading ","
+	/**
+	 * Generate a number of scoring functions in parallel. The functions are
+	 * the same for a given seed, however many threads generate them.
+	 * @param seed The seed that determines every function.
+	 * @param count The number of functions to generate.
+	 * @return The functions, in order.
+	 */
+	public String[] generateScoringFunctions(long seed, int count) {
+		return ScoringFunctionGenerator.generate(this, seed, count);
+	}
+
+	/**
+	 * @return The bounds from the config file, parsed the first time they
+	 * are needed.
+	 */
+	private synchronized Bounds getBounds() {
+		if (bounds == null) {
+			bounds = new Bounds(params);
+		}
+		return bounds;
+	}
+
+	/** The bounds for generating schedules, parsed from the config file. */
+	private static final class Bounds {
+		final String numberOfGoodsText;
+		final int numberOfGoods;
+		final int needLow;
+		final int needHigh;
+		final int deadlineLow;
+		final int deadlineHigh;
+		final double valueLow;
+		final double valueHigh;
+
+		Bounds(Hashtable<String, String> params) {
+			numberOfGoodsText = params.get("Number_Of_Goods");
+			numberOfGoods = Integer.parseInt(numberOfGoodsText);
+			needLow = Integer.parseInt(params.get("Need_Low_Bound"));
+			needHigh = Integer.parseInt(params.get("Need_High_Bound"));
+			deadlineLow = Integer.parseInt(params.get("Deadline_Low_Bound"));
+			deadlineHigh = Integer.parseInt(params.get("Deadline_High_Bound"));
+			valueLow = Double.parseDouble(params.get("Value_Low_Bound"));
+			valueHigh = Double.parseDouble(params.get("Value_High_Bound"));
+		}
 	}
 
 
@@ -139,40 +202,203 @@ public class ScheduleValuation implements Valuation {
 	    if (goods == null || scoreFunct == null) {
 	        return 0;
 	    }
-		String[] scoreFunctParts = scoreFunct.split("\\s+");
-		Hashtable<String, String> functParams = new Hashtable<String, String>();
-		for (int i=0; i < scoreFunctParts.length; i++) {
-			String[] parts = scoreFunctParts[i].split(":");
-			functParams.put(parts[0], parts[1]);
+		return cache.get(scoreFunct).getScore(goods);
+	}
+
+	/**
+	 * Create an evaluator of marginal values, using the cached compiled form
+	 * of the scoring function.
+	 * @param scoreFunct String encoding a scoring function.
+	 * @param holdings The goods already held, or null for none.
+	 * @return A new evaluator.
+	 */
+	public MarginalEvaluator newEvaluator(String scoreFunct, List<String> holdings) {
+		return cache.get(scoreFunct).newEvaluator(holdings);
+	}
+
+	/**
+	 * Compile a string encoding a schedule valuation function into the number
+	 * of goods needed and an array of payoffs.
+	 * @param scoreFunct A string encoding the parameters of the schedule-based
+	 * valuation function, using the same convention as
+	 * generateScoringFunction().
+	 * @return The compiled scoring function.
+	 */
+	public ScoringFunction compile(String scoreFunct) {
+		if (scoreFunct == null) {
+			throw new IllegalArgumentException("scoreFunct must not be null");
 		}
+		return new Compiled(scoreFunct);
+	}
+
+	/**
+	 * A schedule valuation function compiled into the number of goods needed
+	 * and the payoff for meeting that need at each point in time.
+	 */
+	public static final class Compiled implements ScoringFunction {
+
+		//The number of goods needed before there is any payoff
+		private final int numNeed;
+
+		//The payoff for meeting the need with each good
+		private final double[] payoffs;
+
+		Compiled(String scoreFunct) {
+			String[] scoreFunctParts = scoreFunct.split("\\s+");
+			Hashtable<String, String> functParams = new Hashtable<String, String>();
+			for (int i=0; i < scoreFunctParts.length; i++) {
+				String[] parts = scoreFunctParts[i].split(":");
+				//"Deadline: N" is written with a space, which leaves a key
+				//without a value. Only Need and Valuations are used here.
+				if (parts.length > 1) {
+					functParams.put(parts[0], parts[1]);
+				}
+			}
+			if (!functParams.containsKey("Need") || !functParams.containsKey("Valuations")) {
+				throw new IllegalArgumentException("missing Need or Valuations");
+			}
 
-		int numNeed = Integer.parseInt(functParams.get("Need"));
-		if (numNeed > goods.size() ) {
-			return 0;//agent didn't have enough goods, so no reward
+			try {
+				numNeed = Integer.parseInt(functParams.get("Need"));
+
+				//build an array of payoffs based on the values after "Valuations"
+				String[] valueStrings = functParams.get("Valuations").split(",");
+				payoffs = new double[valueStrings.length];
+				for (int i=0; i < valueStrings.length; i++) {
+					payoffs[i] = Double.parseDouble(valueStrings[i]);
+				}
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("malformed function: " + e.getMessage());
+			}
 		}
 
-		//build an array of payoffs based on the values after "Valuations"
-		String[] valueStrings = functParams.get("Valuations").split(",");
-		double[] payoffs = new double[valueStrings.length];
-		for (int i=0; i < valueStrings.length; i++) {
-			payoffs[i] = Double.parseDouble(valueStrings[i]);
+		/**
+		 * @return double Score calculated by applying valuation function to goods.
+		 */
+		public double getScore(List<String> goods) {
+			if (goods == null) {
+				return 0;
+			}
+			if (numNeed > goods.size() ) {
+				return 0;//agent didn't have enough goods, so no reward
+			}
+
+			//"Goods" are string representations of integers. Build int[] of their int values
+			int[] goodsOwned = new int[goods.size()];
+			for (int i=0; i < goods.size(); i++) {
+				goodsOwned[i] = Integer.parseInt(goods.get(i));
+			}
+			Arrays.sort(goodsOwned);//smallest (earliest) goods first.
+
+			//get payoff at earliest opportunity
+			if (numNeed < 1) {
+				return 0;
+			}
+			//numNeed-1 is index at which min req is met
+			return payoff(goodsOwned[numNeed-1]);
 		}
 
-		//"Goods" are string representations of integers. Build int[] of their int values
-		int[] goodsOwned = new int[goods.size()];
-		for (int i=0; i < goods.size(); i++) {
-			goodsOwned[i] = Integer.parseInt(goods.get(i));
+		public MarginalEvaluator newEvaluator(List<String> holdings) {
+			return new Evaluator(holdings);
 		}
-		Arrays.sort(goodsOwned);//smallest (earliest) goods first.
 
-		//get payoff at earliest opportunity
-		if (numNeed < 1) {
-			return 0;
-		} else if (goodsOwned[numNeed-1]  < payoffs.length) {
-			//numNeed-1 is index at which min req is met
-			return payoffs[goodsOwned[numNeed-1]];
+		/** @return the payoff for meeting the need with the given good */
+		private double payoff(int good) {
+			return good < payoffs.length ? payoffs[good] : 0;
+		}
+
+		/**
+		 * The score only depends on the numNeed-th earliest good held, so the
+		 * evaluator keeps the numNeed earliest goods in a max heap. The top of
+		 * the heap is the good that meets the need, and adding one more good
+		 * can only replace it with the larger of the new good and the second
+		 * largest in the heap, which is one of the top's children.
+		 */
+		private final class Evaluator implements MarginalEvaluator {
+
+			//The numNeed earliest goods, in a max heap
+			private final int[] earliest;
+			private int heapSize = 0;
+
+			Evaluator(List<String> holdings) {
+				earliest = new int[Math.max(numNeed, 0)];
+				if (holdings != null) {
+					for (String good : holdings) {
+						add(good);
+					}
+				}
+			}
+
+			public double getValue() {
+				return heapSize == numNeed && numNeed > 0 ? payoff(earliest[0]) : 0;
+			}
+
+			public double marginalValue(String good) {
+				int g = Integer.parseInt(good);
+				if (numNeed < 1 || heapSize + 1 < numNeed) {
+					return 0;
+				}
+				int meets;
+				if (heapSize < numNeed) {
+					meets = heapSize == 0 ? g : Math.max(earliest[0], g);
+				} else if (g >= earliest[0]) {
+					return 0;
+				} else {
+					meets = g;
+					if (heapSize > 1) {
+						meets = Math.max(meets, earliest[1]);
+					}
+					if (heapSize > 2) {
+						meets = Math.max(meets, earliest[2]);
+					}
+				}
+				return payoff(meets) - getValue();
+			}
+
+			public double marginalValue(List<String> bundle) {
+				if (bundle == null || numNeed < 1 || heapSize + bundle.size() < numNeed) {
+					return 0;
+				}
+				int[] goods = Arrays.copyOf(earliest, heapSize + bundle.size());
+				for (int i=0; i < bundle.size(); i++) {
+					goods[heapSize + i] = Integer.parseInt(bundle.get(i));
+				}
+				Arrays.sort(goods);
+				return payoff(goods[numNeed-1]) - getValue();
+			}
+
+			public void add(String good) {
+				int g = Integer.parseInt(good);
+				if (numNeed < 1) {
+					return;
+				}
+				if (heapSize < numNeed) {
+					int child = heapSize++;
+					while (child > 0 && earliest[(child - 1) / 2] < g) {
+						earliest[child] = earliest[(child - 1) / 2];
+						child = (child - 1) / 2;
+					}
+					earliest[child] = g;
+				} else if (g < earliest[0]) {
+					int parent = 0;
+					while (true) {
+						int child = 2 * parent + 1;
+						if (child >= heapSize) {
+							break;
+						}
+						if (child + 1 < heapSize && earliest[child + 1] > earliest[child]) {
+							++child;
+						}
+						if (earliest[child] <= g) {
+							break;
+						}
+						earliest[parent] = earliest[child];
+						parent = child;
+					}
+					earliest[parent] = g;
+				}
+			}
 		}
-		return 0;
 	}
 
 }
@@ -0,0 +1,29 @@
+/**
+ * A scoring function that has been compiled from its string encoding by a
+ * Valuation, so that many combinations of goods can be scored without parsing
+ * the function again. A scoring function is immutable and may be shared
+ * between threads.
+ */
+
+package jack.valuations;
+
+import java.util.List;
+
+public interface ScoringFunction {
+
+	/**
+	 * Given a list of goods, calculate the score.
+	 * @param goods List of goods for which to calculate a score.
+	 * @return the score achieved with a combination of goods under this
+	 * scoring function, or 0 if goods is null.
+	 */
+	double getScore(List<String> goods);
+
+	/**
+	 * Create an evaluator of marginal values under this scoring function.
+	 * @param holdings The goods already held, or null for none.
+	 * @return A new evaluator, which does not share any state with others.
+	 */
+	MarginalEvaluator newEvaluator(List<String> holdings);
+
+}
@@ -0,0 +1,85 @@
+/**
+ * Holds the scoring functions most recently compiled by a Valuation, keyed by
+ * their string encoding, so that getScore(String, List) only parses a given
+ * function once. The least recently used function is dropped when the cache
+ * is full. This class is thread safe.
+ */
+
+package jack.valuations;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class ScoringFunctionCache {
+
+	/** The default number of compiled functions to hold */
+	public static final int DEFAULT_CAPACITY = 256;
+
+	/** The valuation that compiles the functions */
+	private final Valuation valuation;
+
+	/** The compiled functions, least recently used first */
+	private final Map<String, ScoringFunction> functions;
+
+	/** Counters describing the cache */
+	private long hits = 0;
+	private long misses = 0;
+
+	public ScoringFunctionCache(Valuation valuation) {
+		this(valuation, DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * @param valuation The valuation that compiles the functions.
+	 * @param capacity The most compiled functions to hold.
+	 */
+	public ScoringFunctionCache(Valuation valuation, final int capacity) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("capacity must be positive");
+		}
+		this.valuation = valuation;
+		this.functions = new LinkedHashMap<String, ScoringFunction>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, ScoringFunction> eldest) {
+				return size() > capacity;
+			}
+		};
+	}
+
+	/**
+	 * Returns the compiled form of a scoring function, compiling it if it is
+	 * not already held.
+	 * @param scoreFunct String encoding a scoring function.
+	 * @return The compiled scoring function.
+	 */
+	public ScoringFunction get(String scoreFunct) {
+		synchronized (this) {
+			ScoringFunction function = functions.get(scoreFunct);
+			if (function != null) {
+				++hits;
+				return function;
+			}
+			++misses;
+		}
+
+		//Compile outside of the lock, so that a slow compile does not hold up
+		//lookups of other functions. Two threads may compile the same
+		//function at once, which is harmless as the results are equivalent.
+		ScoringFunction function = valuation.compile(scoreFunct);
+		synchronized (this) {
+			functions.put(scoreFunct, function);
+		}
+		return function;
+	}
+
+	/** @return The number of lookups that found a compiled function. */
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	/** @return The number of lookups that had to compile the function. */
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+}
@@ -0,0 +1,100 @@
+/**
+ * Generates scoring functions in bulk, in parallel. Every function is given
+ * its own SplittableRandom, split in order from a single generator seeded
+ * with the given seed, so the output for a given seed and valuation
+ * configuration does not depend on the number of threads or on how the work
+ * is divided between them.
+ */
+
+package jack.valuations;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public final class ScoringFunctionGenerator {
+
+	private ScoringFunctionGenerator() {
+	}
+
+	/**
+	 * Generate scoring functions using one thread per processor.
+	 * @param valuation The valuation that generates each function.
+	 * @param seed The seed that determines every function.
+	 * @param count The number of functions to generate.
+	 * @return The functions, in order.
+	 */
+	public static String[] generate(Valuation valuation, long seed, int count) {
+		return generate(valuation, seed, count, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Generate scoring functions using the given number of threads.
+	 * @param valuation The valuation that generates each function.
+	 * @param seed The seed that determines every function.
+	 * @param count The number of functions to generate.
+	 * @param threads The number of threads to generate them with.
+	 * @return The functions, in order.
+	 */
+	public static String[] generate(final Valuation valuation, long seed, int count,
+									int threads) {
+		if (count < 0) {
+			throw new IllegalArgumentException("count must not be negative");
+		}
+		if (threads < 1) {
+			throw new IllegalArgumentException("threads must be positive");
+		}
+
+		//Splitting is cheap, so the randoms are split up front in order. This
+		//is what makes each function independent of the thread that makes it.
+		final String[] functions = new String[count];
+		final SplittableRandom[] randoms = new SplittableRandom[count];
+		SplittableRandom root = new SplittableRandom(seed);
+		for (int i=0; i < count; i++) {
+			randoms[i] = root.split();
+		}
+
+		threads = Math.min(threads, count);
+		if (threads <= 1) {
+			for (int i=0; i < count; i++) {
+				functions[i] = valuation.generateScoringFunction(randoms[i]);
+			}
+			return functions;
+		}
+
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<?>> chunks = new ArrayList<Future<?>>();
+			for (int t=0; t < threads; t++) {
+				final int from = (int)((long)count * t / threads);
+				final int to = (int)((long)count * (t + 1) / threads);
+				chunks.add(pool.submit(new Runnable() {
+					public void run() {
+						for (int i=from; i < to; i++) {
+							functions[i] = valuation.generateScoringFunction(randoms[i]);
+						}
+					}
+				}));
+			}
+			for (Future<?> chunk : chunks) {
+				chunk.get();
+			}
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException)e.getCause();
+			}
+			throw new IllegalStateException(e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("interrupted while generating", e);
+		} finally {
+			pool.shutdownNow();
+		}
+		return functions;
+	}
+
+}
@@ -14,6 +14,7 @@
 package jack.valuations;
 
 import java.util.List;
+import java.util.SplittableRandom;
 
 public interface Valuation {
 
@@ -32,6 +33,24 @@ public interface Valuation {
 	 */
 	String generateScoringFunction();
 
+	/**
+	 * Generate a Valuation scoring function using the given source of random
+	 * numbers, so that the same random numbers always give the same function.
+	 * This may be called from several threads at once.
+	 * @param rand The source of random numbers.
+	 * @return String which encodes a scoring function.
+	 */
+	String generateScoringFunction(SplittableRandom rand);
+
+	/**
+	 * Generate a number of scoring functions in parallel. The functions are
+	 * the same for a given seed, however many threads generate them.
+	 * @param seed The seed that determines every function.
+	 * @param count The number of functions to generate.
+	 * @return The functions, in order.
+	 */
+	String[] generateScoringFunctions(long seed, int count);
+
 	/**
 	 * Given a list of goods and scoring function, calculate the score.
 	 * @param  scoreFunct  String encoding a scoring function.
@@ -41,4 +60,26 @@ public interface Valuation {
 	 */
 	double getScore(String scoreFunct, List<String> goods);
 
+	/**
+	 * Compile a string encoding of a scoring function into an immutable
+	 * object that can score many combinations of goods without parsing the
+	 * function again. getScore(scoreFunct, goods) is equivalent to
+	 * compile(scoreFunct).getScore(goods).
+	 * @param scoreFunct String encoding a scoring function.
+	 * @return The compiled scoring function.
+	 * @throws IllegalArgumentException If scoreFunct is malformed.
+	 */
+	ScoringFunction compile(String scoreFunct);
+
+	/**
+	 * Create an evaluator that answers how much a score would increase if
+	 * goods were added to the holdings. This is the same as
+	 * compile(scoreFunct).newEvaluator(holdings), but uses compiled functions
+	 * from a cache.
+	 * @param scoreFunct String encoding a scoring function.
+	 * @param holdings The goods already held, or null for none.
+	 * @return A new evaluator.
+	 */
+	MarginalEvaluator newEvaluator(String scoreFunct, List<String> holdings);
+
 }
@@ -0,0 +1,140 @@
+package jack.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Checks that a binary client can decode everything written from its
+ * outbound queue after status messages have been coalesced or dropped. The
+ * first frame that uses a message type, key or bidder id defines it as a
+ * symbol, so a queue that threw such a frame away would leave the client
+ * unable to decode the frames after it.
+ */
+public class OutboundQueueTest {
+
+    public static void main(String[] args) throws IOException {
+        coalescedStatus();
+        droppedStatus();
+        encodedStatusIsKept();
+        System.out.println("OutboundQueueTest passed");
+    }
+
+    /** A status replaced by a later one never reaches the codec. */
+    private static void coalescedStatus() throws IOException {
+        BinaryCodec codec = new BinaryCodec();
+        OutboundQueue queue = new OutboundQueue(8, SlowConsumerPolicy.COALESCE_STATUS);
+        offer(queue, codec, "start auctionId=1 timer=5");
+        offer(queue, codec, "status auctionId=1 bidderId=alice bid=3");
+        offer(queue, codec, "status auctionId=1 bidderId=bob bid=4");
+        offer(queue, codec, "stop auctionId=1 bidderId=bob bid=4");
+
+        check(queue.getCoalesced() == 1, "one status coalesced");
+        check(decode(drain(queue, 8)),
+              "start auctionId=1 timer=5",
+              "status auctionId=1 bidderId=bob bid=4",
+              "stop auctionId=1 bidderId=bob bid=4");
+    }
+
+    /** A status dropped to make room never reaches the codec. */
+    private static void droppedStatus() throws IOException {
+        BinaryCodec codec = new BinaryCodec();
+        OutboundQueue queue = new OutboundQueue(3, SlowConsumerPolicy.DROP_OLDEST_STATUS);
+        offer(queue, codec, "start auctionId=1 timer=5");
+        offer(queue, codec, "status auctionId=1 bidderId=alice bid=3");
+        offer(queue, codec, "start auctionId=2 timer=5");
+        offer(queue, codec, "status auctionId=2 bidderId=bob bid=4");
+
+        check(queue.getDropped() == 1, "one status dropped");
+        check(decode(drain(queue, 8)),
+              "start auctionId=1 timer=5",
+              "start auctionId=2 timer=5",
+              "status auctionId=2 bidderId=bob bid=4");
+    }
+
+    /**
+     * A status that has been encoded but not yet written is neither replaced
+     * nor dropped, as the frames after it may rely on the symbols it defines.
+     */
+    private static void encodedStatusIsKept() throws IOException {
+        BinaryCodec codec = new BinaryCodec();
+        OutboundQueue queue = new OutboundQueue(2, SlowConsumerPolicy.COALESCE_STATUS);
+        offer(queue, codec, "start auctionId=1 timer=5");
+        offer(queue, codec, "status auctionId=1 bidderId=alice bid=3");
+
+        // Write the start but leave the encoded status queued
+
+        ByteBuffer[] batch = new ByteBuffer[2];
+        check(queue.beginWrite(batch) == 2, "both messages encoded");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        write(out, batch[0]);
+        queue.endWrite(1, false);
+
+        // The new status is queued after the encoded one rather than
+        // replacing it, and once the queue is full it is the new status that
+        // is dropped to make room even though the encoded one is older
+
+        offer(queue, codec, "status auctionId=1 bidderId=bob bid=4");
+        check(queue.getCoalesced() == 0, "encoded status not coalesced");
+        offer(queue, codec, "start auctionId=2 timer=5");
+        check(queue.getDropped() == 1, "unencoded status dropped");
+
+        out.write(drain(queue, 2));
+        check(decode(out.toByteArray()),
+              "start auctionId=1 timer=5",
+              "status auctionId=1 bidderId=alice bid=3",
+              "start auctionId=2 timer=5");
+    }
+
+    private static void offer(OutboundQueue queue, BinaryCodec codec, String text) {
+        check(queue.offer(new OutboundMessage(text), codec), "queued " + text);
+    }
+
+    /** Writes everything queued, a batch at a time, and returns the bytes. */
+    private static byte[] drain(OutboundQueue queue, int batchSize) {
+        ByteBuffer[] batch = new ByteBuffer[batchSize];
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int count;
+        while ((count = queue.beginWrite(batch)) > 0) {
+            for (int i = 0; i < count; ++i) {
+                write(out, batch[i]);
+            }
+            queue.endWrite(count, false);
+        }
+        return out.toByteArray();
+    }
+
+    private static void write(ByteArrayOutputStream out, ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    /** Decodes a stream of frames with a fresh codec, as a client would. */
+    private static List<String> decode(byte[] stream) throws IOException {
+        BinaryCodec codec = new BinaryCodec();
+        ByteArrayInputStream in = new ByteArrayInputStream(stream);
+        List<String> messages = new ArrayList<String>();
+        String message;
+        while ((message = codec.readFrame(in)) != null) {
+            messages.add(message);
+        }
+        return messages;
+    }
+
+    private static void check(List<String> actual, String... expected) {
+        check(actual.equals(Arrays.asList(expected)),
+              "expected " + Arrays.asList(expected) + " but decoded " + actual);
+    }
+
+    private static void check(boolean condition, String description) {
+        if (!condition) {
+            System.err.println("OutboundQueueTest failed: " + description);
+            System.exit(1);
+        }
+    }
+}